@@ -0,0 +1,176 @@
+/*
+ *  This file is part of Barnacle Wifi Tether
+ *  Copyright (C) 2010 by Szymon Jakubczak
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef INCLUDED_ADDR_HH
+#define INCLUDED_ADDR_HH
+
+#include <stdint.h>
+#include <unistd.h>
+#include <poll.h>
+#include <sys/socket.h>
+#include <netinet/if_ether.h> // for ETHERTYPE_ARP, ARPOP_ and ARPHRD_
+#include <linux/if_packet.h>
+
+#include "ifctl.hh"
+
+/**
+ * Address allocation: a candidate derived from the MAC, checked with
+ * RFC 5227 style ARP probes. On conflict the next candidate is derived from
+ * the MAC and the attempt number, so two nodes that collide once diverge.
+ */
+namespace Addr {
+  // FNV-1a over the MAC and the attempt
+  static inline uint32_t hash(const uint8_t *mac, unsigned attempt) {
+    uint32_t h = 2166136261u;
+    for (int i = 0; i < 6; ++i) {
+      h = (h ^ mac[i]) * 16777619u;
+    }
+    for (int i = 0; i < 4; ++i) {
+      h = (h ^ ((attempt >> (8*i)) & 0xff)) * 16777619u;
+    }
+    return h;
+  }
+
+  /// net and mask in network order, host part is never 0 or broadcast
+  static inline in_addr_t candidate(const uint8_t *mac, in_addr_t net, in_addr_t mask,
+                                    unsigned attempt) {
+    uint32_t hostmask = ~ntohl(mask);
+    if (hostmask < 3)
+      return net; // no room, keep what was configured
+    uint32_t host = hash(mac, attempt) % (hostmask - 1) + 1;
+    return (net & mask) | htonl(host);
+  }
+
+  struct ArpPacket {
+    uint16_t htype;
+    uint16_t ptype;
+    uint8_t  hlen;
+    uint8_t  plen;
+    uint16_t op;
+    uint8_t  sha[6];
+    uint8_t  spa[4];
+    uint8_t  tha[6];
+    uint8_t  tpa[4];
+  } __attribute__((packed));
+
+  /**
+   * ARP on one interface, over a packet socket
+   */
+  class Arp {
+    int _fd;
+    int _ifindex;
+    uint8_t _mac[6];
+
+  public:
+    Arp(const char *iface, const uint8_t *mac) : _ifindex(0) {
+      memcpy(_mac, mac, 6);
+      _fd = socket(AF_PACKET, SOCK_DGRAM, htons(ETHERTYPE_ARP));
+      if (_fd < 0) {
+        DBG("Could not open ARP socket: %s\n", strerror(errno));
+        return;
+      }
+      ifreq ifr;
+      memset(&ifr, 0, sizeof(ifr));
+      strncpy(ifr.ifr_name, iface, IFNAMSIZ-1);
+      sockaddr_ll sll;
+      memset(&sll, 0, sizeof(sll));
+      if (ioctl(_fd, SIOCGIFINDEX, &ifr) == 0) {
+        _ifindex = ifr.ifr_ifindex;
+        sll.sll_family = AF_PACKET;
+        sll.sll_protocol = htons(ETHERTYPE_ARP);
+        sll.sll_ifindex = _ifindex;
+      }
+      if (!_ifindex || bind(_fd, (sockaddr *)&sll, sizeof(sll))) {
+        DBG("Could not bind ARP socket to %s: %s\n", iface, strerror(errno));
+        close(_fd);
+        _fd = -1;
+      }
+    }
+    ~Arp() { if (_fd >= 0) close(_fd); }
+
+    bool ok() const { return _fd >= 0; }
+
+    /// broadcast request, spa = 0 for a probe, spa = tpa for an announcement
+    bool send(in_addr_t spa, in_addr_t tpa) {
+      ArpPacket p;
+      p.htype = htons(ARPHRD_ETHER);
+      p.ptype = htons(ETHERTYPE_IP);
+      p.hlen = 6;
+      p.plen = 4;
+      p.op = htons(ARPOP_REQUEST);
+      memcpy(p.sha, _mac, 6);
+      memcpy(p.spa, &spa, 4);
+      memset(p.tha, 0, 6);
+      memcpy(p.tpa, &tpa, 4);
+
+      sockaddr_ll to;
+      memset(&to, 0, sizeof(to));
+      to.sll_family = AF_PACKET;
+      to.sll_protocol = htons(ETHERTYPE_ARP);
+      to.sll_ifindex = _ifindex;
+      to.sll_halen = 6;
+      memset(to.sll_addr, 0xff, 6);
+      return sendto(_fd, &p, sizeof(p), 0, (sockaddr *)&to, sizeof(to)) == sizeof(p);
+    }
+
+    /**
+     * Listens for timeout_ms. Another host claims addr if it uses it as the
+     * sender address, or probes for it at the same time as we do.
+     */
+    bool conflict(in_addr_t addr, int timeout_ms) {
+      long long deadline = monotonic_ms() + timeout_ms;
+      while (true) {
+        int left = (int)(deadline - monotonic_ms());
+        if (left <= 0)
+          return false;
+        pollfd pfd = { _fd, POLLIN, 0 };
+        if (poll(&pfd, 1, left) <= 0)
+          continue;
+        ArpPacket p;
+        if (recv(_fd, &p, sizeof(p), MSG_DONTWAIT) < (ssize_t)sizeof(p))
+          continue;
+        if (p.ptype != htons(ETHERTYPE_IP) || p.plen != 4 || !memcmp(p.sha, _mac, 6))
+          continue;
+        in_addr_t spa, tpa;
+        memcpy(&spa, p.spa, 4);
+        memcpy(&tpa, p.tpa, 4);
+        if (spa == addr)
+          return true;
+        if (spa == INADDR_ANY && tpa == addr && p.op == htons(ARPOP_REQUEST))
+          return true;
+      }
+    }
+
+    /// @return true if nobody answered probes for addr
+    bool probe(in_addr_t addr, unsigned probes, int interval_ms) {
+      for (unsigned i = 0; i < probes; ++i) {
+        if (!send(INADDR_ANY, addr))
+          DBG("Could not send ARP probe: %s\n", strerror(errno));
+        if (conflict(addr, interval_ms))
+          return false;
+      }
+      return true;
+    }
+
+    void announce(in_addr_t addr) {
+      send(addr, addr);
+    }
+  };
+};
+
+#endif // INCLUDED_ADDR_HH
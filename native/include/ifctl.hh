@@ -47,11 +47,18 @@ protected:
   ifreq _ifr; // ifconfig
 
   void fail(const char *msg) {
-    ERR("%s of %s: %s\n", msg, _ifr.ifr_name, strerror(errno));
+    if (quiet) {
+      DBG("%s of %s: %s\n", msg, _ifr.ifr_name, strerror(errno));
+    } else {
+      ERR("%s of %s: %s\n", msg, _ifr.ifr_name, strerror(errno));
+    }
   }
 
 public:
-  IfCtl(const char *iface) {
+  // no stderr, the caller reports the failure, see serve() in wifi/main.cc
+  bool quiet;
+
+  IfCtl(const char *iface) : quiet(false) {
     _sock = socket(AF_INET, SOCK_DGRAM, 0); // should never fail
     strncpy(_ifr.ifr_name, iface, IFNAMSIZ);
     _ifr.ifr_name[IFNAMSIZ-1] = 0;
@@ -114,6 +121,14 @@ public:
     return _ifr.ifr_flags & IFF_UP;
   }
 
+  bool hasAddress(in_addr_t addr) { // INADDR_ANY matches any address, no error message
+    if (ioctl(_sock, SIOCGIFADDR, &_ifr)) {
+      return false;
+    }
+    in_addr_t a = ((sockaddr_in *)&_ifr.ifr_addr)->sin_addr.s_addr;
+    return (addr == INADDR_ANY) ? (a != INADDR_ANY) : (a == addr);
+  }
+
   in_addr_t getAddress() {
     if (ioctl(_sock, SIOCGIFADDR, &_ifr)) {
       fail("Could not get address");
@@ -138,6 +153,14 @@ public:
     return _ifr.ifr_mtu;
   }
 
+  int getIndex() {
+    if (ioctl(_sock, SIOCGIFINDEX, &_ifr)) {
+      DBG("Could not get index of %s: %s\n", _ifr.ifr_name, strerror(errno));
+      return 0;
+    }
+    return _ifr.ifr_ifindex;
+  }
+
   bool getHwAddress(uint8_t *addr) {
     if (ioctl(_sock, SIOCGIFHWADDR, &_ifr)) {
       return false;
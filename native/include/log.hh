@@ -21,6 +21,7 @@
 
 #include <stdio.h>
 #include <sys/file.h>
+#include <time.h>
 
 #ifndef TAG
 #define TAG
@@ -29,6 +30,18 @@
 #define ERR(...) { fprintf(stderr, TAG __VA_ARGS__); fflush(stderr); }
 #define LOG(...) { flock(1, LOCK_EX); fprintf(stdout, TAG __VA_ARGS__); fflush(stdout); flock(1, LOCK_UN); }
 
+// CLOCK_MONOTONIC in ms, the same clock as SystemClock.uptimeMillis
+static inline long long monotonic_ms() {
+  struct timespec ts;
+  clock_gettime(CLOCK_MONOTONIC, &ts);
+  return (long long)ts.tv_sec * 1000 + ts.tv_nsec / 1000000;
+}
+
+// startup timing marker parsed by AdHocService
+#define MARK(name) { flock(1, LOCK_EX); \
+  fprintf(stdout, "MARK: %s %lld\n", name, monotonic_ms()); \
+  fflush(stdout); flock(1, LOCK_UN); }
+
 #ifdef __ANDROID__
 extern "C" {
 #include <android/log.h>
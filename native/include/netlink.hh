@@ -0,0 +1,251 @@
+/*
+ *  This file is part of Barnacle Wifi Tether
+ *  Copyright (C) 2010 by Szymon Jakubczak
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef INCLUDED_NETLINK_HH
+#define INCLUDED_NETLINK_HH
+
+#include <unistd.h>
+#include <poll.h>
+#include <sys/socket.h>
+#include <linux/netlink.h>
+#include <linux/rtnetlink.h>
+
+#include "ifctl.hh"
+
+namespace Netlink {
+  /**
+   * rtnetlink socket, optionally subscribed to multicast groups
+   */
+  class Socket {
+    int _fd;
+  public:
+    Socket(unsigned groups = 0) {
+      _fd = socket(AF_NETLINK, SOCK_RAW, NETLINK_ROUTE);
+      if (_fd < 0) return;
+      sockaddr_nl sa;
+      memset(&sa, 0, sizeof(sa));
+      sa.nl_family = AF_NETLINK;
+      sa.nl_groups = groups;
+      if (bind(_fd, (sockaddr *)&sa, sizeof(sa))) {
+        DBG("Could not bind netlink: %s\n", strerror(errno));
+        close(_fd);
+        _fd = -1;
+      }
+    }
+    ~Socket() { if (_fd >= 0) close(_fd); }
+
+    bool ok() const { return _fd >= 0; }
+    int fd() const { return _fd; }
+
+    // waits for a message, returns false on timeout or error
+    bool wait(int timeout_ms) {
+      pollfd pfd = { _fd, POLLIN, 0 };
+      return poll(&pfd, 1, timeout_ms) > 0;
+    }
+
+    // discards pending notifications, we only use them as a wakeup
+    void drain() {
+      char buf[4096];
+      while (recv(_fd, buf, sizeof(buf), MSG_DONTWAIT) > 0);
+    }
+  };
+
+  /**
+   * Any number of rtnetlink requests sent in one message and acknowledged
+   * together, e.g. address, link state and routes of an interface.
+   * Addresses are in network order.
+   */
+  class Batch {
+    static const unsigned BufSize = 16384;
+    static const unsigned MaxMessages = 256;
+
+    char     _buf[BufSize];
+    unsigned _len;
+    unsigned _count;
+    unsigned _first;   // seq of the first request, later acks of old batches are ignored
+    uint16_t _types[MaxMessages];
+    bool     _overflow;
+
+    nlmsghdr *begin(int type, int flags, const void *body, unsigned bodylen) {
+      unsigned need = NLMSG_SPACE(bodylen) + 64; // room for the attributes
+      if (_count == MaxMessages || _len + need > BufSize) {
+        _overflow = true;
+        return NULL;
+      }
+      nlmsghdr *h = (nlmsghdr *)(_buf + _len);
+      memset(h, 0, need);
+      h->nlmsg_len = NLMSG_LENGTH(bodylen);
+      h->nlmsg_type = type;
+      h->nlmsg_flags = NLM_F_REQUEST | NLM_F_ACK | flags;
+      h->nlmsg_seq = _first + _count;
+      memcpy(NLMSG_DATA(h), body, bodylen);
+      _types[_count++] = type;
+      return h;
+    }
+
+    void end(nlmsghdr *h) {
+      _len += NLMSG_ALIGN(h->nlmsg_len);
+    }
+
+    static void attr(nlmsghdr *h, int type, const void *data, int len) {
+      rtattr *rta = (rtattr *)((char *)h + NLMSG_ALIGN(h->nlmsg_len));
+      rta->rta_type = type;
+      rta->rta_len = RTA_LENGTH(len);
+      memcpy(RTA_DATA(rta), data, len);
+      h->nlmsg_len = NLMSG_ALIGN(h->nlmsg_len) + RTA_ALIGN(rta->rta_len);
+    }
+
+    // a delete of something already gone is fine
+    bool tolerated(uint16_t type, int err) const {
+      return (type == RTM_DELROUTE && err == ESRCH)
+          || (type == RTM_DELADDR && err == EADDRNOTAVAIL);
+    }
+
+  public:
+    Batch() : _len(0), _count(0), _overflow(false) {
+      static unsigned seq = 0;
+      _first = seq;
+      seq += MaxMessages;
+    }
+
+    unsigned size() const { return _count; }
+
+    /// RTM_NEWADDR or RTM_DELADDR
+    bool address(int type, int ifindex, in_addr_t addr, in_addr_t mask) {
+      ifaddrmsg ifa;
+      memset(&ifa, 0, sizeof(ifa));
+      ifa.ifa_family = AF_INET;
+      ifa.ifa_prefixlen = __builtin_popcount(ntohl(mask));
+      ifa.ifa_scope = RT_SCOPE_UNIVERSE;
+      ifa.ifa_index = ifindex;
+      nlmsghdr *h = begin(type, type == RTM_NEWADDR ? NLM_F_CREATE | NLM_F_REPLACE : 0,
+                          &ifa, sizeof(ifa));
+      if (!h) return false;
+      if (addr != INADDR_ANY) {
+        in_addr_t brd = addr | ~mask;
+        attr(h, IFA_LOCAL, &addr, 4);
+        attr(h, IFA_ADDRESS, &addr, 4);
+        if (type == RTM_NEWADDR)
+          attr(h, IFA_BROADCAST, &brd, 4);
+      }
+      end(h);
+      return true;
+    }
+
+    bool link(int ifindex, bool up) {
+      ifinfomsg ifi;
+      memset(&ifi, 0, sizeof(ifi));
+      ifi.ifi_family = AF_UNSPEC;
+      ifi.ifi_index = ifindex;
+      ifi.ifi_flags = up ? IFF_UP : 0;
+      ifi.ifi_change = IFF_UP;
+      nlmsghdr *h = begin(RTM_NEWLINK, 0, &ifi, sizeof(ifi));
+      if (!h) return false;
+      end(h);
+      return true;
+    }
+
+    /// RTM_NEWROUTE (replacing) or RTM_DELROUTE, gw = INADDR_ANY for a link route
+    bool route(int type, in_addr_t dst, int dst_len, in_addr_t gw, int ifindex, unsigned metric = 0) {
+      rtmsg rt;
+      memset(&rt, 0, sizeof(rt));
+      rt.rtm_family = AF_INET;
+      rt.rtm_dst_len = dst_len;
+      rt.rtm_table = RT_TABLE_MAIN;
+      rt.rtm_protocol = RTPROT_STATIC;
+      rt.rtm_scope = (gw == INADDR_ANY) ? RT_SCOPE_LINK : RT_SCOPE_UNIVERSE;
+      rt.rtm_type = RTN_UNICAST;
+      nlmsghdr *h = begin(type, type == RTM_NEWROUTE ? NLM_F_CREATE | NLM_F_REPLACE : 0,
+                          &rt, sizeof(rt));
+      if (!h) return false;
+      attr(h, RTA_DST, &dst, 4);
+      if (gw != INADDR_ANY)
+        attr(h, RTA_GATEWAY, &gw, 4);
+      attr(h, RTA_OIF, &ifindex, 4);
+      if (metric)
+        attr(h, RTA_PRIORITY, &metric, 4);
+      end(h);
+      return true;
+    }
+
+    /**
+     * Sends all requests in one message and collects the acks.
+     * @return number of requests that failed, or were not acked in time
+     */
+    unsigned commit(Socket &nl, int timeout_ms = 1000) {
+      if (_overflow)
+        DBG("Netlink batch full, some requests dropped\n");
+      if (_count == 0)
+        return 0;
+      if (!nl.ok() || send(nl.fd(), _buf, _len, 0) < 0) {
+        DBG("Could not send netlink batch: %s\n", strerror(errno));
+        return _count;
+      }
+      unsigned acked = 0, failed = 0;
+      char buf[4096];
+      long long deadline = monotonic_ms() + timeout_ms;
+      while (acked < _count) {
+        long long left = deadline - monotonic_ms();
+        if (left <= 0 || !nl.wait((int)left))
+          break;
+        int len = recv(nl.fd(), buf, sizeof(buf), 0);
+        if (len < 0)
+          break;
+        for (nlmsghdr *r = (nlmsghdr *)buf; NLMSG_OK(r, (unsigned)len); r = NLMSG_NEXT(r, len)) {
+          unsigned i = r->nlmsg_seq - _first;
+          if (r->nlmsg_type != NLMSG_ERROR || i >= _count)
+            continue;
+          ++acked;
+          int err = -((nlmsgerr *)NLMSG_DATA(r))->error;
+          if (err && !tolerated(_types[i], err)) {
+            DBG("Netlink request %u (type %u) failed: %s\n", i, _types[i], strerror(err));
+            ++failed;
+          }
+        }
+      }
+      return failed + (_count - acked);
+    }
+  };
+
+  /**
+   * Waits until iface is up and has addr (network order, INADDR_ANY for any).
+   * Driven by link and address notifications, so it returns as soon as
+   * the state changes.
+   */
+  bool waitUp(const char *iface, in_addr_t addr, int timeout_ms) {
+    // subscribe before checking, so we don't miss the change in between
+    Socket nl(RTMGRP_LINK | RTMGRP_IPV4_IFADDR);
+    IfCtl ic(iface);
+    long long deadline = monotonic_ms() + timeout_ms;
+    while (true) {
+      if (ic.isUp() && ic.hasAddress(addr))
+        return true;
+      long long left = deadline - monotonic_ms();
+      if (left <= 0)
+        return false;
+      if (!nl.ok()) {
+        usleep(10000); // no netlink, fall back to polling
+        continue;
+      }
+      if (nl.wait((int)left))
+        nl.drain();
+    }
+  }
+}
+
+#endif // INCLUDED_NETLINK_HH
@@ -0,0 +1,139 @@
+/*
+ *  This file is part of Barnacle Wifi Tether
+ *  Copyright (C) 2010 by Szymon Jakubczak
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef INCLUDED_CHANNEL_HH
+#define INCLUDED_CHANNEL_HH
+
+// automatic channel selection from a scan, lan_channel = 0
+//
+// Every node decides on its own and they must still end up together, so:
+//  - a cell with our ESSID wins over any score, the mesh is already there;
+//  - if our ESSID is on several channels, e.g. after a move that not every
+//    node made, all pick the same one of them: least cost, then lowest BSSID;
+//  - costs are rounded to Quantum, so small differences between what nodes
+//    see do not change the order;
+//  - ties go by a fixed order, the non-overlapping 1, 6, 11 first;
+//  - a running node only moves for a difference of Margin quanta.
+// No platform calls in here: scans are plain arrays and can be replayed.
+
+#include <stdint.h>
+#include <string.h>
+
+namespace Channel {
+  const int Max = 13;        // channels 1..Max
+  const int Quantum = 16;    // cost rounding
+  const int Margin = 2;      // quanta a running mesh needs to move
+  const int BusyWeight = 2;  // cost per percent busy on our channel
+  const int NoiseFloor = -95; // dBm
+
+  struct Bss {
+    uint8_t bssid[6];
+    int channel;  // 0 if unknown
+    int level;    // dBm, 0 if unknown
+    int noise;    // dBm, 0 if unknown
+    bool ours;    // an IBSS with our ESSID
+  };
+
+  // tie-break order
+  const int Order[Max] = { 1, 6, 11, 3, 9, 4, 8, 2, 10, 5, 7, 12, 13 };
+
+  // converts SIOCGIWFREQ results, frequency in MHz or a channel number
+  inline int fromFreq(int mhz) {
+    if (mhz >= 1 && mhz <= 14) return mhz;
+    if (mhz == 2484) return 14;
+    if (mhz >= 2412 && mhz <= 2472) return (mhz - 2407) / 5;
+    return 0;
+  }
+
+  // how much a cell at level dBm gets in the way, 1 (barely heard) to 8
+  inline int weight(int level) {
+    if (level >= 0) return 4; // not in dBm, assume average
+    int w = (level + 100) / 10 + 1;
+    return (w < 1) ? 1 : (w > 8) ? 8 : w;
+  }
+
+  /**
+   * cost[c] for c in 1..Max: cells on and next to c, weighted by level and
+   * spectral overlap (a 22 MHz channel reaches 4 channels either way), the
+   * noise floor, and busy percent measured on current, see LinkStats.java.
+   */
+  inline void score(const Bss *b, int n, int current, int busy, int cost[Max + 1]) {
+    int noise[Max + 1];
+    for (int c = 0; c <= Max; ++c) {
+      cost[c] = 0;
+      noise[c] = NoiseFloor;
+    }
+    for (int i = 0; i < n; ++i) {
+      int ch = b[i].channel;
+      if (ch < 1 || ch > Max || b[i].ours) continue; // our own cell is not in the way
+      int w = weight(b[i].level);
+      for (int c = 1; c <= Max; ++c) {
+        int d = (c > ch) ? c - ch : ch - c;
+        if (d < 5) cost[c] += w * (5 - d);
+      }
+      if (b[i].noise < 0 && b[i].noise > noise[ch])
+        noise[ch] = b[i].noise;
+    }
+    for (int c = 1; c <= Max; ++c)
+      cost[c] += 4 * (noise[c] - NoiseFloor);
+    if (current >= 1 && current <= Max && busy > 0)
+      cost[current] += BusyWeight * busy;
+  }
+
+  /**
+   * The channel to be on. current is 0 before association. avoid is a
+   * channel we just left, whose cell with our ESSID is only stragglers.
+   */
+  inline int pick(const Bss *b, int n, int current, int avoid, int busy) {
+    int cost[Max + 1];
+    // follow our ESSID when it is anywhere but only here. busy is left out:
+    // it is only known for our own channel, and would make both halves of a
+    // split mesh prefer the other half
+    score(b, n, 0, 0, cost);
+    const Bss *mesh = NULL;
+    bool elsewhere = false;
+    for (int i = 0; i < n; ++i) {
+      int ch = b[i].channel;
+      if (!b[i].ours || ch < 1 || ch > Max || ch == avoid) continue;
+      if (ch != current) elsewhere = true;
+      if (!mesh || cost[ch] / Quantum < cost[mesh->channel] / Quantum
+          || (cost[ch] / Quantum == cost[mesh->channel] / Quantum
+              && memcmp(b[i].bssid, mesh->bssid, 6) < 0))
+        mesh = &b[i];
+    }
+    if (elsewhere)
+      return mesh->channel;
+
+    score(b, n, current, busy, cost);
+    int best = 0;
+    for (int i = 0; i < Max; ++i) {
+      int c = Order[i];
+      if (c == avoid) continue;
+      if (!best || cost[c] / Quantum < cost[best] / Quantum)
+        best = c;
+    }
+    if (current < 1 || current > Max)
+      return best;
+    // stay unless clearly better
+    if (cost[best] / Quantum + Margin <= cost[current] / Quantum)
+      return best;
+    return current;
+  }
+};
+
+#endif // INCLUDED_CHANNEL_HH
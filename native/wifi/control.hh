@@ -0,0 +1,105 @@
+/*
+ *  This file is part of Barnacle Wifi Tether
+ *  Copyright (C) 2010 by Szymon Jakubczak
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef INCLUDED_CONTROL_HH
+#define INCLUDED_CONTROL_HH
+
+// control protocol between AdHocService and the association loop,
+// see NativeControl.java for the other end
+
+#include <stdio.h>
+#include <stdint.h>
+#include <stdarg.h>
+
+#include <log.hh>
+
+namespace Control {
+  // requests arrive on stdin as binary frames:
+  //   magic(1) cmd(1) id(2) len(2) payload(len), big endian
+  const int Magic = 0xB5;
+  const uint16_t MaxPayload = 255;
+  const uint16_t RouteEntry = 9;
+
+  enum Cmd {
+    REASSOC     = 1,
+    SET_CHANNEL = 2, // payload: channel as one byte
+    SET_ESSID   = 3, // payload: essid
+    GET_STATS   = 4,
+    SHUTDOWN    = 5,
+    STANDBY     = 6,
+    RESUME      = 7,
+    ADD_ROUTE   = 8, // payload: n x [ dst(4) gw(4) metric(1) ], addresses in network order
+    DEL_ROUTE   = 9, // payload: as ADD_ROUTE, metric ignored
+    SCAN        = 10, // payload: avoid(1) busy(1), see channel.hh
+    PEERS       = 11, // payload: n(1), see traffic.hh
+  };
+
+  enum Status {
+    OK          = 0,
+    FAILED      = 1,
+    UNKNOWN     = 2, // unknown command
+    BAD_REQUEST = 3, // bad payload
+  };
+
+  struct Frame {
+    uint8_t cmd;
+    uint16_t id;
+    uint16_t len;
+    char payload[MaxPayload + 1]; // NUL terminated
+  };
+
+  // returns false at EOF, i.e. when AdHocService closed our stdin
+  bool read(FILE *in, Frame &f) {
+    int c;
+    do { // resync on the magic byte
+      c = fgetc(in);
+      if (c == EOF) return false;
+    } while (c != Magic);
+
+    uint8_t h[5];
+    if (fread(h, 1, sizeof(h), in) != sizeof(h))
+      return false;
+    f.cmd = h[0];
+    f.id  = (h[1] << 8) | h[2];
+    f.len = (h[3] << 8) | h[4];
+    if (f.len > MaxPayload) {
+      // skip it, the command will be rejected
+      for (uint16_t i = 0; i < f.len; ++i)
+        if (fgetc(in) == EOF) return false;
+      f.cmd = 0;
+      f.len = 0;
+    } else if (fread(f.payload, 1, f.len, in) != f.len) {
+      return false;
+    }
+    f.payload[f.len] = '\0';
+    return true;
+  }
+
+  // responses go to stdout as lines, which keeps them in order with
+  // the rest of our output: "WIFI: R <id> <status> <text>"
+  void respond(uint16_t id, int status, const char *fmt, ...) {
+    char text[1024]; // room for PEERS, see main.cc
+    va_list ap;
+    va_start(ap, fmt);
+    vsnprintf(text, sizeof(text), fmt, ap);
+    va_end(ap);
+    LOG("R %u %d %s\n", id, status, text);
+  }
+}
+
+#endif // INCLUDED_CONTROL_HH
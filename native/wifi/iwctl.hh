@@ -20,6 +20,7 @@
 #define INCLUDED_IWCTL_HH
 
 #include <stdint.h>
+#include <stdlib.h>
 #include <ctype.h>
 #include <linux/wireless.h> // the most painful header ever
 #include <netinet/if_ether.h> // for ETHERTYPE_ and ARPHRD
@@ -27,6 +28,8 @@
 #include <arpa/inet.h> // for inet_addr
 
 #include <ifctl.hh>
+#include <log.hh>
+#include "channel.hh"
 
 const int WepSize104 = 104/8;
 const int WepSize40 = 40/8;
@@ -272,6 +275,144 @@ public:
     return false;
   }
 
+  /**
+   * Link quality as in /proc/net/wireless. level and noise are in dBm if the
+   * driver reports them so, otherwise in its own units.
+   */
+  bool getQuality(int &qual, int &level, int &noise) {
+    iw_statistics stats;
+    memset(&stats, 0, sizeof(stats));
+    _iwr.u.data.pointer = (caddr_t) &stats;
+    _iwr.u.data.length = sizeof(stats);
+    _iwr.u.data.flags = 1; // clear the updated flags
+    if (ioctl(_sock, SIOCGIWSTATS, &_iwr) < 0)
+      return false;
+    qual = stats.qual.qual;
+    level = stats.qual.level;
+    noise = stats.qual.noise;
+    if (stats.qual.updated & IW_QUAL_DBM) {
+      level = (int8_t) stats.qual.level;
+      noise = (int8_t) stats.qual.noise;
+    }
+    return true;
+  }
+
+  // current tx bitrate in kb/s, or -1
+  int getBitrate() {
+    if (ioctl(_sock, SIOCGIWRATE, &_iwr) < 0)
+      return -1;
+    return _iwr.u.bitrate.value / 1000;
+  }
+
+  /**
+   * Scans for cells, at most max of them go to out. essid marks ours.
+   * @return number of cells, -1 if the driver cannot scan
+   */
+  int scan(const char *essid, Channel::Bss *out, int max, unsigned timeout_ms) {
+    _iwr.u.data.pointer = NULL;
+    _iwr.u.data.length = 0;
+    _iwr.u.data.flags = 0;
+    if (ioctl(_sock, SIOCSIWSCAN, &_iwr) < 0 && errno != EBUSY) {
+      DBG("Could not scan: %s\n", strerror(errno));
+      return -1;
+    }
+    static const int Step = 100; // ms
+    int size = 4096;
+    char *buf = NULL;
+    for (unsigned waited = 0; ; ) {
+      char *b = (char *)realloc(buf, size);
+      if (!b) break;
+      buf = b;
+      _iwr.u.data.pointer = buf;
+      _iwr.u.data.length = size;
+      _iwr.u.data.flags = 0;
+      if (ioctl(_sock, SIOCGIWSCAN, &_iwr) == 0) {
+        int n = parseScan(buf, _iwr.u.data.length, essid, out, max);
+        free(buf);
+        return n;
+      }
+      if (errno == E2BIG && size < 65535) {
+        size = (size * 2 < 65535) ? size * 2 : 65535;
+        continue;
+      }
+      if (errno != EAGAIN || waited >= timeout_ms) {
+        DBG("No scan results: %s\n", strerror(errno));
+        break;
+      }
+      usleep(Step * 1000);
+      waited += Step;
+    }
+    free(buf);
+    return -1;
+  }
+
+  // walks the iw_event stream of SIOCGIWSCAN, a new cell starts at SIOCGIWAP
+  static int parseScan(const char *buf, int len, const char *essid,
+                       Channel::Bss *out, int max) {
+    int n = -1;
+    bool adhoc = false;
+    bool named = false;
+    const char *p = buf;
+    const char *end = buf + len;
+    while (p + IW_EV_LCP_LEN <= end) {
+      iw_event ev;
+      memcpy(&ev, p, IW_EV_LCP_LEN);
+      if (ev.len < IW_EV_LCP_LEN || p + ev.len > end)
+        break;
+      const char *data = p + IW_EV_LCP_LEN;
+      if (ev.cmd == SIOCGIWAP) {
+        if (n >= 0) out[n].ours = adhoc && named;
+        if (n + 1 >= max) break;
+        ++n;
+        memset(&out[n], 0, sizeof(out[n]));
+        sockaddr sa;
+        memcpy(&sa, data, sizeof(sa));
+        memcpy(out[n].bssid, sa.sa_data, 6);
+        adhoc = named = false;
+      } else if (n >= 0) {
+        switch (ev.cmd) {
+        case SIOCGIWFREQ: {
+          iw_freq f;
+          memcpy(&f, data, sizeof(f));
+          long long v = f.m;
+          for (int e = f.e; e > 0; --e) v *= 10; // Hz
+          if (f.e > 0) v /= 1000000;             // MHz
+          int c = Channel::fromFreq((int) v);
+          if (c) out[n].channel = c;
+          break;
+        }
+        case IWEVQUAL: {
+          iw_quality q;
+          memcpy(&q, data, sizeof(q));
+          if (q.updated & IW_QUAL_DBM) {
+            if (!(q.updated & IW_QUAL_LEVEL_INVALID)) out[n].level = (int8_t) q.level;
+            if (!(q.updated & IW_QUAL_NOISE_INVALID)) out[n].noise = (int8_t) q.noise;
+          }
+          break;
+        }
+        case SIOCGIWMODE: {
+          uint32_t mode;
+          memcpy(&mode, data, sizeof(mode));
+          adhoc = (mode == IW_MODE_ADHOC);
+          break;
+        }
+        case SIOCGIWESSID: {
+          // the stream has no pointer, length and flags then the name
+          uint16_t l;
+          memcpy(&l, data, sizeof(l));
+          const char *name = p + IW_EV_POINT_LEN;
+          named = essid && name + l <= p + ev.len
+              && strlen(essid) == l && !memcmp(essid, name, l);
+          break;
+        }
+        }
+      }
+      p += ev.len;
+    }
+    if (n >= 0) out[n].ours = adhoc && named;
+    return n + 1;
+  }
+
   // TODO: monitor WLAN events
 };
 
@@ -19,12 +19,56 @@
 #define TAG "WIFI: "
 #include <config.hh>
 #include "iwctl.hh"
+#include <netlink.hh>
+#include <addr.hh>
 #include "wifi.hh"
+#include "control.hh"
+#include "traffic.hh"
 
-int config() {
+// the network of all nodes unless lan_gw says otherwise, as in assets/run
+static const char DefaultNet[]  = "170.160.1.1";
+static const char DefaultMask[] = "255.255.0.0";
+
+// the first candidate address in the subnet of lan_gw, see Addr
+in_addr_t lan_address(IfCtl &ic, in_addr_t lan_gw, in_addr_t lan_netmask) {
+  uint8_t eth[6];
+  if (!ic.getHwAddress(eth))
+    return lan_gw;
+  return Addr::candidate(eth, lan_gw, lan_netmask, 0);
+}
+
+// parses <dst>/<len>[@<gw>]
+bool parse_route(const char *arg, in_addr_t &dst, int &len, in_addr_t &gw) {
+  char buf[64];
+  strncpy(buf, arg, sizeof(buf) - 1);
+  buf[sizeof(buf) - 1] = '\0';
+  char *at = strchr(buf, '@');
+  gw = INADDR_ANY;
+  if (at) {
+    *at = '\0';
+    gw = inet_addr(at + 1);
+    if (gw == INADDR_NONE) return false;
+  }
+  char *slash = strchr(buf, '/');
+  len = 32;
+  if (slash) {
+    *slash = '\0';
+    char *end;
+    len = strtol(slash + 1, &end, 10);
+    if (end == slash + 1 || *end || len < 0 || len > 32) return false;
+  }
+  dst = inet_addr(buf);
+  return dst != INADDR_NONE;
+}
+
+/**
+ * Address, mask and link state of brncl_if_lan, and the routes given as
+ * arguments, in one netlink transaction.
+ */
+int net(int nroutes, const char * const routes[]) {
   char  iflan[IFNAMSIZ];
-  in_addr_t lan_gw = inet_addr("192.168.5.1");
-  in_addr_t lan_netmask = inet_addr("255.255.255.0");
+  in_addr_t lan_gw = inet_addr(DefaultNet);
+  in_addr_t lan_netmask = inet_addr(DefaultMask);
 
   {
     using namespace Config;
@@ -39,12 +83,362 @@ int config() {
   }
 
   IfCtl ic(iflan);
+  lan_gw = lan_address(ic, lan_gw, lan_netmask);
+  int ifindex = ic.getIndex();
+  if (!ifindex) {
+    ERR("No interface %s\n", iflan);
+    return -1;
+  }
+
+  Netlink::Batch b;
+  if (ic.hasAddress(INADDR_ANY) && !ic.hasAddress(lan_gw)) {
+    // a stale address from a previous run
+    in_addr_t old = ic.getAddress();
+    b.address(RTM_DELADDR, ifindex, old, ic.getMask());
+  }
+  b.address(RTM_NEWADDR, ifindex, lan_gw, lan_netmask);
+  b.link(ifindex, true);
+  for (int i = 0; i < nroutes; ++i) {
+    in_addr_t dst, gw;
+    int len;
+    if (!parse_route(routes[i], dst, len, gw)) {
+      ERR("Bad route %s\n", routes[i]);
+      return -2;
+    }
+    b.route(RTM_NEWROUTE, dst, len, gw, ifindex);
+  }
+  Netlink::Socket nl;
+  if (b.commit(nl)) {
+    ERR("Could not configure %s\n", iflan);
+    return -1;
+  }
+  return 0;
+}
+
+// waits until the interface configured by net() is up
+int wait_up() {
+  char  iflan[IFNAMSIZ];
+  in_addr_t lan_gw = INADDR_ANY;
+  in_addr_t lan_netmask = inet_addr(DefaultMask);
+  unsigned timeout = 1000; // ms
+
+  {
+    using namespace Config;
+    Param params[] = {
+     { "brncl_if_lan",      new String(iflan, IFNAMSIZ),  true },
+     { "brncl_lan_gw",      new IP(lan_gw),               false },
+     { "brncl_lan_netmask", new IP(lan_netmask),          false },
+     { "brncl_lan_wait",    new Uint(timeout),            false },
+     { 0, NULL, false }
+    };
+    if (!configure(params))
+      return -2;
+  }
+
+  if (lan_gw != INADDR_ANY) {
+    IfCtl ic(iflan);
+    lan_gw = lan_address(ic, lan_gw, lan_netmask); // what net() has set
+  }
+
+  long long started = monotonic_ms();
+  if (!Netlink::waitUp(iflan, lan_gw, timeout)) {
+    // not fatal, association may still work
+    LOG("%s not ready after %u ms\n", iflan, timeout);
+    return -1;
+  }
+  DBG("%s ready after %lld ms\n", iflan, monotonic_ms() - started);
+  return 0;
+}
+
+void reportOK(IfCtl &ic, const char *iflan) {
+  uint8_t eth[6];
+  ic.getHwAddress(eth);
+  MARK("assoc");
+  LOG("OK %s %02x:%02x:%02x:%02x:%02x:%02x\n", iflan,
+      eth[0], eth[1], eth[2], eth[3], eth[4], eth[5]);
+}
+
+// the multicast route of the run script
+void multicastRoute(Netlink::Batch &b, int ifindex) {
+  b.route(RTM_NEWROUTE, inet_addr("224.0.0.0"), 4, INADDR_ANY, ifindex);
+}
+
+// brings the link up with its routes, the kernel drops them when it goes down
+bool linkUp(IfCtl &ic) {
+  int ifindex = ic.getIndex();
+  Netlink::Batch b;
+  Netlink::Socket nl;
+  b.link(ifindex, true);
+  multicastRoute(b, ifindex);
+  return b.commit(nl) == 0;
+}
+
+/**
+ * The association, over wireless extensions or wpa_supplicant (netid >= 0).
+ */
+struct Link {
+  IwCtl &ic;
+  const char *iflan;
+  char *essid; // BufSize+1 chars, see assoc_loop
+  unsigned channel;
+  int netid;
+  bool up;
+
+  Link(IwCtl &i, const char *ifname, char *e, unsigned c, int n)
+    : ic(i), iflan(ifname), essid(e), channel(c), netid(n), up(true) {}
+
+  bool wext() const { return netid < 0; }
 
-  bool success = (ic.setAddress(lan_gw)
-               && ic.setMask(lan_netmask)
-               && ic.setState(true));
+  bool assoc() {
+    if (wext()) {
+      DBG("WLEXT assoc\n");
+      return ic.setEssid(essid, strlen(essid));
+    }
+    DBG("WPASUPP assoc\n");
+    return Wifi::assoc();
+  }
+
+  bool setChannel(unsigned c) {
+    channel = c;
+    if (wext())
+      return ic.setChannel(channel) && assoc();
+    return Wifi::setFrequency(netid, chan2freq(channel)) && assoc();
+  }
+
+  bool setEssid(const char *e) {
+    strncpy(essid, e, 64);
+    essid[64] = '\0';
+    if (wext())
+      return assoc();
+    return Wifi::setEssid(netid, essid) && assoc();
+  }
+
+  // keep the driver (and supplicant) loaded, just leave the IBSS
+  bool standby() {
+    if (!up) return true;
+    if (!wext()) {
+      Wifi::Events::paused = true;
+      Wifi::doBoolCommand("DISCONNECT", "OK");
+    }
+    up = false;
+    return ic.setState(false);
+  }
+
+  bool resume() {
+    if (up) return true;
+    if (!linkUp(ic))
+      return false;
+    up = true;
+    if (wext()) {
+      ic.setChannel(channel);
+    } else {
+      Wifi::Events::paused = false;
+      if (!Wifi::doBoolCommand("RECONNECT", "OK"))
+        return false;
+    }
+    reportOK(ic, iflan);
+    return assoc();
+  }
+};
+
+/**
+ * Duplicate address detection on the associated link. Moves to the next
+ * candidate on conflict and reports the final address as "ADDR <ip>".
+ */
+void claimAddress(IfCtl &ic, const char *iflan, unsigned probes, unsigned interval) {
+  static const unsigned MaxAttempts = 16;
+  uint8_t eth[6];
+  in_addr_t addr = ic.getAddress();
+  in_addr_t mask = ic.getMask();
+  if (!ic.getHwAddress(eth) || addr == INADDR_NONE || mask == INADDR_NONE)
+    return;
+  Addr::Arp arp(iflan, eth);
+  if (!arp.ok() || probes == 0) {
+    LOG("ADDR %s\n", inet_ntoa(*(in_addr *)&addr));
+    return;
+  }
+  // random initial wait, so that nodes started together don't probe in lockstep
+  bool taken = arp.conflict(addr, Addr::hash(eth, MaxAttempts) % (interval + 1));
+  unsigned attempt = 0;
+  while ((taken || !arp.probe(addr, probes, interval)) && ++attempt < MaxAttempts) {
+    in_addr_t next = Addr::candidate(eth, addr, mask, attempt);
+    DBG("Address conflict on %s, trying %s\n", inet_ntoa(*(in_addr *)&addr),
+        inet_ntoa(*(in_addr *)&next));
+    int ifindex = ic.getIndex();
+    Netlink::Batch b;
+    Netlink::Socket nl;
+    b.address(RTM_DELADDR, ifindex, addr, mask);
+    b.address(RTM_NEWADDR, ifindex, next, mask);
+    multicastRoute(b, ifindex); // may have gone with the old address
+    if (b.commit(nl))
+      return;
+    addr = next;
+    taken = false;
+  }
+  arp.announce(addr);
+  LOG("ADDR %s\n", inet_ntoa(*(in_addr *)&addr));
+}
+
+// multi-hop routing through this node, see MeshRouter.java
+void enableForwarding(const char *iflan) {
+  char path[128];
+  snprintf(path, sizeof(path), "/proc/sys/net/ipv4/conf/%s/send_redirects", iflan);
+  const char *settings[][2] = {
+    { "/proc/sys/net/ipv4/ip_forward", "1" },
+    // the next hop is on the same interface, redirects would bypass it
+    { path, "0" },
+  };
+  for (unsigned i = 0; i < sizeof(settings)/sizeof(settings[0]); ++i) {
+    FILE *f = fopen(settings[i][0], "w");
+    if (!f || fputs(settings[i][1], f) < 0)
+      DBG("Could not write %s\n", settings[i][0]);
+    if (f) fclose(f);
+  }
+}
+
+// a scan takes the radio off the channel for up to ScanWait
+const int MaxCells = 64;
+const unsigned ScanWait = 3000; // ms
+
+// the channel for lan_channel = 0, before association
+unsigned autoChannel(IwCtl &ic, const char *essid) {
+  Channel::Bss cells[MaxCells];
+  int n = ic.scan(essid, cells, MaxCells, ScanWait);
+  unsigned c = (n < 0) ? 6 : Channel::pick(cells, n, 0, 0, 0);
+  LOG("CHANNEL %u of %d cells\n", c, n);
+  return c;
+}
 
-  return success ? 0 : -1;
+long long read_stat(const char *iflan, const char *name) {
+  char path[128];
+  snprintf(path, sizeof(path), "/sys/class/net/%s/statistics/%s", iflan, name);
+  FILE *f = fopen(path, "r");
+  if (!f) return -1;
+  long long v = -1;
+  if (fscanf(f, "%lld", &v) != 1) v = -1;
+  fclose(f);
+  return v;
+}
+
+// per-peer counts, started by the first PEERS request
+static Traffic::Capture capture;
+const unsigned MaxTop = 8; // what fits in a response
+
+// serves control requests from AdHocService until stdin is closed
+void serve(Link &link) {
+  using namespace Control;
+  Frame f;
+  Netlink::Socket nl;
+  int ifindex = link.ic.getIndex();
+  // any stderr line fails the service, from now on failures go in the response
+  link.ic.quiet = true;
+  while (read(stdin, f)) {
+    switch (f.cmd) {
+    case REASSOC:
+      respond(f.id, link.assoc() ? OK : FAILED, "");
+      break;
+    case SET_CHANNEL: {
+      unsigned c = (f.len == 1) ? (uint8_t)f.payload[0] : 0;
+      if (c < 1 || c > 14) {
+        respond(f.id, BAD_REQUEST, "channel");
+        break;
+      }
+      respond(f.id, link.setChannel(c) ? OK : FAILED, "%u", c);
+      break;
+    }
+    case SET_ESSID:
+      if (f.len == 0 || f.len > 32) {
+        respond(f.id, BAD_REQUEST, "essid");
+        break;
+      }
+      respond(f.id, link.setEssid(f.payload) ? OK : FAILED, "");
+      break;
+    case GET_STATS: {
+      // the order is fixed, see LinkStats.java
+      int qual = -1, level = 0, noise = 0;
+      link.ic.getQuality(qual, level, noise);
+      respond(f.id, OK, "%lld %lld %lld %lld %lld %lld %lld %d %d %d %d",
+              monotonic_ms(),
+              read_stat(link.iflan, "rx_bytes"), read_stat(link.iflan, "tx_bytes"),
+              read_stat(link.iflan, "rx_packets"), read_stat(link.iflan, "tx_packets"),
+              read_stat(link.iflan, "rx_errors"), read_stat(link.iflan, "tx_errors"),
+              qual, level, noise, link.ic.getBitrate());
+      break;
+    }
+    case ADD_ROUTE:
+    case DEL_ROUTE: {
+      if (f.len == 0 || f.len % RouteEntry || !nl.ok()) {
+        respond(f.id, BAD_REQUEST, "route");
+        break;
+      }
+      // all routes of the frame in one netlink transaction
+      Netlink::Batch b;
+      for (uint16_t off = 0; off < f.len; off += RouteEntry) {
+        in_addr_t dst, gw;
+        memcpy(&dst, f.payload + off, 4);
+        memcpy(&gw, f.payload + off + 4, 4);
+        b.route(f.cmd == ADD_ROUTE ? RTM_NEWROUTE : RTM_DELROUTE, dst, 32, gw, ifindex,
+                (uint8_t)f.payload[off + 8]);
+      }
+      unsigned failed = b.commit(nl);
+      respond(f.id, failed ? FAILED : OK, "%u/%u", failed, b.size());
+      break;
+    }
+    case SCAN: {
+      // the best channel, where we are, the cells and the cost of every channel
+      int avoid = (f.len > 0) ? (uint8_t)f.payload[0] : 0;
+      int busy = (f.len > 1) ? (uint8_t)f.payload[1] : 0;
+      Channel::Bss cells[MaxCells];
+      int n = link.ic.scan(link.essid, cells, MaxCells, ScanWait);
+      if (n < 0) {
+        respond(f.id, FAILED, "scan");
+        break;
+      }
+      int cost[Channel::Max + 1];
+      Channel::score(cells, n, link.channel, busy, cost);
+      char costs[Channel::Max * 8] = "";
+      for (int c = 1, off = 0; c <= Channel::Max; ++c)
+        off += snprintf(costs + off, sizeof(costs) - off, " %d", cost[c]);
+      respond(f.id, OK, "%d %u %d%s", Channel::pick(cells, n, link.channel, avoid, busy),
+              link.channel, n, costs);
+      break;
+    }
+    case PEERS: {
+      // snapshot-and-reset: "ms peers overflow drops" and the busiest peers
+      // as "mac ip rx_packets rx_bytes tx_packets tx_bytes", mac and ip in hex
+      unsigned max = (f.len > 0) ? (uint8_t)f.payload[0] : MaxTop;
+      if (max > MaxTop) max = MaxTop;
+      if (!capture.running() && (!ifindex || !capture.start(ifindex))) {
+        respond(f.id, FAILED, "capture");
+        break;
+      }
+      long long ms;
+      unsigned drops;
+      const Traffic::Table &t = capture.snapshot(ms, drops);
+      Traffic::Entry top[MaxTop];
+      unsigned n = t.top(top, max);
+      char peers[MaxTop * 96] = "";
+      for (unsigned i = 0, off = 0; i < n; ++i)
+        off += snprintf(peers + off, sizeof(peers) - off, " %012llx %08x %u %llu %u %llu",
+                        (unsigned long long)top[i].mac(), top[i].ip,
+                        top[i].rxPackets, (unsigned long long)top[i].rxBytes,
+                        top[i].txPackets, (unsigned long long)top[i].txBytes);
+      respond(f.id, OK, "%lld %u %u %u%s", ms, t.size(), t.overflow, drops, peers);
+      break;
+    }
+    case SHUTDOWN:
+      respond(f.id, OK, "");
+      return;
+    case STANDBY:
+      respond(f.id, link.standby() ? OK : FAILED, "");
+      break;
+    case RESUME:
+      respond(f.id, link.resume() ? OK : FAILED, "");
+      break;
+    default:
+      respond(f.id, UNKNOWN, "%u", f.cmd);
+    }
+  }
 }
 
 void cleanup() {
@@ -59,6 +453,10 @@ int assoc_loop () {
   char  bssid[BufSize+1] = { '\0' };
   char  wep[BufSize+1] = { '\0' };
   unsigned channel = 7;
+  unsigned supplicant_wait = 1000; // ms
+  unsigned dad_probes = 3;
+  unsigned dad_interval = 200; // ms, RFC 5227 uses 1-2 s
+  bool  mesh = false;
   bool  usewext = false;
 
   {
@@ -70,16 +468,22 @@ int assoc_loop () {
      { "brncl_lan_wep",     new String(wep, BufSize),  false },
      { "brncl_lan_channel", new Uint(channel),         false },
      { "brncl_lan_wext",    new Bool(usewext),         false },
+     { "brncl_supplicant_wait", new Uint(supplicant_wait), false },
+     { "brncl_lan_dad_probes",  new Uint(dad_probes),     false },
+     { "brncl_lan_dad_interval", new Uint(dad_interval),  false },
+     { "brncl_lan_mesh",    new Bool(mesh),            false },
      { 0, NULL, false }
     };
     if (!configure(params))
       return -2;
   }
 
-  char buf[1024];
-
   IwCtl ic(iflan);
+  if (mesh)
+    enableForwarding(iflan);
   if(ic.setState(true)) { // just in case
+    if (channel == 0)
+      channel = autoChannel(ic, essid);
     ic.setChannel(channel); // ignore return value
 
     if (usewext) {
@@ -103,19 +507,12 @@ int assoc_loop () {
       }
       ic.commit();
 
-      uint8_t eth[6];
-      ic.getHwAddress(eth);
-      LOG("OK %s %02x:%02x:%02x:%02x:%02x:%02x\n", iflan,
-          eth[0], eth[1], eth[2], eth[3], eth[4], eth[5]);
-
-      // associate
-      do {
-        DBG("WLEXT assoc\n");
-        if (!ic.setEssid(essid, strlen(essid)))
-          break;
-        // wait for line on stdin before attempting again
-        fgets(buf, sizeof(buf), stdin);
-      } while (!feof(stdin));
+      reportOK(ic, iflan);
+      Link link(ic, iflan, essid, channel, -1);
+      if (link.assoc()) {
+        claimAddress(ic, iflan, dad_probes, dad_interval);
+        serve(link);
+      }
 
     } else {
       // wpa_supplicant configuration
@@ -127,29 +524,27 @@ int assoc_loop () {
       }
 
       atexit(cleanup);
-      if (!Wifi::init())
+      if (!Wifi::init(supplicant_wait))
         return -1;
+      MARK("supplicant");
 
       int netid = Wifi::addNetwork();
       if (netid < 0) {
         ERR("Failed to ADD_NETWORK\n");
         return -1;
       }
-      // TODO: allow dynamic reconfiguration in the association loop
-      if (!Wifi::setup(netid, essid, bssid, wep, chan2freq(channel)))
+      if (!Wifi::setup(netid, essid, bssid, wep, chan2freq(channel))) {
+        ERR("Failed to configure network %d\n", netid);
         return -1;
+      }
 
-      uint8_t eth[6];
-      ic.getHwAddress(eth);
-      LOG("OK %s %02x:%02x:%02x:%02x:%02x:%02x\n", iflan,
-          eth[0], eth[1], eth[2], eth[3], eth[4], eth[5]);
-      do {
-        DBG("WPASUPP assoc\n");
-        if (!Wifi::assoc())
-          break;
-        // wait for line on stdin before attempting again
-        fgets(buf, sizeof(buf), stdin);
-      } while (!feof(stdin));
+      reportOK(ic, iflan);
+      // from now on the event loop keeps us associated
+      Link link(ic, iflan, essid, channel, netid);
+      if (link.assoc() && Wifi::Events::start()) {
+        claimAddress(ic, iflan, dad_probes, dad_interval);
+        serve(link);
+      }
     }
   }
 
@@ -170,18 +565,27 @@ int main(int argc, const char * argv[]) {
   sigaction(SIGINT, &act, 0);
   sigaction(SIGTERM, &act, 0);
 
+  if ((argc == 3) && !strcmp(argv[1], "mark")) {
+    MARK(argv[2]);
+    return 0;
+  }
+  if ((argc >= 2) && !strcmp(argv[1], "net")) {
+    return net(argc - 2, argv + 2);
+  }
   if (argc == 2) {
     if (!strcmp(argv[1], "assoc")) {
       return assoc_loop();
     } else if (!strcmp(argv[1], "config")) {
-      return config();
+      return net(0, NULL);
+    } else if (!strcmp(argv[1], "wait")) {
+      return wait_up();
     } else if (!strcmp(argv[1], "load")) {
       return Wifi::load_driver() ? 0 : -1;
     } else if (!strcmp(argv[1], "unload")) {
       return Wifi::unload_driver() ? 0 : -1;
     }
   }
-  ERR("Usage: %s assoc|load|unload\n", argv[0]);
+  ERR("Usage: %s assoc|config|wait|load|unload|mark <phase>|net [<dst>/<len>[@<gw>] ...]\n", argv[0]);
   return -1;
 }
 
@@ -0,0 +1,277 @@
+/*
+ *  This file is part of Barnacle Wifi Tether
+ *  Copyright (C) 2010 by Szymon Jakubczak
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+#ifndef INCLUDED_TRAFFIC_HH
+#define INCLUDED_TRAFFIC_HH
+
+// per-peer traffic on brncl_if_lan, see PeerTraffic.java
+//
+// Frames are read from an AF_PACKET socket whose filter cuts them to the
+// Ethernet and IPv4 headers, through a PACKET_RX_RING shared with the kernel,
+// so there is no system call per frame, only a poll() when the ring is empty.
+// Counts go into a fixed open-addressing table keyed by the peer's MAC as a
+// uint64_t: received frames by source, sent frames by destination. There are
+// two tables, a snapshot swaps them, so the capture thread never waits for
+// the reader and nothing is allocated after start().
+
+#include <stdint.h>
+#include <string.h>
+#include <pthread.h>
+#include <unistd.h>
+#include <errno.h>
+#include <poll.h>
+#include <sys/mman.h>
+#include <sys/socket.h>
+#include <arpa/inet.h>
+#include <linux/if_packet.h>
+#include <linux/if_ether.h>
+#include <linux/filter.h>
+
+#include <log.hh>
+
+namespace Traffic {
+  const unsigned Capacity = 1024;            // slots, a power of 2
+  const unsigned MaxLoad = Capacity * 3 / 4; // peers, the rest is counted as overflow
+  const unsigned Snap = 34;                  // Ethernet + IPv4 up to the addresses
+  const unsigned FrameSize = 128;            // tpacket_hdr, sockaddr_ll and Snap
+  const unsigned BlockSize = 4096;
+  const unsigned Blocks = 64;                // 2048 frames, 256 KB
+
+  struct Entry {
+    uint64_t key;      // MAC | 1 << 48, 0 if the slot is empty
+    uint32_t ip;       // last IPv4 address seen for the peer, host order
+    uint32_t rxPackets;
+    uint32_t txPackets;
+    uint64_t rxBytes;
+    uint64_t txBytes;
+
+    uint64_t mac() const { return key & 0xffffffffffffULL; }
+    uint64_t bytes() const { return rxBytes + txBytes; }
+  };
+
+  static inline uint64_t key(const uint8_t *mac) {
+    uint64_t k = 1ULL << 48; // so that no MAC is 0
+    for (int i = 0; i < 6; ++i)
+      k |= (uint64_t)mac[i] << (40 - 8 * i);
+    return k;
+  }
+
+  static inline unsigned hash(uint64_t k) {
+    // the 64-bit finalizer of MurmurHash3, vendor prefixes are all alike
+    k ^= k >> 33;
+    k *= 0xff51afd7ed558ccdULL;
+    k ^= k >> 33;
+    k *= 0xc4ceb9fe1a85ec53ULL;
+    k ^= k >> 33;
+    return (unsigned)k;
+  }
+
+  // linear probing, no deletes: a table is only ever cleared as a whole
+  class Table {
+    Entry e[Capacity];
+    unsigned n;
+  public:
+    uint32_t overflow; // frames of peers that did not fit
+
+    Table() { clear(); }
+
+    void clear() {
+      memset(e, 0, sizeof(e));
+      n = 0;
+      overflow = 0;
+    }
+
+    unsigned size() const { return n; }
+
+    // the entry for k, a new one if there is room, otherwise NULL
+    Entry *get(uint64_t k) {
+      unsigned i = hash(k) & (Capacity - 1);
+      while (e[i].key != k) {
+        if (e[i].key == 0) {
+          if (n >= MaxLoad)
+            return NULL;
+          e[i].key = k;
+          ++n;
+          return &e[i];
+        }
+        i = (i + 1) & (Capacity - 1);
+      }
+      return &e[i];
+    }
+
+    void add(uint64_t k, uint32_t ip, bool tx, unsigned len) {
+      Entry *p = get(k);
+      if (!p) {
+        ++overflow;
+        return;
+      }
+      if (ip) p->ip = ip;
+      if (tx) {
+        ++p->txPackets;
+        p->txBytes += len;
+      } else {
+        ++p->rxPackets;
+        p->rxBytes += len;
+      }
+    }
+
+    // the max busiest peers by bytes into top, busiest first, returns how many
+    unsigned top(Entry *top, unsigned max) const {
+      unsigned m = 0;
+      for (unsigned i = 0; i < Capacity; ++i) {
+        if (!e[i].key) continue;
+        uint64_t b = e[i].bytes();
+        if (m == max && b <= top[m - 1].bytes()) continue;
+        unsigned j = (m < max) ? m++ : m - 1;
+        while (j > 0 && top[j - 1].bytes() < b) {
+          top[j] = top[j - 1];
+          --j;
+        }
+        top[j] = e[i];
+      }
+      return m;
+    }
+  };
+
+  // counts one captured frame, buf holds the first caplen bytes of len
+  static inline void account(Table &t, const uint8_t *buf, unsigned caplen, unsigned len, bool tx) {
+    if (caplen < ETH_HLEN)
+      return;
+    uint32_t ip = 0;
+    if (caplen >= Snap && buf[12] == 0x08 && buf[13] == 0x00 && (buf[14] >> 4) == 4) {
+      uint32_t a;
+      memcpy(&a, buf + (tx ? 30 : 26), 4);
+      ip = ntohl(a);
+    }
+    t.add(key(tx ? buf : buf + 6), ip, tx, len);
+  }
+
+  class Capture {
+    Table tables[2];
+    Table *volatile active;
+    pthread_mutex_t lock;
+    pthread_t thread;
+    int fd;
+    uint8_t *ring;
+    long long since;   // monotonic ms of the last snapshot
+
+    tpacket_hdr *frame(unsigned i) {
+      return (tpacket_hdr *)(ring + i * FrameSize);
+    }
+
+    static void *loop(void *arg) {
+      Capture *c = (Capture *)arg;
+      const unsigned frames = BlockSize / FrameSize * Blocks;
+      unsigned i = 0;
+      for (;;) {
+        __sync_synchronize();
+        if (!(c->frame(i)->tp_status & TP_STATUS_USER)) {
+          pollfd pfd = { c->fd, POLLIN, 0 };
+          if (poll(&pfd, 1, -1) < 0 && errno != EINTR) {
+            DBG("Capture stopped: %s\n", strerror(errno));
+            return NULL;
+          }
+          continue;
+        }
+        // everything the kernel has filled so far, under one lock
+        pthread_mutex_lock(&c->lock);
+        do {
+          tpacket_hdr *h = c->frame(i);
+          const sockaddr_ll *sll = (const sockaddr_ll *)((uint8_t *)h + TPACKET_ALIGN(sizeof(*h)));
+          account(*c->active, (uint8_t *)h + h->tp_mac, h->tp_snaplen, h->tp_len,
+                  sll->sll_pkttype == PACKET_OUTGOING);
+          h->tp_status = TP_STATUS_KERNEL;
+          __sync_synchronize();
+          i = (i + 1) % frames;
+        } while (c->frame(i)->tp_status & TP_STATUS_USER);
+        pthread_mutex_unlock(&c->lock);
+      }
+    }
+
+  public:
+    Capture() : active(&tables[0]), fd(-1), ring(NULL), since(0) {
+      pthread_mutex_init(&lock, NULL);
+    }
+
+    bool running() const { return fd >= 0; }
+
+    // opens the socket on the interface and starts the capture thread
+    bool start(int ifindex) {
+      if (fd >= 0) return true;
+      int s = socket(PF_PACKET, SOCK_RAW, htons(ETH_P_ALL));
+      if (s < 0) {
+        DBG("No packet socket: %s\n", strerror(errno));
+        return false;
+      }
+      sock_filter code[] = { BPF_STMT(BPF_RET | BPF_K, Snap) };
+      sock_fprog prog = { 1, code };
+      tpacket_req req = { BlockSize, Blocks, FrameSize, BlockSize / FrameSize * Blocks };
+      sockaddr_ll sll;
+      memset(&sll, 0, sizeof(sll));
+      sll.sll_family = AF_PACKET;
+      sll.sll_protocol = htons(ETH_P_ALL);
+      sll.sll_ifindex = ifindex;
+      void *m = MAP_FAILED;
+      if (setsockopt(s, SOL_SOCKET, SO_ATTACH_FILTER, &prog, sizeof(prog)) < 0
+          || setsockopt(s, SOL_PACKET, PACKET_RX_RING, &req, sizeof(req)) < 0
+          || (m = mmap(0, BlockSize * Blocks, PROT_READ | PROT_WRITE, MAP_SHARED, s, 0)) == MAP_FAILED
+          || bind(s, (sockaddr *)&sll, sizeof(sll)) < 0) {
+        DBG("Could not capture on %d: %s\n", ifindex, strerror(errno));
+        if (m != MAP_FAILED) munmap(m, BlockSize * Blocks);
+        close(s);
+        return false;
+      }
+      fd = s;
+      ring = (uint8_t *)m;
+      since = monotonic_ms();
+      if (pthread_create(&thread, 0, loop, this) != 0) {
+        DBG("Failed to start capture thread: %s\n", strerror(errno));
+        munmap(ring, BlockSize * Blocks);
+        close(s);
+        fd = -1;
+        ring = NULL;
+        return false;
+      }
+      pthread_detach(thread);
+      return true;
+    }
+
+    /**
+     * Swaps the tables and returns the one counted since the last snapshot,
+     * valid until the next one. ms is how long it was counted, drops the
+     * frames the kernel dropped for lack of buffer in that time.
+     */
+    const Table &snapshot(long long &ms, unsigned &drops) {
+      Table *next = (active == &tables[0]) ? &tables[1] : &tables[0];
+      next->clear(); // the thread only writes to the active one
+      pthread_mutex_lock(&lock);
+      Table *done = active;
+      active = next;
+      pthread_mutex_unlock(&lock);
+      long long now = monotonic_ms();
+      ms = now - since;
+      since = now;
+      tpacket_stats st;
+      socklen_t sl = sizeof(st);
+      drops = (getsockopt(fd, SOL_PACKET, PACKET_STATISTICS, &st, &sl) == 0) ? st.tp_drops : 0;
+      return *done;
+    }
+  };
+};
+
+#endif // INCLUDED_TRAFFIC_HH
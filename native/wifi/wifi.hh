@@ -22,6 +22,10 @@
 #include <stdlib.h>
 #include <errno.h>
 #include <ctype.h>
+#include <pthread.h>
+#include <fcntl.h>
+#include <poll.h>
+#include <sys/inotify.h>
 
 #include <log.hh>
 
@@ -82,10 +86,16 @@ namespace Wifi {
   }
 
 
+  // commands come from the main loop and the event thread
+  static pthread_mutex_t cmdLock = PTHREAD_MUTEX_INITIALIZER;
+
   // from core/jni/android_net_wifi_Wifi.cpp
   bool doCommand(const char *cmd, char *replybuf, int replybuflen) {
     size_t len = replybuflen - 1;
-    if (::wifi_command(cmd, replybuf, &len) != 0) {
+    pthread_mutex_lock(&cmdLock);
+    int ret = ::wifi_command(cmd, replybuf, &len);
+    pthread_mutex_unlock(&cmdLock);
+    if (ret != 0) {
       return false;
     } else {
       // Strip off trailing newline
@@ -107,8 +117,9 @@ namespace Wifi {
   bool doBoolCommand(const char *cmd, const char *expect = "OK") {
     char reply[256];
     if (doCommand(cmd, reply, sizeof(reply))) {
+      // not fatal here, the caller decides, see serve() in main.cc
       if (strcmp(reply, expect) != 0)
-      ERR("received unexpected reply '%s'\n", reply);
+        DBG("received unexpected reply '%s'\n", reply);
 
       return (strcmp(reply, expect) == 0);
     } else {
@@ -116,28 +127,67 @@ namespace Wifi {
     }
   }
 
+  // set before the supplicant goes away, so the event loop exits quietly
+  static volatile bool shuttingDown = false;
+
   void shutdown() {
+    shuttingDown = true;
     ::wifi_close_supplicant_connection();
     stop_supplicant();
   }
 
-  bool init() {
+  // Watches the directories where the control socket may appear,
+  // so that a retry happens as soon as it is created.
+  struct SocketWatch {
+    int fd;
+    SocketWatch() {
+      fd = inotify_init();
+      if (fd < 0) return;
+      fcntl(fd, F_SETFL, O_NONBLOCK);
+      static const char * dirs[] = { ANDROID_SOCKET_DIR, "/data/misc/wifi/sockets",
+                                     "/data/system/wpa_supplicant", 0 };
+      for (const char **d = dirs; *d; ++d)
+        inotify_add_watch(fd, *d, IN_CREATE | IN_ATTRIB | IN_MOVED_TO);
+    }
+    ~SocketWatch() { if (fd >= 0) close(fd); }
+
+    void wait(int timeout_ms) {
+      if (fd < 0) {
+        usleep(timeout_ms * 1000);
+        return;
+      }
+      pollfd pfd = { fd, POLLIN, 0 };
+      if (poll(&pfd, 1, timeout_ms) > 0) {
+        char buf[512];
+        while (read(fd, buf, sizeof(buf)) > 0);
+      }
+    }
+  };
+
+  // connects as soon as the socket is there, retrying with backoff until the deadline
+  bool connect_to_supplicant(int timeout_ms) {
+    SocketWatch watch;
+    long long deadline = monotonic_ms() + timeout_ms;
+    int backoff = 5; // ms, for when the socket exists but nobody listens yet
+    while (true) {
+      if (::wifi_connect_to_supplicant() == 0)
+        return true;
+      long long left = deadline - monotonic_ms();
+      if (left <= 0)
+        return false;
+      watch.wait(left < backoff ? (int)left : backoff);
+      if (backoff < 100) backoff *= 2;
+    }
+  }
+
+  bool init(int timeout_ms = 1000) {
     if (!start_supplicant()) {
       ERR("Failed to start supplicant: %s\n", strerror(errno));
       return false;
     }
     LOG("wpa_supplicant started\n");
 
-    // try to connect to supplicant 3 times
-    bool connected = false;
-    for (int i = 0; i < 3; ++i) {
-      if (::wifi_connect_to_supplicant() == 0) {
-        connected = true;
-        break;
-      }
-      usleep(100000); // 100ms
-    }
-    if (!connected) {
+    if (!connect_to_supplicant(timeout_ms)) {
       ERR("Failed to connect to supplicant: %s\n", strerror(errno));
       return false;
     }
@@ -174,7 +224,7 @@ namespace Wifi {
 #define SET(X...) \
     snprintf(buf, sizeof(buf), X); \
     if (!doBoolCommand(buf, "OK")) { \
-      ERR("Failed to %s", buf); \
+      DBG("Failed to %s\n", buf); \
       return false; \
     }
 
@@ -195,6 +245,20 @@ namespace Wifi {
     return true;
   }
 
+  bool setEssid(int netid, const char *essid) {
+    char buf[256];
+    SET("SET_NETWORK %d ssid \"%s\"", netid, essid);
+    return true;
+  }
+
+  bool setFrequency(int netid, int freq) {
+    char buf[256];
+    SET("SET_NETWORK %d frequency %d", netid, freq);
+    return true;
+  }
+
+#undef SET
+
   static bool firstAttempt = true;
 
   bool assoc() {
@@ -206,35 +270,101 @@ namespace Wifi {
     firstAttempt = false;
 
     if (doBoolCommand("REASSOCIATE", "OK")) {
-#if 0
-      char buf[256];
+      return true;
+    }
+    DBG("Failed to REASSOCIATE\n");
+    return true; // FIXME: don't ignore this error
+  }
 
-      while(false) { // FIXME: actually process events -- but when do these events stop?
-        int nread = ::wifi_wait_for_event(buf, sizeof(buf));
-        if (nread < 0) return false; // failed!
-        // find space
-        char *p = buf;
-        for( ; *p && !isspace(*p); ++p);
-        *p = '\0';
-        if (strcmp(buf, "CTRL-EVENT-CONNECTED") == 0) {
-          // connected! -- we're done
-          return true;
-        }
-        if (strcmp(buf, "CTRL-EVENT-DISCONNECTED") == 0) {
-          // disconnected! -- we're done!
-           //-- or should we reassociate again?
-          return true;
+  /**
+   * Supplicant event loop, runs on its own thread after the first assoc().
+   * Reports typed events on stdout as "WIFI: EVENT <type> [<addr>]" and
+   * re-associates with exponential backoff after a disconnect.
+   */
+  namespace Events {
+    const int MinBackoff = 250;  // ms
+    const int MaxBackoff = 8000; // ms
+
+    static pthread_t thread;
+    // set in standby, when disconnects are expected
+    static volatile bool paused = false;
+
+    // returns the rest of buf if it starts with prefix
+    static const char *match(const char *buf, const char *prefix) {
+      size_t len = strlen(prefix);
+      return strncmp(buf, prefix, len) == 0 ? buf + len : 0;
+    }
+
+    // copies the first MAC address found after "after" into addr[18]
+    static void findAddr(const char *s, const char *after, char *addr) {
+      addr[0] = '\0';
+      const char *p = after ? strstr(s, after) : s;
+      if (!p) return;
+      p += after ? strlen(after) : 0;
+      while (*p == ' ') ++p;
+      if (strlen(p) >= 17 && p[2] == ':' && p[14] == ':') {
+        memcpy(addr, p, 17);
+        addr[17] = '\0';
+      }
+    }
+
+    static bool associated() {
+      char reply[1024];
+      if (!doCommand("STATUS", reply, sizeof(reply)))
+        return false;
+      return strstr(reply, "wpa_state=COMPLETED") != 0;
+    }
+
+    static void *loop(void *) {
+      char buf[256];
+      char addr[18];
+      int backoff = MinBackoff;
+      while (true) {
+        int nread = ::wifi_wait_for_event(buf, sizeof(buf) - 1);
+        if (shuttingDown)
+          break;
+        if (nread < 0) {
+          ERR("Lost connection to supplicant\n");
+          break;
         }
-        if (strcmp(buf, "CTRL-EVENT-TERMINATING") == 0) {
-          // bam, this is not good
-          return false;
+        buf[nread] = '\0';
+        const char *p;
+        if ((p = match(buf, "CTRL-EVENT-CONNECTED"))) {
+          findAddr(p, " to ", addr);
+          LOG("EVENT CONNECTED %s\n", addr);
+          backoff = MinBackoff;
+        } else if ((p = match(buf, "CTRL-EVENT-DISCONNECTED"))) {
+          LOG("EVENT DISCONNECTED\n");
+          if (paused)
+            continue;
+          usleep(backoff * 1000);
+          // events are not read while sleeping, so ask before rejoining
+          if (!paused && !associated()) {
+            DBG("reassociating after %d ms\n", backoff);
+            doBoolCommand("REASSOCIATE", "OK");
+          }
+          if (backoff < MaxBackoff) backoff *= 2;
+        } else if ((p = match(buf, "IBSS-RSN-COMPLETED"))) {
+          findAddr(p, 0, addr);
+          LOG("EVENT PEER %s\n", addr);
+        } else if (match(buf, "CTRL-EVENT-TERMINATING")) {
+          ERR("wpa_supplicant terminated\n");
+          break;
+        } else {
+          DBG("event: %s\n", buf);
         }
       }
-#endif
+      return 0;
+    }
+
+    bool start() {
+      if (pthread_create(&thread, 0, loop, 0) != 0) {
+        ERR("Failed to start event thread: %s\n", strerror(errno));
+        return false;
+      }
+      pthread_detach(thread);
       return true;
     }
-    ERR("Failed to REASSOCIATE\n");
-    return true; // FIXME: don't ignore this error
   }
 
 };
@@ -39,6 +39,7 @@ public abstract class AdHocActivity extends Activity {
     final static int DLG_ASSETS = 4;
     final static int DLG_STARTING = 5;
     final static int DLG_STOPPING = 6;
+    final static int DLG_DRIVER = 7;
 	
 	protected AdHocApp adHocApp;
     
@@ -59,6 +60,14 @@ public abstract class AdHocActivity extends Activity {
         Log.i("AdHocActivity", "AdHocActivity distroying... OK!");
     }
     
+    @Override
+    public void onWindowFocusChanged(boolean hasFocus) {
+        super.onWindowFocusChanged(hasFocus);
+        if (hasFocus) {
+            this.adHocApp.reportFirstFrame();
+        }
+    }
+
     @Override
     protected void onResume() {
         super.onResume();
@@ -157,6 +166,19 @@ public abstract class AdHocActivity extends Activity {
                 })
                 .create();
         }
+        else if (id == DLG_DRIVER) {
+        	return (new AlertDialog.Builder(this))
+                .setIcon(android.R.drawable.ic_dialog_alert)
+                .setTitle(this.getString(R.string.driverErrorTitle))
+                .setMessage(this.getString(R.string.driverErrorMessage))
+                .setNegativeButton("Close", new DialogInterface.OnClickListener() {
+//                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                    	removeDialog(DLG_DRIVER);
+                    }
+                })
+                .create();
+        }
         else if (id == DLG_STARTING) {
         	ProgressDialog progressDialog = new ProgressDialog(this);
 	    	progressDialog.setTitle(this.getString(R.string.adhocStarting));
@@ -18,6 +18,10 @@
 
 package android.adhoc;
 
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
@@ -25,6 +29,8 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.net.wifi.WifiManager;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 import android.widget.Toast;
@@ -38,29 +44,48 @@ public class AdHocApp extends android.app.Application {
     public final static int ERROR_OTHER = 2;
     public final static int ERROR_SUPPLICANT = 3;
     public final static int ERROR_ASSETS = 4;
+    public final static int ERROR_DRIVER = 5;
+    public final static int ERROR_KILLED = 6;
 
     final static int NOTIFY_RUNNING = 0;
     final static int NOTIFY_ERROR = 1;
     
     private SharedPreferences prefs;
-    private AdHocService adHocService = null;
+    private ConfigSnapshot config = null;
+    private int configVersion = 0;
+    private volatile AdHocService adHocService = null;
+    private final ServiceState serviceState = new ServiceState();
     private AdHocActivity adHocActivity = null;
     private WifiManager wifiManager;
-    private boolean previousWifiState;
+    private volatile boolean previousWifiState;
     private Toast toast;
     private NotificationManager notificationManager;
     private Notification notification;
     private Notification notificationError;
+    private StartupTrace startupTrace;
+    private StagedInit.Task defaults;
+    private StagedInit.Task ready;
+    private long createdAt;
+    private volatile long timeToReady = -1;
+    private long timeToFirstFrame = -1;
+    private final AtomicIntegerArray errors = new AtomicIntegerArray(ERROR_KILLED + 1);
+    private String statsPort = null;
+    private String statsAddress = null;
+    private StatsServer statsServer = null;
+    // native process kept in warm standby between stop and start
+    private Process standbyProcess = null;
+    private OutputPump standbyPump = null;
 	
     
     @Override
     public void onCreate() {
         super.onCreate();
+        this.createdAt = SystemClock.uptimeMillis();
         Log.d(TAG, String.format(getString(R.string.creating), this.getClass().getSimpleName()));
         NativeHelper.setup(this, getString(R.string.missedAssetsFiles));
+        this.startupTrace = new StartupTrace(getDir("log", MODE_PRIVATE));
         
         app_name = getString(R.string.app_name);
-        PreferenceManager.setDefaultValues(this, R.xml.preferences, false);
         this.prefs = PreferenceManager.getDefaultSharedPreferences(this);
 
         this.notificationManager = (NotificationManager) this.getSystemService(Context.NOTIFICATION_SERVICE);
@@ -76,17 +101,84 @@ public class AdHocApp extends android.app.Application {
         this.notificationError.flags = Notification.FLAG_AUTO_CANCEL;
 
         this.wifiManager = (WifiManager) this.getSystemService(Context.WIFI_SERVICE);
-        if (this.previousWifiState = this.wifiManager.isWifiEnabled()) {
-        	this.wifiManager.setWifiEnabled(false);
-        }
+        this.startInit();
         Log.d(TAG, String.format(getString(R.string.created), this.getClass().getSimpleName()));
-        
-        if (!NativeHelper.unzipAssets(this)) {
-            Log.e(TAG, getString(R.string.unpackerr));
-           this.adHocFailed(ERROR_ASSETS);
+    }
+
+    /**
+     * The slow part of onCreate: disk and system service calls, off the main thread.
+     * The service waits for getReady() before it starts the native process.
+     */
+    private void startInit() {
+        final Handler handler = new Handler();
+        StagedInit init = new StagedInit();
+        StagedInit.Task assets = init.add("assets", new StagedInit.Step() {
+            public boolean run() {
+                if (NativeHelper.unzipAssets(AdHocApp.this)) {
+                    return true;
+                }
+                Log.e(TAG, getString(R.string.unpackerr));
+                handler.post(new Runnable() {
+                    public void run() {
+                        adHocFailed(ERROR_ASSETS);
+                    }
+                });
+                return false;
+            }
+        });
+        this.defaults = init.add("defaults", new StagedInit.Step() {
+            public boolean run() {
+                PreferenceManager.setDefaultValues(AdHocApp.this, R.xml.preferences, false);
+                return true;
+            }
+        });
+        StagedInit.Task wifi = init.add("wifi", new StagedInit.Step() {
+            public boolean run() {
+                if (previousWifiState = wifiManager.isWifiEnabled()) {
+                    wifiManager.setWifiEnabled(false);
+                }
+                return true;
+            }
+        });
+        this.ready = init.add("ready", new StagedInit.Step() {
+            public boolean run() {
+                timeToReady = SystemClock.uptimeMillis() - createdAt;
+                Log.i(TAG, String.format(getString(R.string.timeToReady), timeToReady));
+                return true;
+            }
+        }, assets, this.defaults, wifi);
+        init.add("stats", new StagedInit.Step() {
+            public boolean run() {
+                setStatsPort(prefs.getString(getString(R.string.lan_stats), null));
+                return true;
+            }
+        }, this.defaults);
+        init.shutdown();
+    }
+
+    /** Called by the first activity once its window is drawn. */
+    void reportFirstFrame() {
+        if (this.timeToFirstFrame < 0) {
+            this.timeToFirstFrame = SystemClock.uptimeMillis() - this.createdAt;
+            Log.i(TAG, String.format(getString(R.string.timeToFirstFrame), this.timeToFirstFrame));
         }
     }
 
+    /** @return ms from onCreate to the first drawn frame, -1 if not yet */
+    long getTimeToFirstFrame() {
+        return this.timeToFirstFrame;
+    }
+
+    /** @return ms from onCreate until startup work was done, -1 if not yet */
+    long getTimeToReady() {
+        return this.timeToReady;
+    }
+
+    /** Done when assets are unpacked, defaults set and the Wifi Manager is off. */
+    StagedInit.Task getReady() {
+        return this.ready;
+    }
+
     @Override
     public void onTerminate() {
     	Log.i("AdHocApp", "AdHocApp distroying...");
@@ -94,18 +186,24 @@ public class AdHocApp extends android.app.Application {
         	Log.e(TAG, getString(R.string.stopAppRunningService));
             this.stopAdHoc();
         }
+        this.dropStandby();
+        this.setStatsPort(null);
         super.onTerminate();
         Log.i("AdHocApp", "AdHocApp distroying... OK!");
     }
     
     
-    protected void pickUpNewIP() {
+    /**
+     * Records the address the native side claimed. It is derived from the MAC
+     * in the subnet of lan_gw and checked for duplicates, see native/include/addr.hh.
+     */
+    void setIPAddress(String ip) {
     	SharedPreferences.Editor e = prefs.edit();
-    	String ipFormat = getString(R.string.ipFormat);
-    	ipFormat = String.format(ipFormat, (int)(Math.random()*255), (int)(Math.random()*255));
-    	e.putString(getString(R.string.lan_gw), ipFormat);
+    	e.putString(getString(R.string.lan_gw), ip);
     	e.commit();
-    	Log.i(TAG, "Generated IP: " + ipFormat);
+    	this.invalidateConfig();
+    	Log.i(TAG, "Claimed IP: " + ip);
+    	this.startStats();
 	}
     
     public void setAdHocActivity(AdHocActivity adHocActivity) {
@@ -118,13 +216,15 @@ public class AdHocApp extends android.app.Application {
     
     public void setLanWext(boolean value) {
     	this.prefs.edit().putBoolean(this.getString(R.string.lan_wext), value).commit();
+    	this.invalidateConfig();
         this.updateToast(this.getString(R.string.lanWextTryAgain), true);
 	}
     
     public void startAdHoc() {
+    	boolean warm = this.hasStandby();
+    	this.startupTrace.begin(warm);
     	this.notificationManager.cancel(NOTIFY_ERROR);
     	this.adHocActivity.showDialog(AdHocActivity.DLG_STARTING);
-    	this.pickUpNewIP();
     	if (this.adHocService == null) {
             this.startService(new Intent(this, AdHocService.class));
         }
@@ -137,10 +237,27 @@ public class AdHocApp extends android.app.Application {
         }
     }
     
+    /** Safe to read from any thread. */
+    ServiceState getServiceState() {
+        return this.serviceState;
+    }
+
+    /** @return the running service, or null; safe to read from any thread */
+    AdHocService getAdHocService() {
+        return this.adHocService;
+    }
+
     protected int getAdHocServiceState() {
     	return this.adHocService==null ? AdHocService.STATE_STOPPED : this.adHocService.getState();
     }
 
+    /**
+     * @return true if the running service applied the change, no restart needed
+     */
+    boolean applySetting(String key, String value) {
+        return this.adHocService != null && this.adHocService.applySetting(key, value);
+    }
+
     public boolean isRunning() {
         return getAdHocServiceState() == AdHocService.STATE_RUNNING;
     }
@@ -149,9 +266,133 @@ public class AdHocApp extends android.app.Application {
 		this.adHocUpdated(this.getAdHocServiceState());
 	}
 
+    /**
+     * Whether a stopped native process may stay loaded for a fast restart.
+     * Not if the Wifi Manager needs the driver back when we stop.
+     */
+    boolean canKeepWarm() {
+        return this.getConfig().isChecked(this.getString(R.string.lan_warm)) && !this.previousWifiState;
+    }
+
+    synchronized void parkStandby(Process process, OutputPump pump) {
+        this.dropStandby();
+        this.standbyProcess = process;
+        this.standbyPump = pump;
+    }
+
+    synchronized boolean hasStandby() {
+        return this.standbyProcess != null && !this.standbyPump.hasExited();
+    }
+
+    /**
+     * @return the process in standby, or null. Its pump is in takeStandbyPump().
+     */
+    synchronized Process takeStandby() {
+        Process p = this.standbyProcess;
+        if (p != null && this.standbyPump.hasExited()) {
+            this.dropStandby();
+            return null;
+        }
+        this.standbyProcess = null;
+        return p;
+    }
+
+    synchronized OutputPump takeStandbyPump() {
+        OutputPump pump = this.standbyPump;
+        this.standbyPump = null;
+        return pump;
+    }
+
+    /** Fully stops the process in standby, if any. */
+    synchronized void dropStandby() {
+        if (this.standbyProcess != null) {
+            new ProcessStopper(null, this.standbyProcess, this.standbyPump).start();
+        }
+        this.standbyProcess = null;
+        this.standbyPump = null;
+    }
+
+    StartupTrace getStartupTrace() {
+        return this.startupTrace;
+    }
+
+    /** @return how many times adHocFailed(error) was called */
+    int getErrors(int error) {
+        return this.errors.get(error);
+    }
+
+    /** @param port the lan_stats preference, off if empty */
+    synchronized void setStatsPort(String port) {
+        this.statsPort = port;
+        this.statsAddress = null;
+        this.startStats();
+    }
+
+    /**
+     * (Re)starts the metrics endpoint on the lan address, see StatsServer.
+     * It can only listen there once the address is configured, so this is
+     * called again when the service is up and when an address is claimed.
+     * It belongs to the app rather than the service, so a failure can still
+     * be seen while the interface is up.
+     */
+    synchronized void startStats() {
+        String address = this.getIPAdress();
+        if (this.statsServer != null && address.equals(this.statsAddress)) {
+            return;
+        }
+        if (this.statsServer != null) {
+            this.statsServer.stop();
+            this.statsServer = null;
+        }
+        int p = 0;
+        try {
+            if (this.statsPort != null && this.statsPort.length() > 0) {
+                p = Integer.parseInt(this.statsPort);
+            }
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "Bad stats port: " + this.statsPort);
+        }
+        if (p <= 0 || p > 65535) {
+            return;
+        }
+        try {
+            // a literal address, no lookup
+            StatsServer server = new StatsServer(InetAddress.getByName(address), p, new ServiceMetrics(this));
+            server.start();
+            this.statsServer = server;
+            this.statsAddress = address;
+            Log.i(TAG, "Metrics on " + address + ":" + server.getPort());
+        } catch (IOException e) {
+            // e.g. the address is not up yet
+            Log.w(TAG, "No metrics on " + address + ":" + p + ": " + e.getMessage());
+        }
+    }
+
     protected String getIPAdress() {
     	return prefs.getString(this.getString(R.string.lan_gw), "127.0.0.1");
     }
+
+    /**
+     * @return the current configuration, built on first use after a change.
+     * Waits for the preference defaults, so on the main thread only once
+     * getReady() is done.
+     */
+    synchronized ConfigSnapshot getConfig() {
+        if (this.config == null) {
+            this.defaults.await(); // normally long done
+            this.config = ConfigSnapshot.build(this, this.prefs, this.configVersion);
+        }
+        return this.config;
+    }
+
+    /**
+     * A preference changed. Called from onPreferenceChange, before the new
+     * value is stored, so the snapshot is only rebuilt on the next getConfig.
+     */
+    synchronized void invalidateConfig() {
+        this.config = null;
+        ++this.configVersion;
+    }
     
     
     // AdHocService Notifications
@@ -173,13 +414,18 @@ public class AdHocApp extends android.app.Application {
         this.adHocService.startForegroundCompat(NOTIFY_RUNNING, notification);
         
         Log.d(TAG, this.getString(R.string.adhocStarted));
+        this.startStats(); // the lan address is configured by now
     }
 
-    public void adHocStopped() {
+    /**
+     * @param exitStatus exit status of the native process, -1 if unknown
+     * @param latency time it took to stop the native process in ms
+     */
+    public void adHocStopped(int exitStatus, long latency) {
     	this.notificationManager.cancel(NOTIFY_RUNNING);
     	this.adHocService = null;
         this.adHocUpdated(AdHocService.STATE_STOPPED);
-        Log.d(TAG, this.getString(R.string.adhocStopped));
+        Log.d(TAG, this.getString(R.string.adhocStopped) + " exit=" + exitStatus + " in " + latency + "ms");
         if (this.previousWifiState) {
         	this.wifiManager.setWifiEnabled(true);
         }
@@ -189,6 +435,7 @@ public class AdHocApp extends android.app.Application {
     }
 
     public void adHocFailed(int error) {
+        this.errors.incrementAndGet(error);
     	try {
     		this.adHocActivity.dismissDialog(AdHocActivity.DLG_STARTING);
     	} catch(Exception e) {}
@@ -204,7 +451,10 @@ public class AdHocApp extends android.app.Application {
             	this.adHocActivity.showDialog(AdHocActivity.DLG_ERROR);
             } else if (error == ERROR_ASSETS) {
             	this.adHocActivity.showDialog(AdHocActivity.DLG_ASSETS);
+            } else if (error == ERROR_DRIVER) {
+            	this.adHocActivity.showDialog(AdHocActivity.DLG_DRIVER);
             }
+            // ERROR_KILLED: nothing to fix in the settings, the notification will do
         }
         if ((this.adHocActivity == null) || !this.adHocActivity.hasWindowFocus()) {
             Log.d(TAG, this.getString(R.string.notifyingError));
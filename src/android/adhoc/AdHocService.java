@@ -18,86 +18,129 @@
 
 package android.adhoc;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.net.InetAddress;
 import java.util.ArrayList;
-import java.util.Map;
 
+import android.app.AlarmManager;
 import android.app.Notification;
+import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.SharedPreferences;
 import android.net.ConnectivityManager;
 import android.net.wifi.WifiManager;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.PowerManager;
-import android.preference.PreferenceManager;
+import android.os.SystemClock;
 import android.util.Log;
 
 
 public class AdHocService extends android.app.Service {
     final static String TAG = "AdHocService";
     
-    private static final int THREAD_OUTPUT	= 0;
-	private static final int THREAD_ERROR	= 1;
     final static int MSG_OUTPUT     = 1;
     final static int MSG_ERROR      = 2;
     final static int MSG_EXCEPTION  = 3;
     final static int MSG_NETSCHANGE = 4;
     final static int MSG_START      = 5;
     final static int MSG_STOP       = 6;
-    public final static int STATE_FAILED  = -1;
-    public final static int STATE_STOPPED  = 0;
-    public final static int STATE_STARTING = 1;
-    public final static int STATE_RUNNING  = 2;
+    final static int MSG_STOPPED    = 7;
+    final static int MSG_LINK       = 8;
+    final static int MSG_RESPONSE   = 9;
+    final static int MSG_ROUTE      = 10;
+    final static String WAKE_ACTION = "android.adhoc.WAKE";
+    public final static int STATE_FAILED   = ServiceState.FAILED;
+    public final static int STATE_STOPPED  = ServiceState.STOPPED;
+    public final static int STATE_STARTING = ServiceState.STARTING;
+    public final static int STATE_RUNNING  = ServiceState.RUNNING;
     
     private AdHocApp adHocApp;
-    private int state = STATE_STOPPED;
+    private ServiceState state;
     private Process process = null;
-    private Thread[] threads = new Thread[2];
+    private OutputPump pump = null;
+    private NativeControl control = null;
+    private ProcessStopper stopper = null;
+    private boolean stopRequested = false;
+    private boolean startDeferred = false; // MSG_START waits for the app, see getReady()
+    private int linkUps = 0;
+    private int linkDowns = 0;
+    private int peerJoins = 0;
     private PowerManager.WakeLock wakeLock;
+    private WakeBudget wakeBudget;
+    private PendingIntent wakeIntent;
     private WifiManager wifiManager;
     private Method mStartForeground = null;
-    public static AdHocService singleton = null;  // WARNING: this is not entirely safe
    
     
-    private class OutputMonitor implements Runnable {
-    	final private int bufferedSize = 8192;
-        private final java.io.BufferedReader br;
-        private final int msg;
-        public OutputMonitor(int msgType, java.io.InputStream is) {
-            br = new java.io.BufferedReader(new java.io.InputStreamReader(is), bufferedSize);
-            msg = msgType;
-        }
-        public void run() {
-            try{
-                String line;
-                do {
-                    line = br.readLine();
-                    mHandler.obtainMessage(msg, line).sendToTarget(); // NOTE: the last null is also sent!
-                } while(line != null);
-            } catch (Exception e) {
-                mHandler.obtainMessage(MSG_EXCEPTION, e).sendToTarget();
-            }
-        }
-    }
-
-    
     private final Handler mHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
         	handle(msg);
         }
     };
+
+    private final LinkStats linkStats = new LinkStats(mHandler);
+    private final ChannelPlanner channelPlanner = new ChannelPlanner(mHandler, linkStats);
+    private final PeerTraffic peerTraffic = new PeerTraffic(mHandler);
+    private final NetsCoalescer nets = new NetsCoalescer(new NetsCoalescer.Clock() {
+        public long now() {
+            return SystemClock.uptimeMillis();
+        }
+    }, new NetsCoalescer.Poster() {
+        public void post(long delay) {
+            mHandler.sendEmptyMessageDelayed(MSG_NETSCHANGE, delay);
+        }
+    });
+    private NeighborDiscovery discovery = null;
+    private MeshRouter router = null;
+
+    // route changes from the router thread, { cmd, dst, gw, metric },
+    // collected so that a recomputation goes out as few netlink transactions
+    private final ArrayList<int[]> pendingRoutes = new ArrayList<int[]>();
+
+    private final MeshRouter.RouteSink routeSink = new MeshRouter.RouteSink() {
+        public void addRoute(int dst, int gw, int hops) {
+            queue(new int[] { NativeControl.CMD_ADD_ROUTE, dst, gw, hops });
+        }
+        public void delRoute(int dst, int gw) {
+            queue(new int[] { NativeControl.CMD_DEL_ROUTE, dst, gw, 0 });
+        }
+        private void queue(int[] route) {
+            synchronized (pendingRoutes) {
+                if (pendingRoutes.isEmpty()) {
+                    mHandler.sendEmptyMessage(MSG_ROUTE);
+                }
+                pendingRoutes.add(route);
+            }
+        }
+    };
+
+    private final NeighborDiscovery.Listener peerLogger = new NeighborDiscovery.Listener() {
+        public void onPeer(int event, long mac, int ip) {
+            Log.d(TAG, "neighbor " + (event == NeighborDiscovery.PEER_DOWN ? "down " : "up ")
+                    + NeighborDiscovery.formatMac(mac) + " " + NeighborDiscovery.formatIp(ip));
+            wakeBudget.poke();
+        }
+    };
     
+    private final BroadcastReceiver wakeReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            wakeBudget.update();
+        }
+    };
+
     private BroadcastReceiver connectivityReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            mHandler.sendEmptyMessage(MSG_NETSCHANGE);
+            nets.offer();
         }
     };
 
@@ -107,7 +150,6 @@ public class AdHocService extends android.app.Service {
     	super.onCreate();
     	Log.d(TAG, String.format(this.getString(R.string.creating), this.getClass().getSimpleName()));
     	
-    	singleton = this;
         this.wifiManager = (WifiManager) this.getSystemService(Context.WIFI_SERVICE);
         
         try {
@@ -117,15 +159,19 @@ public class AdHocService extends android.app.Service {
         	this.mStartForeground = null;
         }
 
-        this.state = STATE_STOPPED;
         this.adHocApp = (AdHocApp) this.getApplication();
+        this.state = this.adHocApp.getServiceState();
+        this.fire(ServiceState.EVENT_CREATE, null);
         this.adHocApp.setAdHocService(this);
         this.mHandler.sendEmptyMessage(MSG_START);
         
-        // Unlock recive UDP ports
+        // Unlock recive UDP ports, all the time or duty-cycled, see WakeBudget
         PowerManager pm = (PowerManager) this.getSystemService(Context.POWER_SERVICE);
         this.wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "AdHocService");
-        this.wakeLock.acquire();
+        this.wakeLock.setReferenceCounted(false);
+        this.wakeBudget = this.createWakeBudget();
+        this.wakeBudget.setPinned(true);
+        this.wakeBudget.start(0); // the configured period once the app is ready, see MSG_START
 
         IntentFilter filter = new IntentFilter();
         filter.addAction(WifiManager.WIFI_STATE_CHANGED_ACTION);
@@ -137,18 +183,74 @@ public class AdHocService extends android.app.Service {
     @Override
     public void onDestroy() {
     	Log.d(TAG, String.format(getString(R.string.stopping), this.getClass().getSimpleName()));
+    	// a start still waiting for the app must not run on a destroyed service
+    	this.mHandler.removeMessages(MSG_START);
+    	this.adHocApp.getReady().cancelNotify(this.mHandler, MSG_START);
     	this.mHandler.sendEmptyMessage(MSG_STOP);
+    	Log.i(TAG, String.format(getString(R.string.netsSummary), this.nets.received, this.nets.dropped(),
+    	        this.nets.commandsSent, this.nets.commandsSuppressed));
 
-        this.wakeLock.release();
+        Log.i(TAG, String.format(getString(R.string.wakeSummary), this.wakeBudget.getHeldMs(0) / 1000,
+                this.wakeBudget.getWakeups(0)));
+        this.wakeBudget.stop();
         try {
             unregisterReceiver(connectivityReceiver);
+            unregisterReceiver(wakeReceiver);
         } catch (Exception e) {
         }
 
-        singleton = null;
         super.onDestroy();
     }
 
+    private WakeBudget createWakeBudget() {
+        final AlarmManager am = (AlarmManager) this.getSystemService(Context.ALARM_SERVICE);
+        this.wakeIntent = PendingIntent.getBroadcast(this, 0, new Intent(WAKE_ACTION), 0);
+        registerReceiver(wakeReceiver, new IntentFilter(WAKE_ACTION));
+        return new WakeBudget(new WakeBudget.Clock() {
+            public long now() {
+                return System.currentTimeMillis();
+            }
+        }, new WakeBudget.Lock() {
+            public void acquire() {
+                wakeLock.acquire();
+            }
+            public void release() {
+                wakeLock.release();
+            }
+        }, new WakeBudget.Alarm() {
+            public void set(long time) {
+                am.set(AlarmManager.RTC_WAKEUP, time, wakeIntent);
+            }
+            public void cancel() {
+                am.cancel(wakeIntent);
+            }
+        });
+    }
+
+    /**
+     * Sets the duty cycle of the wake lock and stretches the protocol timers
+     * to it, so that peers and routes outlive the sleep between windows.
+     */
+    private void setPowerPeriod(long period) {
+        this.wakeBudget.setPeriod(period);
+        period = this.wakeBudget.getPeriod(); // 0 if too short to sleep
+        if (this.discovery != null) {
+            this.discovery.setPeriod(period);
+        }
+        if (this.router != null) {
+            this.router.setPeriod(period);
+        }
+    }
+
+    /** @return the duty cycle in ms for a lan_power value in seconds, 0 for always awake */
+    private long getPowerPeriod(String value) {
+        try {
+            return (value == null) ? 0 : Long.parseLong(value) * 1000;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return null;
@@ -157,32 +259,29 @@ public class AdHocService extends android.app.Service {
     private void handle(Message msg) {
         switch (msg.what) {
         case MSG_EXCEPTION:
-            if (this.state == STATE_STOPPED || this.state == STATE_FAILED) {
+            if (!this.state.can(ServiceState.EVENT_EXCEPTION)) {
             	return;
             }
             Throwable thr = (Throwable)msg.obj;
             Log.e(TAG, "", thr);
             this.stopNativeProcess();
-            this.state = STATE_FAILED;
+            this.fire(ServiceState.EVENT_EXCEPTION, thr.toString());
             break;
         case MSG_ERROR:
-            if (this.state == STATE_STOPPED || this.state == STATE_FAILED || this.process == null) {
+            if (!this.state.can(ServiceState.EVENT_ERROR) || this.process == null) {
             	return;
             }
             if (msg.obj != null) {
                 String line = (String)msg.obj;
                 String errorFormat = this.getString(R.string.error);
                 Log.e(TAG, String.format(errorFormat, line));
-                if ((this.state == STATE_STARTING)) {
-                    if (NativeHelper.isRootError(line)) {
-                        this.adHocApp.adHocFailed(AdHocApp.ERROR_ROOT);
-                    }
-                    else if (NativeHelper.isSupplicantError(line)) {
-                    	this.adHocApp.adHocFailed(AdHocApp.ERROR_SUPPLICANT);
-                    }
-                    else {
-                    	this.adHocApp.adHocFailed(AdHocApp.ERROR_OTHER);
-                    }
+                if (this.state.get() == STATE_STARTING) {
+                    // already classified by the OutputPump
+                    this.adHocApp.adHocFailed(msg.arg1);
+                }
+                else if (msg.arg1 == AdHocApp.ERROR_KILLED) {
+                    // the only classification that means the same once running
+                    this.adHocApp.adHocFailed(AdHocApp.ERROR_KILLED);
                 }
                 else {
                 	this.adHocApp.adHocFailed(AdHocApp.ERROR_OTHER);
@@ -191,57 +290,110 @@ public class AdHocService extends android.app.Service {
             else {
             	this.stopNativeProcess();
             }
-			this.state = STATE_FAILED;
+            this.fire(ServiceState.EVENT_ERROR, msg.obj == null ? "exited" : (String)msg.obj);
             break;
         case MSG_OUTPUT:
-            if (this.state == STATE_STOPPED || this.state == STATE_FAILED || this.process == null){
+            if (!this.state.can(ServiceState.EVENT_ERROR) || this.process == null) {
             	return;
             }
             String line = (String)msg.obj;
             if (line == null) {
                 break; // ignore it, wait for MSG_ERROR(null)
             }
-            else if (NativeHelper.isWifiOK(line)) {
-                if (this.state == STATE_STARTING) {
-                	this.state = STATE_RUNNING;
-                    String startedFormat = this.getString(R.string.started);
-                    Log.d(TAG, String.format(startedFormat, this.getClass().getSimpleName()));
-                    this.adHocApp.adHocStarted();
+            // the OutputPump only forwards WIFI: OK, other lines are logged there
+            if (this.fire(ServiceState.EVENT_OK, null)) {
+                String startedFormat = this.getString(R.string.started);
+                Log.d(TAG, String.format(startedFormat, this.getClass().getSimpleName()));
+                this.adHocApp.adHocStarted();
+                this.linkStats.clear();
+                this.linkStats.start(this.control);
+                this.peerTraffic.start(this.control);
+                this.startDiscovery(line);
+            }
+            break;
+        case MSG_LINK:
+            if (this.state.get() != STATE_RUNNING) {
+                return;
+            }
+            this.wakeBudget.poke();
+            Log.i(TAG, (String)msg.obj);
+            switch (msg.arg1) {
+            case NativeClassifier.EVENT_LINK_UP:
+                ++this.linkUps;
+                break;
+            case NativeClassifier.EVENT_LINK_DOWN:
+                ++this.linkDowns; // the native side re-associates by itself
+                break;
+            case NativeClassifier.EVENT_PEER:
+                ++this.peerJoins;
+                break;
+            case NativeClassifier.EVENT_ADDR:
+                String ip = ((String)msg.obj).substring(NativeClassifier.ADDR_PREFIX.length()).trim();
+                this.adHocApp.setIPAddress(ip);
+                if (this.discovery != null) {
+                    this.discovery.setAddress(NeighborDiscovery.parseIp(ip));
+                }
+                if (this.router != null) {
+                    this.startRouter(); // routes are keyed by our address
                 }
+                break;
             }
-            else {
-            	Log.i(TAG, line);
+            return;
+        case MSG_RESPONSE:
+            // no poke: most responses answer our own polls, which would keep
+            // the lock held forever; see liveCallback
+            if (this.control != null) {
+                this.control.onResponse((String)msg.obj);
             }
-            break;
+            return;
+        case MSG_ROUTE:
+            this.wakeBudget.poke();
+            this.applyRoutes();
+            return;
         case MSG_START:
-        	if (this.state != STATE_STOPPED && this.state != STATE_FAILED) {
+        	if (!this.state.can(ServiceState.EVENT_START)) {
         		return;
         	}
     		String startingFormat = this.getString(R.string.starting);
             Log.d(TAG, String.format(startingFormat, this.getClass().getSimpleName()));
 
-            if (!NativeHelper.existAssets(this)) {
+            StagedInit.Task ready = this.adHocApp.getReady();
+            if (!ready.isDone()) {
+                // app still starting up, come back here when it is done
+                this.startDeferred = true;
+                ready.notifyWhenDone(this.mHandler, MSG_START);
+                break;
+            }
+            this.startDeferred = false;
+            if (!ready.succeeded() || !NativeHelper.existAssets(this)) {
             	String format = this.getString(R.string.assetsProblem);
                 Log.e(TAG, String.format(format, this.getClass().getSimpleName()));
-                this.state = STATE_FAILED;
+                this.fire(ServiceState.EVENT_NO_ASSETS, null);
                 break;
             }
-            this.state = STATE_STARTING;
+            this.adHocApp.getStartupTrace().mark(StartupTrace.PHASE_SERVICE);
+            this.setPowerPeriod(this.getPowerPeriod(this.adHocApp.getConfig().get(getString(R.string.lan_power), null)));
+            this.fire(ServiceState.EVENT_START, null);
+            // the broadcasts may have come and gone while we waited for the app
+            this.nets.offer();
             break;
         case MSG_NETSCHANGE:
-        	if (this.state == STATE_STOPPED || this.state == STATE_FAILED) {
+        	this.nets.onProcessed();
+        	int current = this.state.get();
+        	if (current == STATE_STOPPED || current == STATE_FAILED) {
         		return;
         	}
             int wifiState = this.wifiManager.getWifiState();
             String proccesID = this.process == null ? "null" : this.process.toString();
             String formatString = this.getString(R.string.netschange);
-            String formatedString = String.format(formatString, wifiState, this.state, proccesID); 
+            String formatedString = String.format(formatString, wifiState, current, proccesID); 
             Log.d(TAG, formatedString);
             if (wifiState == WifiManager.WIFI_STATE_DISABLED) {
-            	if ((this.state == STATE_STARTING) && (this.process == null)) {
-            		if (!this.startNativeProcess()) {
+            	if ((current == STATE_STARTING) && (this.process == null) && (this.stopper == null)) {
+            		this.adHocApp.getStartupTrace().mark(StartupTrace.PHASE_WIFI_OFF);
+            		if (!this.resumeNativeProcess() && !this.startNativeProcess()) {
                         Log.e(TAG, this.getString(R.string.starterr));
-                        this.state = STATE_FAILED;
+                        this.fire(ServiceState.EVENT_ERROR, "exec");
                         break;
                     }
                 }
@@ -250,95 +402,275 @@ public class AdHocService extends android.app.Service {
             	if (wifiState == WifiManager.WIFI_STATE_DISABLING || wifiState == WifiManager.WIFI_STATE_ENABLING) {
             		break;
             	}
-            	if (this.state == STATE_RUNNING) {
+            	if (current == STATE_RUNNING) {
                 	this.adHocApp.updateToast(this.getString(R.string.conflictwifi), true);
                     Log.w(TAG, this.getString(R.string.conflictwifi));
                     this.stopNativeProcess();
                     Log.d(TAG, this.getString(R.string.restarting));
-                    this.wifiManager.setWifiEnabled(false);
-                    this.state = STATE_STARTING;
+                    this.setWifiEnabled(false, wifiState);
+                    this.fire(ServiceState.EVENT_CONFLICT, null);
                 }
-                else if (this.state == STATE_STARTING) {
+                else if (current == STATE_STARTING) {
                 	if (wifiState == WifiManager.WIFI_STATE_UNKNOWN) {
-                		this.wifiManager.setWifiEnabled(true);
+                		this.setWifiEnabled(true, wifiState);
                 	}
                 	else if (wifiState == WifiManager.WIFI_STATE_ENABLED) {
                     	this.adHocApp.updateToast(this.getString(R.string.disablewifi), false);
-                        this.wifiManager.setWifiEnabled(false);
+                        this.setWifiEnabled(false, wifiState);
                         Log.d(TAG, this.getString(R.string.waitwifi));
                     }
                 }
             }
             break;
         case MSG_STOP:
-            if (this.state == STATE_STOPPED) {
+            if (this.startDeferred) {
+                // stopped before the app was ready: nothing started, nothing to stop
+                this.startDeferred = false;
+                this.adHocStopped(ProcessStopper.EXIT_UNKNOWN, 0);
+                break;
+            }
+            if (!this.state.can(ServiceState.EVENT_STOP)) {
             	return;
             }
+            if (this.state.get() == STATE_RUNNING && this.adHocApp.canKeepWarm() && this.parkNativeProcess()) {
+                this.fire(ServiceState.EVENT_STOP, "parked");
+                this.adHocStopped(ProcessStopper.EXIT_UNKNOWN, 0);
+                break;
+            }
             this.stopNativeProcess();
-            if (this.state != STATE_FAILED) {
-            	this.state = STATE_STOPPED;
+            this.fire(ServiceState.EVENT_STOP, null); // a failure stays failed
+            if (this.stopper == null) {
+                this.adHocStopped(ProcessStopper.EXIT_UNKNOWN, 0);
+            } else {
+                this.stopRequested = true; // wait for MSG_STOPPED
+            }
+            break;
+        case MSG_STOPPED:
+            ProcessStopper done = (ProcessStopper)msg.obj;
+            if (done != this.stopper) {
+                return;
+            }
+            this.stopper = null;
+            if (done.how == ProcessStopper.STOP_HUNG) {
+                Log.e(TAG, this.getString(R.string.dirtystop));
+            } else {
+                Log.i(TAG, String.format(getString(R.string.nativeProcess), done.exitStatus));
+            }
+            Log.i(TAG, String.format(getString(R.string.nativeStopLatency), done.latency, done.how));
+            if (this.stopRequested) {
+                this.adHocStopped(done.exitStatus, done.latency);
+            } else if (this.state.get() == STATE_STARTING) {
+                // restarting, the new process may start now
+                this.nets.offer();
             }
-            this.adHocApp.adHocStopped();
-        	String stoppedFormat = this.getString(R.string.stopped);
-            Log.d(TAG, String.format(stoppedFormat, this.getClass().getSimpleName()));
             break;
         }
-        this.adHocApp.adHocUpdated(this.state);
-        if (this.state == STATE_FAILED) {
+        int state = this.state.get();
+        this.wakeBudget.setPinned(state != STATE_RUNNING);
+        if (state == STATE_FAILED) {
+            this.adHocApp.getStartupTrace().cancel();
+        }
+        this.adHocApp.adHocUpdated(state);
+        if (state == STATE_FAILED) {
         	this.stopSelf();
         }
     }
-    
+
+    private void setWifiEnabled(boolean enable, int wifiState) {
+        if (this.nets.shouldSend(enable, wifiState)) {
+            this.wifiManager.setWifiEnabled(enable);
+        }
+    }
+
+    /** @return whether the event was accepted, see ServiceState */
+    private boolean fire(int event, String cause) {
+        if (!this.state.fire(event, cause)) {
+            return false;
+        }
+        Log.d(TAG, this.state.snapshot().last.toString());
+        return true;
+    }
+
+    NetsCoalescer getNetsCoalescer() {
+        return this.nets;
+    }
+
+    /** @return the wake lock budget, null before onCreate set it up */
+    WakeBudget getWakeBudget() {
+        return this.wakeBudget;
+    }
 
     public int getState() {
-        return state;
+        return this.state.get();
     }
-    
-    protected String[] getEnvironmentFromPrefs() {
-    	ArrayList<String> envlist = new ArrayList<String>();
-
-    	Map<String, String> env = System.getenv();
-    	for (String envName : env.keySet()) {
-    		envlist.add(envName + "=" + env.get(envName));
-    	}
-
-    	PreferenceManager.setDefaultValues(this, R.xml.preferences, false);
-    	SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-
-    	final int[] ids = SettingsActivity.prefids;
-    	for (int i = 0; i < ids.length; ++i) {
-    		String k = getString(ids[i]);
-    		String v = prefs.getString(k, null);
-    		if (v != null && v.length() != 0) {
-    			// TODO some chars need to be escaped, but this seems to add "" to the ESSID name
-    			envlist.add("brncl_" + k + "=" + v);
-    		}
-    	}
-    	// not included in prefids are checkboxes
-    	final int[] checks = SettingsActivity.checks;
-    	for (int i = 0; i < checks.length; ++i) {
-    		String k = getString(checks[i]);
-    		if (prefs.getBoolean(k, false))
-    			envlist.add("brncl_" + k + "=1");
-    	}
-    	envlist.add("brncl_path=" + NativeHelper.app_bin.getAbsolutePath());
-
-    	String[] ret = (String[]) envlist.toArray(new String[0]);
-    	for (String s : ret) {
-    		Log.i(TAG, "set env: " + s);
-    	}
-    	return ret;
+
+    public int getLinkUps() {
+        return linkUps;
+    }
+
+    public int getLinkDowns() {
+        return linkDowns;
     }
 
+    public int getPeerJoins() {
+        return peerJoins;
+    }
+
+    LinkStats getLinkStats() {
+        return linkStats;
+    }
+
+    /** @return the running neighbor discovery, or null */
+    NeighborDiscovery getNeighborDiscovery() {
+        return discovery;
+    }
+
+    // line is "WIFI: OK <iface> <mac>"
+    private void startDiscovery(String line) {
+        String[] parts = line.split(" ");
+        long mac = parts.length > 3 ? NeighborDiscovery.parseMac(parts[3]) : -1;
+        if (mac < 0) {
+            Log.w(TAG, "no MAC, neighbor discovery disabled: " + line);
+            return;
+        }
+        try {
+            discovery = new NeighborDiscovery(parts[2], mac,
+                    NeighborDiscovery.parseIp(adHocApp.getIPAdress()),
+                    InetAddress.getByName(NeighborDiscovery.GROUP), NeighborDiscovery.PORT);
+            discovery.addListener(peerLogger);
+            discovery.setPeriod(wakeBudget.getPeriod());
+            discovery.start();
+        } catch (IOException e) {
+            Log.e(TAG, "", e);
+            discovery = null;
+        }
+        if (adHocApp.getConfig().isChecked(getString(R.string.lan_mesh))) {
+            startRouter();
+        }
+        if ("0".equals(adHocApp.getConfig().get(getString(R.string.lan_channel), null))) {
+            channelPlanner.start(control);
+        }
+    }
+
+    /**
+     * @return a transport for group and port on the LAN interface, not yet
+     *         started, or null if we are not running
+     */
+    MeshTransport createTransport(InetAddress group, int port, MeshTransport.Listener listener) {
+        if (discovery == null) {
+            return null;
+        }
+        return new MeshTransport(discovery.getInterface(), group, port,
+                NeighborDiscovery.parseIp(adHocApp.getIPAdress()), listener);
+    }
+
+    /**
+     * @return a started reliable channel for group and port, see
+     *         ReliableMulticast, or null if we are not running
+     */
+    ReliableMulticast createReliable(InetAddress group, int port, int fecK,
+            ReliableMulticast.Listener listener) throws IOException {
+        ReliableMulticast rm = new ReliableMulticast(
+                NeighborDiscovery.parseIp(adHocApp.getIPAdress()), fecK, listener);
+        MeshTransport t = createTransport(group, port, rm);
+        if (t == null) {
+            return null;
+        }
+        rm.start(t);
+        return rm;
+    }
+
+    /** @return the busiest peers, see PeerTraffic */
+    PeerTraffic getPeerTraffic() {
+        return peerTraffic;
+    }
+
+    /** @return the channel planner, running if lan_channel is Auto */
+    ChannelPlanner getChannelPlanner() {
+        return channelPlanner;
+    }
+
+    /** @return the running router, or null if multi-hop is off */
+    MeshRouter getRouter() {
+        return router;
+    }
+
+    private void startRouter() {
+        stopRouter();
+        String iface = (discovery != null) ? discovery.getInterface() : null;
+        router = new MeshRouter(NeighborDiscovery.parseIp(adHocApp.getIPAdress()), routeSink);
+        router.setPeriod(wakeBudget.getPeriod());
+        try {
+            router.start(iface, InetAddress.getByName(NeighborDiscovery.GROUP));
+        } catch (IOException e) {
+            Log.e(TAG, "", e);
+            router = null;
+        }
+    }
+
+    // in order, consecutive changes of the same kind go out together
+    private void applyRoutes() {
+        int[][] pending;
+        synchronized (pendingRoutes) {
+            pending = pendingRoutes.toArray(new int[pendingRoutes.size()][]);
+            pendingRoutes.clear();
+        }
+        if (this.control == null) {
+            return; // the routes went away with the interface
+        }
+        int[] run = new int[3 * pending.length];
+        int n = 0;
+        try {
+            for (int i = 0; i < pending.length; ++i) {
+                System.arraycopy(pending[i], 1, run, 3 * n++, 3);
+                if (i + 1 == pending.length || pending[i + 1][0] != pending[i][0]) {
+                    this.control.routes(pending[i][0], run, n, null);
+                    n = 0;
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "", e);
+        }
+    }
+
+    private void stopRouter() {
+        if (router != null) {
+            router.stop();
+            router = null;
+        }
+    }
+
+    private void stopMonitors() {
+        channelPlanner.stop();
+        peerTraffic.stop();
+        stopRouter();
+        if (discovery != null) {
+            discovery.stop();
+            discovery = null;
+        }
+        linkStats.stop();
+        if (linkStats.count() > 0) {
+            Log.d(TAG, String.format(getString(R.string.linkSummary), linkStats.count(),
+                    linkStats.percentile(LinkStats.FIELD_LEVEL, 0.5),
+                    linkStats.percentile(LinkStats.FIELD_LEVEL, 0.1),
+                    linkStats.percentile(LinkStats.FIELD_BITRATE, 0.5)));
+        }
+    }
+    
     private boolean startNativeProcess() {
     	String cmd = NativeHelper.SU_C;
         try {
         	Runtime runtime = Runtime.getRuntime();
-            process = runtime.exec(cmd, getEnvironmentFromPrefs(), NativeHelper.app_bin);
-            threads[THREAD_OUTPUT] = new Thread(new OutputMonitor(MSG_OUTPUT, process.getInputStream()));
-            threads[THREAD_ERROR] = new Thread(new OutputMonitor(MSG_ERROR, process.getErrorStream()));
-            threads[THREAD_OUTPUT].start();
-            threads[THREAD_ERROR].start();
+            ConfigSnapshot config = this.adHocApp.getConfig();
+            Log.d(TAG, String.format(getString(R.string.configVersion), config.version, config.size()));
+            process = runtime.exec(cmd, config.getEnvironment(), NativeHelper.app_bin);
+            String script = config.get(getString(R.string.lan_script), "");
+            StartupTrace trace = this.adHocApp.getStartupTrace();
+            trace.mark(StartupTrace.PHASE_EXEC);
+            pump = new OutputPump(mHandler, process, NativeClassifier.Rules.forScript(script),
+                    trace, this.getString(R.string.error));
+            control = new NativeControl(process.getOutputStream());
+            pump.start();
         } catch (Exception e) {
         	String failedFormat = this.getString(R.string.failed);
         	Log.e(TAG, String.format(getString(R.string.execerr), cmd));
@@ -348,31 +680,125 @@ public class AdHocService extends android.app.Service {
         return true;
     }
 
+    /**
+     * Puts the running native process in standby: it leaves the IBSS but keeps
+     * the driver and supplicant, and is handed to AdHocApp for the next start.
+     */
+    private boolean parkNativeProcess() {
+        if (process == null) {
+            return false;
+        }
+        stopMonitors();
+        try {
+            control.standby(null);
+        } catch (IOException e) {
+            Log.e(TAG, "", e);
+            return false;
+        }
+        pump.setHandler(null);
+        this.adHocApp.parkStandby(process, pump);
+        Log.i(TAG, getString(R.string.standby));
+        process = null;
+        pump = null;
+        control = null;
+        return true;
+    }
+
+    /**
+     * Takes over a native process in standby, if there is one.
+     * @return false if a cold start is needed
+     */
+    private boolean resumeNativeProcess() {
+        Process p = this.adHocApp.takeStandby();
+        if (p == null) {
+            return false;
+        }
+        OutputPump standbyPump = this.adHocApp.takeStandbyPump();
+        NativeControl c = new NativeControl(p.getOutputStream());
+        try {
+            c.resume(null);
+        } catch (IOException e) {
+            Log.e(TAG, "", e);
+            new ProcessStopper(null, p, standbyPump).start();
+            return false;
+        }
+        Log.i(TAG, getString(R.string.resuming));
+        process = p;
+        control = c;
+        pump = standbyPump;
+        pump.setHandler(mHandler);
+        this.adHocApp.getStartupTrace().mark(StartupTrace.PHASE_EXEC);
+        return true;
+    }
+
+    /**
+     * Hands the process over to a ProcessStopper, which posts MSG_STOPPED when done.
+     */
     private void stopNativeProcess() {
         if (process != null) {
-            if (state != STATE_STOPPED && state != STATE_FAILED) {
-                try {
-                    process.getOutputStream().close();
-                } catch (Exception e) {
-                }
-            }
-            try {
-                process.waitFor();
-            } catch (InterruptedException e) {
+            stopMonitors();
+            stopper = new ProcessStopper(mHandler, process, pump);
+            stopper.start();
+            process = null;
+            pump = null;
+            control = null;
+        }
+    }
+
+    private final NativeControl.Callback liveCallback = new NativeControl.Callback() {
+        public void onResponse(int id, int status, String text) {
+            wakeBudget.poke(); // the user is waiting for this one
+            if (status != NativeControl.STATUS_OK) {
+                Log.w(TAG, "live setting failed: " + status + " " + text);
+                adHocApp.updateToast(getString(R.string.restartneeded), false);
             }
+        }
+    };
 
-            try {
-                int exit_status = process.exitValue();
-                String formatString = getString(R.string.nativeProcess); 
-                Log.i(TAG, String.format(formatString, exit_status));
-            } catch (IllegalThreadStateException e) {
-            	Log.e(TAG, getString(R.string.dirtystop), e);
+    /**
+     * Applies a preference to the running native process, if it supports that.
+     * @return false if a restart is needed for the change to take effect
+     */
+    public boolean applySetting(String key, String value) {
+        if (key.equals(getString(R.string.lan_power))) {
+            this.setPowerPeriod(this.getPowerPeriod(value));
+            return true;
+        }
+        if (this.state.get() != STATE_RUNNING || this.control == null || value == null) {
+            return false;
+        }
+        try {
+            if (key.equals(getString(R.string.lan_channel))) {
+                int channel = Integer.parseInt(value);
+                if (channel == 0) {
+                    this.channelPlanner.start(this.control);
+                    this.channelPlanner.evaluateNow();
+                    return true;
+                }
+                this.channelPlanner.stop();
+                this.control.setChannel(channel, liveCallback);
+            } else if (key.equals(getString(R.string.lan_essid))) {
+                if (value.length() == 0 || value.length() > 32) {
+                    return false;
+                }
+                this.control.setEssid(value, liveCallback);
+            } else {
+                return false;
             }
-            process.destroy();
-            process = null;
-            threads[THREAD_OUTPUT].interrupt();
-            threads[THREAD_ERROR].interrupt();
+        } catch (NumberFormatException e) {
+            return false;
+        } catch (IOException e) {
+            Log.e(TAG, "", e);
+            return false;
         }
+        return true;
+    }
+
+    private void adHocStopped(int exitStatus, long latency) {
+        this.stopRequested = false;
+        this.adHocApp.adHocStopped(exitStatus, latency);
+        String stoppedFormat = this.getString(R.string.stopped);
+        Log.d(TAG, String.format(stoppedFormat, this.getClass().getSimpleName()));
     }
 
     
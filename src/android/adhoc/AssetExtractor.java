@@ -0,0 +1,227 @@
+/*
+*  This file is part of Barnacle Wifi Tether
+*  Copyright (C) 2010 by Szymon Jakubczak
+*
+*  This program is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package android.adhoc;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+import android.util.Log;
+
+
+/**
+ * Extracts assets into a directory, incrementally.
+ *
+ * The manifest in the directory records the stamp of the package the
+ * assets came from, and the size and CRC32 of every extracted file. If the
+ * stamp matches and the files still have their sizes, nothing is read at
+ * all. Otherwise each asset is checksummed and only the ones that differ
+ * are written, to a temporary file which is then renamed over the old one,
+ * so a crash never leaves a truncated binary behind. Permissions are set
+ * only on files that were written.
+ */
+class AssetExtractor {
+    final static String TAG = "AssetExtractor";
+    final static String MANIFEST = ".assets";
+    final static String TMP = ".tmp";
+
+    interface Source {
+        String[] list() throws IOException;
+        InputStream open(String name) throws IOException;
+    }
+
+    interface Permissions {
+        /** called for a freshly written asset, before it is renamed into place */
+        void set(String name, File file);
+    }
+
+    private static class Entry {
+        long size;
+        long crc;
+
+        Entry(long size, long crc) {
+            this.size = size;
+            this.crc = crc;
+        }
+    }
+
+    private final File dir;
+    private final Source source;
+    private final String stamp;
+    private final Permissions permissions;
+
+    // what the last extract() did, for the log
+    int checked = 0;
+    int written = 0;
+
+    /**
+     * @param stamp identifies the package version, e.g. versionCode and lastUpdateTime
+     */
+    AssetExtractor(File dir, Source source, String stamp, Permissions permissions) {
+        this.dir = dir;
+        this.source = source;
+        this.stamp = stamp;
+        this.permissions = permissions;
+    }
+
+    /**
+     * @return true if all assets are in place
+     */
+    boolean extract() throws IOException {
+        checked = 0;
+        written = 0;
+        HashMap<String, Entry> manifest = new HashMap<String, Entry>();
+        String oldStamp = readManifest(manifest);
+        if (stamp.equals(oldStamp) && intact(manifest)) {
+            return true; // the common case
+        }
+
+        HashMap<String, Entry> current = new HashMap<String, Entry>();
+        byte[] buf = new byte[8192];
+        for (String name : source.list()) {
+            // checksum first, reading the package is cheaper than writing flash
+            CRC32 crc = new CRC32();
+            long size = 0;
+            InputStream in = new CheckedInputStream(source.open(name), crc);
+            try {
+                int n;
+                while ((n = in.read(buf)) > 0) {
+                    size += n;
+                }
+            } finally {
+                in.close();
+            }
+            ++checked;
+            Entry e = new Entry(size, crc.getValue());
+            current.put(name, e);
+            Entry old = manifest.get(name);
+            File file = new File(dir, name);
+            if (old != null && old.size == e.size && old.crc == e.crc && file.length() == e.size) {
+                continue;
+            }
+            write(name, file, e);
+            ++written;
+        }
+        writeManifest(current);
+        return true;
+    }
+
+    private boolean intact(HashMap<String, Entry> manifest) {
+        if (manifest.isEmpty()) {
+            return false;
+        }
+        for (String name : manifest.keySet()) {
+            File file = new File(dir, name);
+            if (!file.isFile() || file.length() != manifest.get(name).size) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void write(String name, File file, Entry e) throws IOException {
+        File tmp = new File(dir, name + TMP);
+        CRC32 crc = new CRC32();
+        ReadableByteChannel in = Channels.newChannel(new CheckedInputStream(source.open(name), crc));
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            FileChannel out = fos.getChannel();
+            long pos = 0;
+            long n;
+            while ((n = out.transferFrom(in, pos, e.size - pos)) > 0) {
+                pos += n;
+            }
+            // anything past the size we checksummed means the source changed under us
+            if (pos != e.size || crc.getValue() != e.crc || in.read(ByteBuffer.allocate(1)) != -1) {
+                throw new IOException("asset " + name + " changed while extracting");
+            }
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+            in.close();
+        }
+        if (permissions != null) {
+            permissions.set(name, tmp);
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("could not rename " + tmp);
+        }
+        Log.i(TAG, "extracted " + name + " (" + e.size + " bytes)");
+    }
+
+    // @return the stamp, or null if there is no readable manifest
+    private String readManifest(HashMap<String, Entry> manifest) {
+        File f = new File(dir, MANIFEST);
+        if (!f.exists()) {
+            return null;
+        }
+        try {
+            BufferedReader r = new BufferedReader(new FileReader(f));
+            try {
+                String stamp = r.readLine();
+                String line;
+                while ((line = r.readLine()) != null) {
+                    String[] parts = line.split(" ");
+                    if (parts.length == 3) {
+                        manifest.put(parts[0], new Entry(Long.parseLong(parts[1]), Long.parseLong(parts[2], 16)));
+                    }
+                }
+                return stamp;
+            } finally {
+                r.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "bad manifest", e);
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "bad manifest", e);
+        }
+        manifest.clear();
+        return null;
+    }
+
+    private void writeManifest(HashMap<String, Entry> manifest) throws IOException {
+        File tmp = new File(dir, MANIFEST + TMP);
+        Writer w = new FileWriter(tmp);
+        try {
+            w.write(stamp + "\n");
+            for (String name : manifest.keySet()) {
+                Entry e = manifest.get(name);
+                w.write(name + " " + e.size + " " + Long.toHexString(e.crc) + "\n");
+            }
+        } finally {
+            w.close();
+        }
+        if (!tmp.renameTo(new File(dir, MANIFEST))) {
+            throw new IOException("could not rename " + tmp);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+*  This file is part of Barnacle Wifi Tether
+*  Copyright (C) 2010 by Szymon Jakubczak
+*
+*  This program is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package android.adhoc;
+
+import java.io.IOException;
+
+import android.os.Handler;
+import android.util.Log;
+
+
+/**
+ * Moves a running mesh off a channel that has become busy, lan_channel = 0.
+ *
+ * The native side scans and decides, see native/wifi/channel.hh; this only
+ * says when. Evaluations happen at wall clock multiples of INTERVAL, so all
+ * nodes look at about the same time, see the same cells and make the same
+ * choice. Nodes that stay behind find our ESSID on the new channel at the
+ * next evaluation and follow. For AVOID_TIME after a move the old channel is
+ * passed as avoid, so the movers are not pulled back by the stragglers.
+ * Runs on the service's handler.
+ */
+class ChannelPlanner implements NativeControl.Callback {
+    final static String TAG = "ChannelPlanner";
+    final static long INTERVAL = 5 * 60 * 1000;
+    final static long AVOID_TIME = 3 * INTERVAL;
+    final static long BUSY_WINDOW = 60 * 1000;
+    final static int CHANNELS = 13;
+
+    private final Handler handler;
+    private final LinkStats stats;
+    private NativeControl control = null;
+    private int scanId = -1;
+    private int channel = 0;
+    private int avoid = 0;
+    private long avoidUntil = 0;
+    private final int[] costs = new int[CHANNELS + 1];
+
+    int scans = 0;
+    int migrations = 0;
+
+    private final Runnable evaluate = new Runnable() {
+        public void run() {
+            evaluateNow();
+            schedule();
+        }
+    };
+
+    ChannelPlanner(Handler handler, LinkStats stats) {
+        this.handler = handler;
+        this.stats = stats;
+    }
+
+    void start(NativeControl control) {
+        this.stop();
+        this.control = control;
+        this.schedule();
+    }
+
+    void stop() {
+        this.handler.removeCallbacks(this.evaluate);
+        this.control = null;
+        this.scanId = -1;
+    }
+
+    boolean isRunning() {
+        return this.control != null;
+    }
+
+    private void schedule() {
+        if (this.control != null) {
+            this.handler.postDelayed(this.evaluate, INTERVAL - System.currentTimeMillis() % INTERVAL);
+        }
+    }
+
+    /** Scans now, outside the schedule, e.g. when the user picks Auto. */
+    void evaluateNow() {
+        if (this.control == null || this.scanId >= 0) {
+            return;
+        }
+        if (System.currentTimeMillis() > this.avoidUntil) {
+            this.avoid = 0;
+        }
+        try {
+            this.scanId = this.control.scan(this.avoid, this.busy(), this);
+            ++this.scans;
+        } catch (IOException e) {
+            Log.e(TAG, "", e);
+        }
+    }
+
+    /** @return percent of transmissions that failed lately, a stand-in for busy time */
+    int busy() {
+        long errors = this.stats.rate(LinkStats.FIELD_TX_ERRORS, BUSY_WINDOW);
+        long total = errors + this.stats.rate(LinkStats.FIELD_TX_PACKETS, BUSY_WINDOW);
+        return (total == 0) ? 0 : (int) (errors * 100 / total);
+    }
+
+    /** @return the channel we are on, 0 if not known yet */
+    int getChannel() {
+        return this.channel;
+    }
+
+    /** @return the cost of channel c at the last scan, see channel.hh */
+    int getCost(int c) {
+        return this.costs[c];
+    }
+
+//    @Override
+    public void onResponse(int id, int status, String text) {
+        if (id != this.scanId) {
+            if (status != NativeControl.STATUS_OK) {
+                Log.w(TAG, "channel change failed: " + status + " " + text);
+            }
+            return;
+        }
+        this.scanId = -1;
+        if (status != NativeControl.STATUS_OK) {
+            Log.w(TAG, "scan failed: " + status + " " + text);
+            return;
+        }
+        String[] parts = text.trim().split(" ");
+        int best;
+        try {
+            best = Integer.parseInt(parts[0]);
+            this.channel = Integer.parseInt(parts[1]);
+            for (int c = 1; c <= CHANNELS && c + 2 < parts.length; ++c) {
+                this.costs[c] = Integer.parseInt(parts[c + 2]);
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "bad scan response: " + text);
+            return;
+        }
+        Log.d(TAG, "scan: " + text);
+        if (best == this.channel || best < 1 || best > CHANNELS || this.control == null) {
+            return;
+        }
+        Log.i(TAG, "moving from channel " + this.channel + " to " + best);
+        try {
+            this.control.setChannel(best, this);
+            this.avoid = this.channel;
+            this.avoidUntil = System.currentTimeMillis() + AVOID_TIME;
+            this.channel = best;
+            ++this.migrations;
+        } catch (IOException e) {
+            Log.e(TAG, "", e);
+        }
+    }
+}
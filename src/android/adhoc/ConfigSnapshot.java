@@ -0,0 +1,132 @@
+/*
+*  This file is part of Barnacle Wifi Tether
+*  Copyright (C) 2010 by Szymon Jakubczak
+*
+*  This program is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package android.adhoc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+
+/**
+ * Immutable view of the preferences in SettingsActivity.prefids and checks,
+ * with the environment of the native process precomputed.
+ *
+ * AdHocApp builds one lazily and drops it when a preference changes, the
+ * version tells snapshots apart. Values are sanitized once here: they reach
+ * the native process through the exec environment, not a shell, so no
+ * quoting is needed, but control characters would corrupt the run script's
+ * environment log and the line-based native output.
+ */
+final class ConfigSnapshot {
+    final static String PREFIX = "brncl_";
+
+    final int version;
+    private final String[] env;
+    private final HashMap<String, String> values = new HashMap<String, String>();
+
+    // the process environment does not change, copy it once
+    private static String[] baseEnv = null;
+
+    private static synchronized String[] baseEnv() {
+        if (baseEnv == null) {
+            Map<String, String> env = System.getenv();
+            ArrayList<String> list = new ArrayList<String>(env.size());
+            for (Map.Entry<String, String> e : env.entrySet()) {
+                list.add(e.getKey() + "=" + e.getValue());
+            }
+            baseEnv = list.toArray(new String[list.size()]);
+        }
+        return baseEnv;
+    }
+
+    private ConfigSnapshot(Context ctx, SharedPreferences prefs, int version, String path) {
+        this.version = version;
+        ArrayList<String> list = new ArrayList<String>();
+        for (String s : baseEnv()) {
+            list.add(s);
+        }
+        for (int id : SettingsActivity.prefids) {
+            String k = ctx.getString(id);
+            String v = sanitize(prefs.getString(k, null));
+            if (v != null && v.length() != 0) {
+                values.put(k, v);
+                list.add(PREFIX + k + "=" + v);
+            }
+        }
+        // not included in prefids are checkboxes
+        for (int id : SettingsActivity.checks) {
+            String k = ctx.getString(id);
+            if (prefs.getBoolean(k, false)) {
+                values.put(k, "1");
+                list.add(PREFIX + k + "=1");
+            }
+        }
+        list.add(PREFIX + "path=" + path);
+        this.env = list.toArray(new String[list.size()]);
+    }
+
+    static ConfigSnapshot build(Context ctx, SharedPreferences prefs, int version) {
+        return new ConfigSnapshot(ctx, prefs, version, NativeHelper.app_bin.getAbsolutePath());
+    }
+
+    /** drops control characters, null stays null */
+    static String sanitize(String v) {
+        if (v == null) {
+            return null;
+        }
+        int i = 0;
+        while (i < v.length() && v.charAt(i) >= 0x20 && v.charAt(i) != 0x7f) {
+            ++i;
+        }
+        if (i == v.length()) {
+            return v; // the common case, no copy
+        }
+        StringBuilder sb = new StringBuilder(v.length());
+        for (i = 0; i < v.length(); ++i) {
+            char c = v.charAt(i);
+            if (c >= 0x20 && c != 0x7f) {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /** the environment for Runtime.exec, shared, do not modify */
+    String[] getEnvironment() {
+        return env;
+    }
+
+    /** number of brncl_ variables */
+    int size() {
+        return values.size() + 1;
+    }
+
+    /** @return the sanitized value, or def if not set */
+    String get(String key, String def) {
+        String v = values.get(key);
+        return (v == null) ? def : v;
+    }
+
+    boolean isChecked(String key) {
+        return values.containsKey(key);
+    }
+}
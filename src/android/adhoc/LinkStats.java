@@ -0,0 +1,205 @@
+/*
+*  This file is part of Barnacle Wifi Tether
+*  Copyright (C) 2010 by Szymon Jakubczak
+*
+*  This program is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package android.adhoc;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import android.os.Handler;
+import android.util.Log;
+
+
+/**
+ * Samples link statistics of the lan interface via NativeControl GET_STATS:
+ * the interface counters from /sys/class/net/<if>/statistics and the wireless
+ * extension quality, signal level, noise and bitrate.
+ *
+ * Samples are kept in a ring of CAPACITY rows in a single long[], one column
+ * per FIELD_*, so sampling allocates nothing but the response line. The
+ * interval doubles (up to MAX_INTERVAL) while the link is idle and drops back
+ * to MIN_INTERVAL on traffic. Handler delays run on uptime, so an idle node in
+ * deep sleep is not woken up to sample.
+ *
+ * Not thread-safe, use it from the service handler only.
+ */
+class LinkStats implements NativeControl.Callback {
+    final static String TAG = "LinkStats";
+
+    // columns, in the order of the GET_STATS response
+    final static int FIELD_TIME       = 0;  // CLOCK_MONOTONIC ms
+    final static int FIELD_RX_BYTES   = 1;
+    final static int FIELD_TX_BYTES   = 2;
+    final static int FIELD_RX_PACKETS = 3;
+    final static int FIELD_TX_PACKETS = 4;
+    final static int FIELD_RX_ERRORS  = 5;
+    final static int FIELD_TX_ERRORS  = 6;
+    final static int FIELD_QUALITY    = 7;
+    final static int FIELD_LEVEL      = 8;  // RSSI, dBm on most drivers
+    final static int FIELD_NOISE      = 9;
+    final static int FIELD_BITRATE    = 10; // kb/s, -1 if unknown
+    final static int FIELDS           = 11;
+
+    final static int CAPACITY = 256;
+    final static long MIN_INTERVAL = 2000;  // ms
+    final static long MAX_INTERVAL = 60000;
+    // below this many bytes per second the link is considered idle
+    final static long IDLE_RATE = 512;
+
+    private final Handler handler;
+    private final long[] ring = new long[CAPACITY * FIELDS];
+    private int head = 0;   // next row to write
+    private int count = 0;
+    private long interval = MIN_INTERVAL;
+    private NativeControl control = null;
+
+    private final Runnable poll = new Runnable() {
+        public void run() {
+            if (control == null) {
+                return;
+            }
+            try {
+                control.getStats(LinkStats.this);
+            } catch (IOException e) {
+                Log.e(TAG, "", e);
+                control = null;
+            }
+        }
+    };
+
+    LinkStats(Handler handler) {
+        this.handler = handler;
+    }
+
+    void start(NativeControl control) {
+        stop();
+        this.control = control;
+        this.interval = MIN_INTERVAL;
+        handler.post(poll);
+    }
+
+    void stop() {
+        control = null;
+        handler.removeCallbacks(poll);
+    }
+
+    void clear() {
+        head = 0;
+        count = 0;
+    }
+
+    // @Override
+    public void onResponse(int id, int status, String text) {
+        if (control == null) {
+            return; // stopped while the request was in flight
+        }
+        if (status == NativeControl.STATUS_OK && record(text)) {
+            long rate = rate(FIELD_RX_BYTES, interval) + rate(FIELD_TX_BYTES, interval);
+            if (count > 1 && rate < IDLE_RATE) {
+                interval = Math.min(interval * 2, MAX_INTERVAL);
+            } else {
+                interval = MIN_INTERVAL;
+            }
+        }
+        handler.postDelayed(poll, interval);
+    }
+
+    private boolean record(String text) {
+        String[] parts = text.split(" ");
+        if (parts.length < FIELDS) {
+            Log.w(TAG, "Bad stats: " + text);
+            return false;
+        }
+        int row = head * FIELDS;
+        try {
+            for (int f = 0; f < FIELDS; ++f) {
+                ring[row + f] = Long.parseLong(parts[f]);
+            }
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Bad stats: " + text);
+            return false;
+        }
+        head = (head + 1) % CAPACITY;
+        if (count < CAPACITY) {
+            ++count;
+        }
+        return true;
+    }
+
+    private int row(int age) {
+        return ((head - 1 - age + CAPACITY) % CAPACITY) * FIELDS;
+    }
+
+    int count() {
+        return count;
+    }
+
+    long interval() {
+        return interval;
+    }
+
+    /**
+     * @param age 0 for the latest sample
+     */
+    long get(int age, int field) {
+        return ring[row(age) + field];
+    }
+
+    long latest(int field) {
+        return count == 0 ? -1 : get(0, field);
+    }
+
+    /**
+     * Per second rate of a counter over the last window ms (at least the last
+     * two samples). Counter resets, e.g. after a driver reload, give 0.
+     */
+    long rate(int field, long window) {
+        if (count < 2) {
+            return 0;
+        }
+        long now = get(0, FIELD_TIME);
+        int age = 1;
+        while (age < count - 1 && now - get(age, FIELD_TIME) < window) {
+            ++age;
+        }
+        long dt = now - get(age, FIELD_TIME);
+        long dv = get(0, field) - get(age, field);
+        if (dt <= 0 || dv < 0 || get(age, field) < 0) {
+            return 0;
+        }
+        return dv * 1000 / dt;
+    }
+
+    /**
+     * Percentile of a gauge (FIELD_QUALITY, _LEVEL, _NOISE, _BITRATE) over the
+     * samples in the ring.
+     * @return Long.MIN_VALUE if there are no samples
+     */
+    long percentile(int field, double q) {
+        if (count == 0) {
+            return Long.MIN_VALUE;
+        }
+        long[] values = new long[count];
+        for (int age = 0; age < count; ++age) {
+            values[age] = get(age, field);
+        }
+        Arrays.sort(values);
+        int rank = (int) Math.ceil(q * count) - 1;
+        return values[Math.max(0, Math.min(rank, count - 1))];
+    }
+}
@@ -0,0 +1,750 @@
+/*
+*  This file is part of Barnacle Wifi Tether
+*  Copyright (C) 2010 by Szymon Jakubczak
+*
+*  This program is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package android.adhoc;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+
+/**
+ * Proactive link-state routing in the style of OLSR with ETX link metrics.
+ *
+ * Every node sends a HELLO to its one-hop neighbors every HELLO_INTERVAL,
+ * listing the neighbors it hears with the link quality in both directions.
+ * From the HELLOs each node learns its two-hop neighborhood and selects
+ * MPRs, a small set of neighbors that covers all two-hop neighbors. TC
+ * messages, listing a node's links and their costs, are flooded through
+ * the mesh, but only MPRs forward them, which keeps control traffic low in
+ * dense cells.
+ *
+ * The route to every node is the least ETX path (Dijkstra over the
+ * neighbor, two-hop and TC links). Only the differences to the routes
+ * already installed are passed to the RouteSink, and only for nodes more
+ * than one hop away: direct neighbors are covered by the subnet route.
+ *
+ * Messages, big endian, addresses are IPv4 as int:
+ *   header: magic(2) version(1) type(1) ttl(1) hops(1) seq(2) originator(4) sender(4)
+ *   HELLO:  count(2) then count x [ ip(4) lq(1) nlq(1) flags(1) ]
+ *   TC:     ansn(2) count(2) then count x [ ip(4) cost(2) ]
+ *
+ * While the wake lock is duty-cycled (see WakeBudget) messages only go out
+ * in the wake windows, so neighbors and topology are held for one period
+ * more than usual.
+ *
+ * The engine (receive, tick) does no I/O of its own beyond the Transport,
+ * so several instances can be wired together in a simulation. start()
+ * runs it over multicast on its own thread.
+ */
+class MeshRouter implements Runnable {
+    final static String TAG = "MeshRouter";
+
+    final static int PORT = 4178;
+
+    final static int MAGIC = 0xBA7F;
+    final static int VERSION = 1;
+    final static int TYPE_HELLO = 1;
+    final static int TYPE_TC = 2;
+    final static int HEADER_SIZE = 16;
+    final static int HELLO_ENTRY = 7;
+    final static int TC_ENTRY = 6;
+    final static int MAX_MESSAGE = 1400;
+    final static int MAX_TTL = 32;
+
+    final static int FLAG_SYM = 1; // we hear each other
+    final static int FLAG_MPR = 2; // the sender selected this neighbor as MPR
+
+    final static long HELLO_INTERVAL = 2000; // ms
+    final static long TC_INTERVAL = 5000;
+    final static long TC_MIN_INTERVAL = 1000; // for triggered TCs
+    final static long NEIGHBOR_HOLD = 3 * HELLO_INTERVAL;
+    final static long TOPOLOGY_HOLD = 3 * TC_INTERVAL;
+    final static long DUPLICATE_HOLD = 30000;
+    final static long RECOMPUTE_DELAY = 200; // batches changes
+
+    final static int LQ_WINDOW = 16;  // HELLOs
+    final static int COST_SCALE = 256; // ETX 1.0
+    final static int MAX_COST = 0xffff;
+
+    interface Transport {
+        void send(byte[] b, int len) throws IOException;
+    }
+
+    interface RouteSink {
+        /** sets the route to dst via gw, a route via another gw is deleted first */
+        void addRoute(int dst, int gw, int hops);
+        void delRoute(int dst, int gw);
+    }
+
+    private static class Neighbor {
+        int lastSeq = -1;
+        int window = 0;        // bit i set if the HELLO i back was received
+        int expected = 0;      // HELLOs the window covers, up to LQ_WINDOW
+        int lq = 0;            // how well we hear them, 0..255
+        int nlq = 0;           // how well they hear us, from their HELLO
+        boolean symmetric = false;
+        boolean mprSelector = false; // they selected us
+        long expires;
+        int[] twoHop = EMPTY;
+        int[] twoHopCost = EMPTY;
+
+        int cost() {
+            return symmetric ? etx(lq, nlq) : MAX_COST;
+        }
+    }
+
+    private static class Topology {
+        int ansn;
+        int[] dests;
+        int[] costs;
+        long expires;
+    }
+
+    static class Route {
+        final int gw;
+        final int cost;
+        final int hops;
+
+        Route(int gw, int cost, int hops) {
+            this.gw = gw;
+            this.cost = cost;
+            this.hops = hops;
+        }
+    }
+
+    private final static int[] EMPTY = new int[0];
+
+    private final int self;
+    private final RouteSink sink;
+    private Transport transport;
+
+    private final HashMap<Integer, Neighbor> neighbors = new HashMap<Integer, Neighbor>();
+    private final HashMap<Integer, Topology> topology = new HashMap<Integer, Topology>();
+    // originator -> { last seq, expiry }
+    private final HashMap<Integer, long[]> duplicates = new HashMap<Integer, long[]>();
+    private HashSet<Integer> mprs = new HashSet<Integer>();
+    private HashMap<Integer, Route> routes = new HashMap<Integer, Route>();
+
+    private int seq = 0;
+    private int ansn = 0;
+    private long nextHello = 0;
+    private long nextTc = 0;
+    private long recomputeAt = Long.MAX_VALUE;
+    private long period = 0;
+    private final byte[] out = new byte[MAX_MESSAGE];
+
+    // control overhead, for the stats
+    private long bytesSent = 0;
+    private long messagesSent = 0;
+    private long messagesForwarded = 0;
+
+    private MulticastSocket socket = null;
+    private Thread thread = null;
+    private volatile boolean running = false;
+
+    MeshRouter(int self, RouteSink sink) {
+        this.self = self;
+        this.sink = sink;
+    }
+
+    /** for simulations, start() sets up its own */
+    synchronized void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    /** @param period duty cycle of the wake lock in ms, 0 if always awake */
+    synchronized void setPeriod(long period) {
+        this.period = period;
+    }
+
+    static int etx(int lq, int nlq) {
+        if (lq <= 0 || nlq <= 0) {
+            return MAX_COST;
+        }
+        return (int) Math.min(MAX_COST, (long) COST_SCALE * 255 * 255 / (lq * nlq));
+    }
+
+    // hysteresis, so link quality jitter does not trigger TCs and route changes
+    private static boolean significant(int oldCost, int newCost) {
+        if (oldCost == newCost) {
+            return false;
+        }
+        if (oldCost >= MAX_COST || newCost >= MAX_COST) {
+            return true;
+        }
+        return Math.abs(newCost - oldCost) * 4 > oldCost;
+    }
+
+    // 16-bit sequence numbers, RFC 1982 style
+    private static boolean newer(int a, int b) {
+        int d = (a - b) & 0xffff;
+        return d != 0 && d < 0x8000;
+    }
+
+    /**
+     * Processes one message.
+     */
+    synchronized void receive(byte[] b, int len, long now) {
+        if (len < HEADER_SIZE || getShort(b, 0) != MAGIC || b[2] != VERSION) {
+            return;
+        }
+        int type = b[3];
+        int originator = getInt(b, 8);
+        if (originator == self) {
+            return;
+        }
+        if (type == TYPE_HELLO) {
+            hello(b, len, originator, getShort(b, 6), now);
+        } else if (type == TYPE_TC) {
+            tc(b, len, originator, now);
+        }
+    }
+
+    private void hello(byte[] b, int len, int originator, int s, long now) {
+        Neighbor n = neighbors.get(originator);
+        if (n == null) {
+            n = new Neighbor();
+            neighbors.put(originator, n);
+        }
+        int gap = (n.lastSeq < 0) ? 1 : (s - n.lastSeq) & 0xffff;
+        if (gap == 0) {
+            return; // duplicate
+        }
+        int oldCost = n.cost();
+        if (gap > LQ_WINDOW) {
+            gap = LQ_WINDOW; // long outage or restart, forget the history
+            n.window = 0;
+        }
+        n.lastSeq = s;
+        n.window = (n.window << gap) | 1;
+        n.expected = Math.min(LQ_WINDOW, n.expected + gap);
+        n.lq = Integer.bitCount(n.window & ((1 << LQ_WINDOW) - 1)) * 255 / n.expected;
+        n.expires = now + NEIGHBOR_HOLD + period;
+
+        boolean wasSelector = n.mprSelector;
+        n.symmetric = false;
+        n.mprSelector = false;
+        n.nlq = 0;
+        int count = Math.min(getShort(b, HEADER_SIZE), (len - HEADER_SIZE - 2) / HELLO_ENTRY);
+        int[] twoHop = new int[count];
+        int[] twoHopCost = new int[count];
+        int k = 0;
+        for (int i = 0, off = HEADER_SIZE + 2; i < count; ++i, off += HELLO_ENTRY) {
+            int ip = getInt(b, off);
+            int lq = b[off + 4] & 0xff;
+            int nlq = b[off + 5] & 0xff;
+            int flags = b[off + 6];
+            if (ip == self) {
+                n.nlq = lq; // their reception of us
+                n.symmetric = true;
+                n.mprSelector = (flags & FLAG_MPR) != 0;
+            } else if ((flags & FLAG_SYM) != 0) {
+                twoHop[k] = ip;
+                twoHopCost[k] = etx(lq, nlq);
+                ++k;
+            }
+        }
+        boolean changed = significant(oldCost, n.cost()) || k != n.twoHop.length;
+        for (int i = 0; !changed && i < k; ++i) {
+            changed = twoHop[i] != n.twoHop[i] || significant(n.twoHopCost[i], twoHopCost[i]);
+        }
+        if (k != count) {
+            int[] t = new int[k];
+            int[] c = new int[k];
+            System.arraycopy(twoHop, 0, t, 0, k);
+            System.arraycopy(twoHopCost, 0, c, 0, k);
+            twoHop = t;
+            twoHopCost = c;
+        }
+        n.twoHop = twoHop;
+        n.twoHopCost = twoHopCost;
+        if (changed) {
+            topologyChanged(now, true);
+        } else if (wasSelector != n.mprSelector) {
+            nextTc = Math.min(nextTc, now + TC_MIN_INTERVAL);
+        }
+    }
+
+    private void tc(byte[] b, int len, int originator, long now) {
+        if (len < HEADER_SIZE + 4) {
+            return;
+        }
+        int s = getShort(b, 6);
+        long[] dup = duplicates.get(originator);
+        if (dup != null && !newer(s, (int) dup[0])) {
+            return;
+        }
+        if (dup == null) {
+            dup = new long[2];
+            duplicates.put(originator, dup);
+        }
+        dup[0] = s;
+        dup[1] = now + DUPLICATE_HOLD;
+
+        int a = getShort(b, HEADER_SIZE);
+        Topology t = topology.get(originator);
+        if (t == null || !newer(t.ansn, a)) {
+            int count = Math.min(getShort(b, HEADER_SIZE + 2), (len - HEADER_SIZE - 4) / TC_ENTRY);
+            int[] dests = new int[count];
+            int[] costs = new int[count];
+            for (int i = 0, off = HEADER_SIZE + 4; i < count; ++i, off += TC_ENTRY) {
+                dests[i] = getInt(b, off);
+                costs[i] = getShort(b, off + 4);
+            }
+            boolean changed = (t == null) || !Arrays.equals(t.dests, dests)
+                || !Arrays.equals(t.costs, costs);
+            if (t == null) {
+                t = new Topology();
+                topology.put(originator, t);
+            }
+            t.ansn = a;
+            t.dests = dests;
+            t.costs = costs;
+            t.expires = now + TOPOLOGY_HOLD + period;
+            if (changed) {
+                topologyChanged(now, false);
+            }
+        }
+
+        // MPR flooding: forward only what our MPR selectors send
+        int sender = getInt(b, 12);
+        Neighbor n = neighbors.get(sender);
+        int ttl = b[4] & 0xff;
+        if (n != null && n.symmetric && n.mprSelector && ttl > 1 && len <= MAX_MESSAGE) {
+            System.arraycopy(b, 0, out, 0, len);
+            out[4] = (byte) (ttl - 1);
+            out[5] = (byte) ((b[5] & 0xff) + 1);
+            putInt(out, 12, self);
+            if (send(len)) {
+                ++messagesForwarded;
+            }
+        }
+    }
+
+    private void topologyChanged(long now, boolean neighborhood) {
+        recomputeAt = Math.min(recomputeAt, now + RECOMPUTE_DELAY);
+        if (neighborhood) {
+            ansn = (ansn + 1) & 0xffff;
+            nextTc = Math.min(nextTc, now + TC_MIN_INTERVAL);
+        }
+    }
+
+    /**
+     * Expires state, sends due messages and recomputes routes.
+     * @return when to call it again at the latest
+     */
+    synchronized long tick(long now) {
+        expire(now);
+        if (now >= nextHello) {
+            selectMprs();
+            sendHello();
+            nextHello = now + HELLO_INTERVAL;
+        }
+        if (now >= nextTc) {
+            sendTc();
+            nextTc = now + TC_INTERVAL;
+        }
+        if (now >= recomputeAt) {
+            recompute();
+            recomputeAt = Long.MAX_VALUE;
+        }
+        return Math.min(Math.min(nextHello, nextTc), recomputeAt);
+    }
+
+    private void expire(long now) {
+        for (Iterator<Neighbor> it = neighbors.values().iterator(); it.hasNext(); ) {
+            if (it.next().expires <= now) {
+                it.remove();
+                topologyChanged(now, true);
+            }
+        }
+        for (Iterator<Topology> it = topology.values().iterator(); it.hasNext(); ) {
+            if (it.next().expires <= now) {
+                it.remove();
+                topologyChanged(now, false);
+            }
+        }
+        for (Iterator<long[]> it = duplicates.values().iterator(); it.hasNext(); ) {
+            if (it.next()[1] <= now) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Greedy MPR selection (RFC 3626 8.3.1): first the neighbors that are the
+     * only way to some two-hop neighbor, then the ones covering most of the rest.
+     */
+    private void selectMprs() {
+        HashMap<Integer, ArrayList<Integer>> coveredBy = new HashMap<Integer, ArrayList<Integer>>();
+        for (Map.Entry<Integer, Neighbor> e : neighbors.entrySet()) {
+            Neighbor n = e.getValue();
+            if (!n.symmetric) {
+                continue;
+            }
+            for (int ip : n.twoHop) {
+                if (ip == self) {
+                    continue;
+                }
+                Neighbor direct = neighbors.get(ip);
+                if (direct != null && direct.symmetric) {
+                    continue;
+                }
+                ArrayList<Integer> via = coveredBy.get(ip);
+                if (via == null) {
+                    via = new ArrayList<Integer>();
+                    coveredBy.put(ip, via);
+                }
+                via.add(e.getKey());
+            }
+        }
+        HashSet<Integer> selected = new HashSet<Integer>();
+        for (ArrayList<Integer> via : coveredBy.values()) {
+            if (via.size() == 1) {
+                selected.add(via.get(0));
+            }
+        }
+        HashSet<Integer> uncovered = new HashSet<Integer>();
+        for (Map.Entry<Integer, ArrayList<Integer>> e : coveredBy.entrySet()) {
+            boolean covered = false;
+            for (int v : e.getValue()) {
+                covered |= selected.contains(v);
+            }
+            if (!covered) {
+                uncovered.add(e.getKey());
+            }
+        }
+        while (!uncovered.isEmpty()) {
+            int best = 0;
+            int bestCount = 0;
+            int bestCost = MAX_COST + 1;
+            for (Map.Entry<Integer, Neighbor> e : neighbors.entrySet()) {
+                Neighbor n = e.getValue();
+                if (!n.symmetric || selected.contains(e.getKey())) {
+                    continue;
+                }
+                int count = 0;
+                for (int ip : n.twoHop) {
+                    if (uncovered.contains(ip)) {
+                        ++count;
+                    }
+                }
+                if (count > bestCount || (count == bestCount && count > 0 && n.cost() < bestCost)) {
+                    best = e.getKey();
+                    bestCount = count;
+                    bestCost = n.cost();
+                }
+            }
+            if (bestCount == 0) {
+                break;
+            }
+            selected.add(best);
+            for (int ip : neighbors.get(best).twoHop) {
+                uncovered.remove(ip);
+            }
+        }
+        mprs = selected;
+    }
+
+    private void sendHello() {
+        int off = header(TYPE_HELLO, 1) + 2;
+        int count = 0;
+        for (Map.Entry<Integer, Neighbor> e : neighbors.entrySet()) {
+            if (off + HELLO_ENTRY > MAX_MESSAGE) {
+                break;
+            }
+            Neighbor n = e.getValue();
+            int flags = (n.symmetric ? FLAG_SYM : 0) | (mprs.contains(e.getKey()) ? FLAG_MPR : 0);
+            putInt(out, off, e.getKey());
+            out[off + 4] = (byte) n.lq;
+            out[off + 5] = (byte) n.nlq;
+            out[off + 6] = (byte) flags;
+            off += HELLO_ENTRY;
+            ++count;
+        }
+        putShort(out, HEADER_SIZE, count);
+        send(off);
+    }
+
+    private void sendTc() {
+        int off = header(TYPE_TC, MAX_TTL);
+        putShort(out, off, ansn);
+        off += 4;
+        int count = 0;
+        for (Map.Entry<Integer, Neighbor> e : neighbors.entrySet()) {
+            Neighbor n = e.getValue();
+            if (!n.symmetric) {
+                continue;
+            }
+            if (off + TC_ENTRY > MAX_MESSAGE) {
+                break;
+            }
+            putInt(out, off, e.getKey());
+            putShort(out, off + 4, n.cost());
+            off += TC_ENTRY;
+            ++count;
+        }
+        if (count == 0) {
+            return; // nobody to advertise
+        }
+        putShort(out, HEADER_SIZE + 2, count);
+        send(off);
+    }
+
+    private int header(int type, int ttl) {
+        seq = (seq + 1) & 0xffff;
+        putShort(out, 0, MAGIC);
+        out[2] = (byte) VERSION;
+        out[3] = (byte) type;
+        out[4] = (byte) ttl;
+        out[5] = 0;
+        putShort(out, 6, seq);
+        putInt(out, 8, self);
+        putInt(out, 12, self);
+        return HEADER_SIZE;
+    }
+
+    private boolean send(int len) {
+        if (transport == null) {
+            return false;
+        }
+        try {
+            transport.send(out, len);
+            bytesSent += len;
+            ++messagesSent;
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "", e);
+            return false;
+        }
+    }
+
+    /**
+     * Dijkstra from self, then hands the differences to the sink.
+     */
+    private void recompute() {
+        HashMap<Integer, Route> best = new HashMap<Integer, Route>();
+        HashSet<Integer> done = new HashSet<Integer>();
+        // cost in the high bits, node in the low 32
+        PriorityQueue<Long> queue = new PriorityQueue<Long>();
+        for (Map.Entry<Integer, Neighbor> e : neighbors.entrySet()) {
+            int cost = e.getValue().cost();
+            if (cost < MAX_COST) {
+                best.put(e.getKey(), new Route(e.getKey(), cost, 1));
+                queue.add(((long) cost << 32) | (e.getKey() & 0xffffffffL));
+            }
+        }
+        while (!queue.isEmpty()) {
+            long head = queue.poll();
+            int u = (int) head;
+            if (!done.add(u)) {
+                continue;
+            }
+            Route ru = best.get(u);
+            Neighbor n = neighbors.get(u);
+            if (n != null) {
+                relax(best, queue, ru, n.twoHop, n.twoHopCost);
+            }
+            Topology t = topology.get(u);
+            if (t != null) {
+                relax(best, queue, ru, t.dests, t.costs);
+            }
+        }
+        best.remove(self);
+
+        // a new gateway is a delete and an add: the kernel only replaces a
+        // route of the same metric, so the old one could otherwise stay and win
+        for (Map.Entry<Integer, Route> e : routes.entrySet()) {
+            Route r = best.get(e.getKey());
+            if (r == null || r.hops < 2 || r.gw != e.getValue().gw) {
+                sink.delRoute(e.getKey(), e.getValue().gw);
+            }
+        }
+        HashMap<Integer, Route> installed = new HashMap<Integer, Route>();
+        for (Map.Entry<Integer, Route> e : best.entrySet()) {
+            Route r = e.getValue();
+            if (r.hops < 2) {
+                continue;
+            }
+            Route old = routes.get(e.getKey());
+            if (old == null || old.gw != r.gw) {
+                sink.addRoute(e.getKey(), r.gw, r.hops);
+            }
+            installed.put(e.getKey(), r);
+        }
+        routes = installed;
+    }
+
+    private void relax(HashMap<Integer, Route> best, PriorityQueue<Long> queue,
+                       Route via, int[] dests, int[] costs) {
+        for (int i = 0; i < dests.length; ++i) {
+            if (costs[i] >= MAX_COST) {
+                continue;
+            }
+            int cost = via.cost + costs[i];
+            Route r = best.get(dests[i]);
+            if (r == null || cost < r.cost) {
+                best.put(dests[i], new Route(via.gw, cost, via.hops + 1));
+                queue.add(((long) cost << 32) | (dests[i] & 0xffffffffL));
+            }
+        }
+    }
+
+    synchronized int neighborCount() {
+        return neighbors.size();
+    }
+
+    synchronized int mprCount() {
+        return mprs.size();
+    }
+
+    /** @return a copy of the routes given to the sink, i.e. to nodes two or more hops away */
+    synchronized HashMap<Integer, Route> routes() {
+        return new HashMap<Integer, Route>(routes);
+    }
+
+    synchronized long bytesSent() {
+        return bytesSent;
+    }
+
+    synchronized long messagesSent() {
+        return messagesSent;
+    }
+
+    synchronized long messagesForwarded() {
+        return messagesForwarded;
+    }
+
+    /**
+     * Runs the router over multicast on iface (null for the default) until stop().
+     */
+    synchronized void start(String iface, InetAddress group) throws IOException {
+        if (running) {
+            return;
+        }
+        final MulticastSocket s = new MulticastSocket(PORT);
+        if (iface != null) {
+            NetworkInterface ni = NetworkInterface.getByName(iface);
+            if (ni != null) {
+                s.setNetworkInterface(ni);
+            }
+        }
+        s.setTimeToLive(1); // flooding is done hop by hop
+        s.joinGroup(group);
+        final DatagramPacket packet = new DatagramPacket(new byte[0], 0, group, PORT);
+        transport = new Transport() {
+            public void send(byte[] b, int len) throws IOException {
+                packet.setData(b, 0, len);
+                s.send(packet);
+            }
+        };
+        socket = s;
+        running = true;
+        thread = new Thread(this, TAG);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the thread and withdraws the installed routes.
+     */
+    void stop() {
+        Thread t;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            socket.close();
+            t = thread;
+            thread = null;
+        }
+        try {
+            t.join(1000);
+        } catch (InterruptedException e) {}
+        synchronized (this) {
+            for (Map.Entry<Integer, Route> e : routes.entrySet()) {
+                sink.delRoute(e.getKey(), e.getValue().gw);
+            }
+            routes.clear();
+            neighbors.clear();
+            topology.clear();
+            transport = null;
+        }
+    }
+
+    // @Override
+    public void run() {
+        byte[] rx = new byte[MAX_MESSAGE];
+        DatagramPacket in = new DatagramPacket(rx, rx.length);
+        while (running) {
+            try {
+                long now = SystemClock.elapsedRealtime();
+                long wait = tick(now) - now;
+                socket.setSoTimeout((int) Math.max(1, Math.min(wait, HELLO_INTERVAL)));
+                in.setLength(rx.length);
+                try {
+                    socket.receive(in);
+                } catch (InterruptedIOException e) {
+                    continue; // timeout
+                }
+                receive(rx, in.getLength(), SystemClock.elapsedRealtime());
+            } catch (IOException e) {
+                if (running) {
+                    Log.e(TAG, "", e);
+                    running = false;
+                }
+            }
+        }
+    }
+
+    private static int getShort(byte[] b, int off) {
+        return ((b[off] & 0xff) << 8) | (b[off + 1] & 0xff);
+    }
+
+    private static void putShort(byte[] b, int off, int v) {
+        b[off] = (byte) (v >> 8);
+        b[off + 1] = (byte) v;
+    }
+
+    private static int getInt(byte[] b, int off) {
+        return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16)
+            | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+    }
+
+    private static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >> 24);
+        b[off + 1] = (byte) (v >> 16);
+        b[off + 2] = (byte) (v >> 8);
+        b[off + 3] = (byte) v;
+    }
+}
@@ -0,0 +1,372 @@
+/*
+*  This file is part of Barnacle Wifi Tether
+*  Copyright (C) 2010 by Szymon Jakubczak
+*
+*  This program is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package android.adhoc;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+
+import android.util.Log;
+
+
+/**
+ * UDP multicast for applications on the mesh, over the 224.0.0.0/4 route
+ * the run script adds on the LAN interface.
+ *
+ * Datagrams are sent through a DatagramChannel from direct buffers kept in
+ * a pool, so sending allocates nothing. Small messages given to offer() are
+ * packed into one datagram up to MTU and go out on flush() or when the
+ * datagram is full. A message from acquire() is written in place and sent
+ * without a copy. Received messages are handed out as slices of one
+ * receive buffer, also without a copy or allocation.
+ *
+ * Every datagram carries the sender's address and a sequence number, gaps
+ * are counted as lost.
+ *
+ *  datagram = magic(2) version(1) count(1) sender(4) seq(4) message*
+ *  message  = length(2) data
+ *
+ * NIO only joins groups from Java 7 on, so datagrams are received on a
+ * MulticastSocket which has joined the group on the LAN interface.
+ */
+public class MeshTransport implements Runnable {
+    final static String TAG = "MeshTransport";
+
+    public final static int MTU = 1472;  // 1500 - IP - UDP
+    final static int MAGIC = 0xBA7F;
+    final static int VERSION = 1;
+    final static int HEADER = 12;
+    final static int MAX_COUNT = 255;
+    public final static int MAX_MESSAGE = MTU - HEADER - 2;
+    final static int POOL = 16;
+    final static int SENDERS = 64;
+    final static int RESTART = 1 << 16;  // a larger jump in sequence is a new sender
+
+    public interface Listener {
+        /**
+         * Called on the receive thread. data is only valid during the call.
+         * @param sender address of the sender, as in NeighborDiscovery
+         */
+        void onMessage(int sender, ByteBuffer data);
+    }
+
+    private final InetSocketAddress target;
+    private final String iface;
+    private final int self;
+    private final Listener listener;
+
+    private DatagramChannel channel = null;  // to send
+    private MulticastSocket socket = null;   // to receive
+    private Thread thread = null;
+    private volatile boolean running = false;
+
+    private final ArrayList<ByteBuffer> pool = new ArrayList<ByteBuffer>(POOL);
+    private ByteBuffer batch = null;  // the datagram being filled by offer()
+    private int batchCount = 0;
+    private int seq = 0;
+
+    // per sender: address, next expected seq, last heard, in parallel arrays
+    private final int[] senderIp = new int[SENDERS];
+    private final int[] senderNext = new int[SENDERS];
+    private final long[] senderSeen = new long[SENDERS];
+    private int senders = 0;
+
+    // counters, read without locking
+    public volatile long datagramsSent = 0;
+    public volatile long messagesSent = 0;
+    public volatile long datagramsReceived = 0;
+    public volatile long messagesReceived = 0;
+    public volatile long lost = 0;        // by sequence gaps
+    public volatile long duplicates = 0;  // old or repeated sequence numbers
+    public volatile long malformed = 0;
+
+    /**
+     * @param iface the LAN interface, null for the default
+     * @param self our address, as in NeighborDiscovery, to tag our datagrams
+     */
+    public MeshTransport(String iface, InetAddress group, int port, int self, Listener listener) {
+        this.iface = iface;
+        this.target = new InetSocketAddress(group, port);
+        this.self = self;
+        this.listener = listener;
+    }
+
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        try {
+            // several applications may listen on the same group and port
+            socket = new MulticastSocket(null);
+            socket.setReuseAddress(true);
+            socket.bind(new InetSocketAddress(target.getPort()));
+            NetworkInterface ni = (iface == null) ? null : NetworkInterface.getByName(iface);
+            if (ni != null) {
+                socket.joinGroup(target, ni);
+            } else {
+                socket.joinGroup(target.getAddress());
+            }
+            // the 224.0.0.0/4 route picks the interface, the default TTL is 1
+            channel = DatagramChannel.open();
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        running = true;
+        thread = new Thread(this, TAG);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        Thread t;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            socket.close(); // unblocks receive
+            t = thread;
+            thread = null;
+        }
+        try {
+            t.join(1000);
+        } catch (InterruptedException e) {}
+        synchronized (this) {
+            close();
+        }
+    }
+
+    /** Receiving failed: shut down as stop() would, on the receive thread. */
+    private synchronized void failed() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        thread = null;
+        close();
+    }
+
+    private void close() {
+        try {
+            if (channel != null) channel.close();
+        } catch (IOException e) {}
+        if (socket != null) socket.close();
+        channel = null;
+        socket = null;
+    }
+
+    /** @return a pooled buffer for one message of up to MAX_MESSAGE, see send() */
+    public synchronized ByteBuffer acquire() {
+        ByteBuffer b = pool.isEmpty() ? ByteBuffer.allocateDirect(MTU) : pool.remove(pool.size() - 1);
+        b.clear();
+        b.position(HEADER + 2);
+        return b;
+    }
+
+    /** Returns a buffer from acquire() that will not be sent. */
+    public synchronized void release(ByteBuffer b) {
+        if (pool.size() < POOL && b.isDirect() && b.capacity() == MTU) {
+            pool.add(b);
+        }
+    }
+
+    /**
+     * Sends the message written into b since acquire(), by itself and without
+     * a copy. b goes back to the pool.
+     */
+    public synchronized void send(ByteBuffer b) throws IOException {
+        int len = b.position() - HEADER - 2;
+        if (len < 0) {
+            throw new IllegalArgumentException("not from acquire()");
+        }
+        b.putShort(HEADER, (short) len);
+        try {
+            transmit(b, 1);
+        } finally {
+            release(b);
+        }
+    }
+
+    /**
+     * Queues a message, sent with others in one datagram.
+     * @param data from position to limit, at most MAX_MESSAGE bytes, not modified
+     */
+    public synchronized void offer(ByteBuffer data) throws IOException {
+        int len = data.remaining();
+        if (len > MAX_MESSAGE) {
+            throw new IllegalArgumentException("message of " + len + " bytes");
+        }
+        if (batch != null && (batch.remaining() < len + 2 || batchCount == MAX_COUNT)) {
+            flush();
+        }
+        if (batch == null) {
+            batch = acquire();
+            batch.position(HEADER);
+            batchCount = 0;
+        }
+        batch.putShort((short) len);
+        int pos = data.position();
+        batch.put(data);
+        data.position(pos);
+        ++batchCount;
+    }
+
+    public synchronized void offer(byte[] data, int off, int len) throws IOException {
+        offer(ByteBuffer.wrap(data, off, len));
+    }
+
+    /** Sends the messages queued by offer(), if any. */
+    public synchronized void flush() throws IOException {
+        if (batch == null) {
+            return;
+        }
+        ByteBuffer b = batch;
+        batch = null;
+        try {
+            transmit(b, batchCount);
+        } finally {
+            release(b);
+        }
+    }
+
+    private void transmit(ByteBuffer b, int count) throws IOException {
+        if (channel == null) {
+            throw new IOException("not started");
+        }
+        b.putShort(0, (short) MAGIC);
+        b.put(2, (byte) VERSION);
+        b.put(3, (byte) count);
+        b.putInt(4, self);
+        b.putInt(8, seq++);
+        b.flip();
+        if (channel.send(b, target) == 0) {
+            // the socket buffer is full, the datagram is dropped like on the air
+            Log.d(TAG, "send buffer full");
+            return;
+        }
+        ++datagramsSent;
+        messagesSent += count;
+    }
+
+    // @Override
+    public void run() {
+        byte[] rx = new byte[MTU];
+        ByteBuffer b = ByteBuffer.wrap(rx);
+        DatagramPacket in = new DatagramPacket(rx, rx.length);
+        while (running) {
+            try {
+                in.setLength(rx.length);
+                socket.receive(in);
+                b.clear();
+                b.limit(in.getLength());
+                received(b, System.currentTimeMillis());
+            } catch (InterruptedIOException e) {
+                continue;
+            } catch (IOException e) {
+                if (running) {
+                    Log.e(TAG, "", e);
+                    failed();
+                }
+            }
+        }
+    }
+
+    /** Parses one datagram, b from position to limit. */
+    void received(ByteBuffer b, long now) {
+        int end = b.limit();
+        if (end < HEADER || (b.getShort(0) & 0xffff) != MAGIC || b.get(2) != VERSION) {
+            ++malformed;
+            return;
+        }
+        int count = b.get(3) & 0xff;
+        int sender = b.getInt(4);
+        int s = b.getInt(8);
+        if (sender == self) {
+            return; // loopback
+        }
+        ++datagramsReceived;
+        if (!sequence(sender, s, now)) {
+            ++duplicates;
+            return;
+        }
+        int pos = HEADER;
+        for (int i = 0; i < count; ++i) {
+            if (pos + 2 > end) {
+                ++malformed;
+                return;
+            }
+            int len = b.getShort(pos) & 0xffff;
+            pos += 2;
+            if (pos + len > end) {
+                ++malformed;
+                return;
+            }
+            b.limit(pos + len);
+            b.position(pos);
+            ++messagesReceived;
+            try {
+                listener.onMessage(sender, b);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "listener", e);
+            }
+            b.limit(end);
+            pos += len;
+        }
+    }
+
+    /** @return false if s was seen before from sender */
+    private boolean sequence(int sender, int s, long now) {
+        int i = 0;
+        while (i < senders && senderIp[i] != sender) {
+            ++i;
+        }
+        if (i == senders) {
+            if (senders < SENDERS) {
+                ++senders;
+            } else {
+                // forget whoever was quiet the longest
+                i = 0;
+                for (int j = 1; j < SENDERS; ++j) {
+                    if (senderSeen[j] < senderSeen[i]) i = j;
+                }
+            }
+            senderIp[i] = sender;
+            senderNext[i] = s;
+        }
+        senderSeen[i] = now;
+        int gap = s - senderNext[i];
+        if (gap < 0 && gap > -RESTART) {
+            return false;
+        }
+        if (gap > 0 && gap < RESTART) {
+            lost += gap;
+        } // else the sender started over
+        senderNext[i] = s + 1;
+        return true;
+    }
+}
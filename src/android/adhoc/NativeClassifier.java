@@ -0,0 +1,283 @@
+/*
+*  This file is part of Barnacle Wifi Tether
+*  Copyright (C) 2010 by Szymon Jakubczak
+*
+*  This program is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package android.adhoc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+
+/**
+ * Classifies lines of native output in a single pass.
+ *
+ * All patterns of a rule set are compiled into one Aho-Corasick automaton
+ * over bytes, so a line is scanned once no matter how many rules there are.
+ * Instances keep the details of the last match (interface, MAC) in fields and
+ * are not thread-safe; the compiled Rules are immutable and shared.
+ */
+class NativeClassifier {
+    final static int EVENT_NONE       = 0;
+    final static int EVENT_OK         = 1;
+    final static int EVENT_ROOT       = 2;
+    final static int EVENT_SUPPLICANT = 3;
+    final static int EVENT_DRIVER     = 4;
+    final static int EVENT_KILLED     = 5;
+    final static int EVENT_MARK       = 6; // startup timing marker
+    final static int EVENT_LINK_UP    = 7; // supplicant events
+    final static int EVENT_LINK_DOWN  = 8;
+    final static int EVENT_PEER       = 9;
+    final static int EVENT_RESPONSE   = 10; // control response, see NativeControl
+    final static int EVENT_ADDR       = 11; // address claimed after DAD
+
+    // higher wins when a line matches several rules
+    private final static int[] PRIORITY = { 0, 2, 6, 5, 4, 3, 1, 1, 1, 1, 1, 1 };
+
+    private final static String OK_PREFIX = "WIFI: OK";
+    final static String ADDR_PREFIX = "WIFI: ADDR ";
+
+    private final Rules rules;
+
+    /** interface of the last EVENT_OK, as a range of the classified buffer */
+    int ifaceStart = -1;
+    int ifaceLen = 0;
+    /** MAC address of the last EVENT_OK, 48 bits, or -1 if it did not parse */
+    long mac = -1;
+
+    NativeClassifier(Rules rules) {
+        this.rules = rules;
+    }
+
+    int classify(byte[] buf, int off, int len) {
+        final byte[] cls = rules.classes;
+        final int[] delta = rules.delta;
+        final long[] out = rules.out;
+        final int nc = rules.nclasses;
+        int best = EVENT_NONE;
+        int state = 0;
+        for (int i = off, end = off + len; i < end; ++i) {
+            state = delta[state * nc + cls[buf[i] & 0xff]];
+            long matched = out[state];
+            while (matched != 0) {
+                int r = Long.numberOfTrailingZeros(matched);
+                matched &= matched - 1;
+                if (rules.anchored[r] && (i + 1 - off) != rules.length[r]) {
+                    continue;
+                }
+                int ev = rules.event[r];
+                if (PRIORITY[ev] > PRIORITY[best]) {
+                    best = ev;
+                }
+            }
+            if (best == EVENT_ROOT) {
+                break; // nothing beats it
+            }
+        }
+        if (best == EVENT_OK) {
+            parseOK(buf, off + OK_PREFIX.length(), off + len);
+        }
+        return best;
+    }
+
+    /** WIFI: OK <iface> <mac> */
+    private void parseOK(byte[] buf, int i, int end) {
+        while (i < end && buf[i] == ' ') ++i;
+        ifaceStart = i;
+        while (i < end && buf[i] != ' ') ++i;
+        ifaceLen = i - ifaceStart;
+        while (i < end && buf[i] == ' ') ++i;
+        long m = 0;
+        int digits = 0;
+        for (; i < end && buf[i] != ' '; ++i) {
+            int d = Character.digit((char)buf[i], 16);
+            if (d >= 0) {
+                m = (m << 4) | d;
+                ++digits;
+            } else if (buf[i] != ':') {
+                break;
+            }
+        }
+        mac = (digits == 12) ? m : -1;
+    }
+
+
+    /**
+     * A compiled rule set. Use forScript() to get the rules for a lan_script.
+     */
+    static class Rules {
+        final byte[] classes = new byte[256]; // byte -> input class
+        final int nclasses;
+        final int[] delta;    // [state * nclasses + class] -> state
+        final long[] out;     // state -> bitmask of matching rules
+        final int[] event;
+        final int[] length;
+        final boolean[] anchored;
+
+        private Rules(String[] patterns, int[] events, boolean[] anchored) {
+            if (patterns.length > 64) {
+                throw new IllegalArgumentException("too many rules");
+            }
+            this.event = events;
+            this.anchored = anchored;
+            this.length = new int[patterns.length];
+
+            byte[][] pats = new byte[patterns.length][];
+            int n = 1;
+            for (int r = 0; r < patterns.length; ++r) {
+                pats[r] = patterns[r].getBytes();
+                length[r] = pats[r].length;
+                for (byte b : pats[r]) {
+                    if (classes[b & 0xff] == 0) {
+                        classes[b & 0xff] = (byte) n++;
+                    }
+                }
+            }
+            nclasses = n;
+
+            // trie
+            ArrayList<int[]> next = new ArrayList<int[]>();
+            ArrayList<Long> outs = new ArrayList<Long>();
+            next.add(newRow(n));
+            outs.add(0L);
+            for (int r = 0; r < pats.length; ++r) {
+                int s = 0;
+                for (byte b : pats[r]) {
+                    int c = classes[b & 0xff];
+                    if (next.get(s)[c] < 0) {
+                        next.get(s)[c] = next.size();
+                        next.add(newRow(n));
+                        outs.add(0L);
+                    }
+                    s = next.get(s)[c];
+                }
+                outs.set(s, outs.get(s) | (1L << r));
+            }
+
+            // failure links, breadth first, turning the trie into a DFA
+            int states = next.size();
+            int[] fail = new int[states];
+            int[] queue = new int[states];
+            int head = 0, tail = 0;
+            int[] root = next.get(0);
+            for (int c = 0; c < n; ++c) {
+                if (root[c] < 0) {
+                    root[c] = 0;
+                } else {
+                    fail[root[c]] = 0;
+                    queue[tail++] = root[c];
+                }
+            }
+            while (head < tail) {
+                int s = queue[head++];
+                int[] row = next.get(s);
+                outs.set(s, outs.get(s) | outs.get(fail[s]));
+                for (int c = 0; c < n; ++c) {
+                    int t = row[c];
+                    if (t < 0) {
+                        row[c] = next.get(fail[s])[c];
+                    } else {
+                        fail[t] = next.get(fail[s])[c];
+                        queue[tail++] = t;
+                    }
+                }
+            }
+
+            delta = new int[states * n];
+            out = new long[states];
+            for (int s = 0; s < states; ++s) {
+                System.arraycopy(next.get(s), 0, delta, s * n, n);
+                out[s] = outs.get(s);
+            }
+        }
+
+        private static int[] newRow(int n) {
+            int[] row = new int[n];
+            java.util.Arrays.fill(row, -1);
+            return row;
+        }
+
+        // rules for every setup: messages of su, run and the wifi binary
+        private final static Object[][] COMMON = {
+            { OK_PREFIX,               EVENT_OK,         Boolean.TRUE },
+            { "MARK: ",                EVENT_MARK,       Boolean.TRUE },
+            { "WIFI: EVENT CONNECTED", EVENT_LINK_UP,    Boolean.TRUE },
+            { "WIFI: EVENT DISCONNECTED", EVENT_LINK_DOWN, Boolean.TRUE },
+            { "WIFI: EVENT PEER",      EVENT_PEER,       Boolean.TRUE },
+            { NativeControl.RESPONSE_PREFIX, EVENT_RESPONSE, Boolean.TRUE },
+            { ADDR_PREFIX,             EVENT_ADDR,       Boolean.TRUE },
+            { "ermission",             EVENT_ROOT,       Boolean.FALSE },
+            { "su: not found",         EVENT_ROOT,       Boolean.FALSE },
+            { "supplicant",            EVENT_SUPPLICANT, Boolean.FALSE },
+            { "WIFI: Failed to load driver", EVENT_DRIVER, Boolean.FALSE },
+            { "WIFI: killed",          EVENT_KILLED,     Boolean.FALSE },
+        };
+
+        // additional rules per lan_script, see assets/script_*
+        private final static Object[][] SCRIPT_DRIVER = {
+            { "insmod:",               EVENT_DRIVER,     Boolean.FALSE },
+            { "rmmod:",                EVENT_DRIVER,     Boolean.FALSE },
+            { "not found!",            EVENT_DRIVER,     Boolean.FALSE },
+        };
+        private final static Object[][] SCRIPT_HERO = {
+            { "wlan_loader",           EVENT_DRIVER,     Boolean.FALSE },
+        };
+
+        private final static HashMap<String, Rules> cache = new HashMap<String, Rules>();
+
+        /**
+         * @param script value of lan_script, empty or null for the default wifi binary
+         */
+        static synchronized Rules forScript(String script) {
+            if (script == null) {
+                script = "";
+            }
+            Rules rules = cache.get(script);
+            if (rules == null) {
+                ArrayList<Object[]> list = new ArrayList<Object[]>();
+                add(list, COMMON);
+                if (script.startsWith("script_")) {
+                    add(list, SCRIPT_DRIVER);
+                }
+                if (script.equals("script_hero")) {
+                    add(list, SCRIPT_HERO);
+                }
+                rules = compile(list);
+                cache.put(script, rules);
+            }
+            return rules;
+        }
+
+        private static void add(ArrayList<Object[]> list, Object[][] rules) {
+            for (Object[] r : rules) {
+                list.add(r);
+            }
+        }
+
+        private static Rules compile(ArrayList<Object[]> list) {
+            String[] patterns = new String[list.size()];
+            int[] events = new int[list.size()];
+            boolean[] anchored = new boolean[list.size()];
+            for (int i = 0; i < patterns.length; ++i) {
+                Object[] r = list.get(i);
+                patterns[i] = (String) r[0];
+                events[i] = (Integer) r[1];
+                anchored[i] = (Boolean) r[2];
+            }
+            return new Rules(patterns, events, anchored);
+        }
+    }
+}
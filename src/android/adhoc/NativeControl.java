@@ -0,0 +1,207 @@
+/*
+*  This file is part of Barnacle Wifi Tether
+*  Copyright (C) 2010 by Szymon Jakubczak
+*
+*  This program is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package android.adhoc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import android.util.Log;
+import android.util.SparseArray;
+
+
+/**
+ * Control channel to the association loop of the native process,
+ * see native/wifi/control.hh for the other end.
+ *
+ * Requests are binary frames written to stdin of the process:
+ * magic(1) cmd(1) id(2) len(2) payload(len), big endian. Responses come back
+ * on stdout as "WIFI: R <id> <status> <text>" lines, which the OutputPump
+ * forwards as MSG_RESPONSE. Requests may be pipelined, responses are matched
+ * by id. Ids run on across instances, so that a late response of a previous
+ * process cannot reach a callback of the next one. Not thread-safe, use it
+ * from the service handler only.
+ */
+class NativeControl {
+    final static String TAG = "NativeControl";
+
+    final static int MAGIC = 0xB5;
+    final static int MAX_PAYLOAD = 255;
+    final static int ROUTE_ENTRY = 9;
+    final static int ROUTES_PER_FRAME = MAX_PAYLOAD / ROUTE_ENTRY;
+
+    final static int CMD_REASSOC     = 1;
+    final static int CMD_SET_CHANNEL = 2;
+    final static int CMD_SET_ESSID   = 3;
+    final static int CMD_GET_STATS   = 4;
+    final static int CMD_SHUTDOWN    = 5;
+    final static int CMD_STANDBY     = 6;
+    final static int CMD_RESUME      = 7;
+    final static int CMD_ADD_ROUTE   = 8;
+    final static int CMD_DEL_ROUTE   = 9;
+    final static int CMD_SCAN        = 10;
+    final static int CMD_PEERS       = 11;
+
+    final static int STATUS_OK          = 0;
+    final static int STATUS_FAILED      = 1;
+    final static int STATUS_UNKNOWN     = 2;
+    final static int STATUS_BAD_REQUEST = 3;
+
+    final static String RESPONSE_PREFIX = "WIFI: R ";
+
+    interface Callback {
+        void onResponse(int id, int status, String text);
+    }
+
+    private final OutputStream os;
+    private final SparseArray<Callback> pending = new SparseArray<Callback>();
+    private static int nextId = 1;
+
+    NativeControl(OutputStream os) {
+        this.os = os;
+    }
+
+    int reassoc(Callback cb) throws IOException {
+        return send(CMD_REASSOC, null, cb);
+    }
+
+    int setChannel(int channel, Callback cb) throws IOException {
+        return send(CMD_SET_CHANNEL, new byte[] { (byte) channel }, cb);
+    }
+
+    int setEssid(String essid, Callback cb) throws IOException {
+        return send(CMD_SET_ESSID, essid.getBytes(), cb);
+    }
+
+    int getStats(Callback cb) throws IOException {
+        return send(CMD_GET_STATS, null, cb);
+    }
+
+    int shutdown(Callback cb) throws IOException {
+        return send(CMD_SHUTDOWN, null, cb);
+    }
+
+    /**
+     * Scans and scores the channels, see native/wifi/channel.hh.
+     * The response is "best current cells cost1 .. cost13".
+     * @param avoid a channel just left, 0 for none
+     * @param busy percent of airtime lost on the current channel
+     */
+    int scan(int avoid, int busy, Callback cb) throws IOException {
+        return send(CMD_SCAN, new byte[] { (byte) avoid, (byte) Math.min(busy, 100) }, cb);
+    }
+
+    /**
+     * The busiest peers since the last call, counting starts with the first.
+     * See native/wifi/traffic.hh and PeerTraffic for the response.
+     */
+    int peers(int n, Callback cb) throws IOException {
+        return send(CMD_PEERS, new byte[] { (byte) n }, cb);
+    }
+
+    int standby(Callback cb) throws IOException {
+        return send(CMD_STANDBY, null, cb);
+    }
+
+    int resume(Callback cb) throws IOException {
+        return send(CMD_RESUME, null, cb);
+    }
+
+    /**
+     * Host routes, each frame of up to ROUTES_PER_FRAME is applied in one
+     * netlink transaction.
+     * @param cmd CMD_ADD_ROUTE or CMD_DEL_ROUTE
+     * @param routes { dst, gw, metric } triples, addresses as in MeshRouter
+     */
+    void routes(int cmd, int[] routes, int count, Callback cb) throws IOException {
+        for (int first = 0; first < count; first += ROUTES_PER_FRAME) {
+            int n = Math.min(ROUTES_PER_FRAME, count - first);
+            byte[] payload = new byte[n * ROUTE_ENTRY];
+            for (int i = 0; i < n; ++i) {
+                int dst = routes[3 * (first + i)];
+                int gw = routes[3 * (first + i) + 1];
+                int off = i * ROUTE_ENTRY;
+                payload[off]     = (byte) (dst >> 24);
+                payload[off + 1] = (byte) (dst >> 16);
+                payload[off + 2] = (byte) (dst >> 8);
+                payload[off + 3] = (byte) dst;
+                payload[off + 4] = (byte) (gw >> 24);
+                payload[off + 5] = (byte) (gw >> 16);
+                payload[off + 6] = (byte) (gw >> 8);
+                payload[off + 7] = (byte) gw;
+                payload[off + 8] = (byte) Math.min(routes[3 * (first + i) + 2], 255);
+            }
+            send(cmd, payload, cb);
+        }
+    }
+
+    /**
+     * @return id of the request
+     */
+    int send(int cmd, byte[] payload, Callback cb) throws IOException {
+        int id = nextId;
+        nextId = (nextId + 1) & 0xffff;
+        os.write(encode(cmd, id, payload));
+        os.flush();
+        if (cb != null) {
+            pending.put(id, cb);
+        }
+        return id;
+    }
+
+    static byte[] encode(int cmd, int id, byte[] payload) {
+        int len = (payload == null) ? 0 : payload.length;
+        if (len > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("payload too long: " + len);
+        }
+        byte[] frame = new byte[6 + len];
+        frame[0] = (byte) MAGIC;
+        frame[1] = (byte) cmd;
+        frame[2] = (byte) (id >> 8);
+        frame[3] = (byte) id;
+        frame[4] = (byte) (len >> 8);
+        frame[5] = (byte) len;
+        if (len > 0) {
+            System.arraycopy(payload, 0, frame, 6, len);
+        }
+        return frame;
+    }
+
+    /**
+     * Dispatches a "WIFI: R <id> <status> <text>" line to its callback.
+     */
+    void onResponse(String line) {
+        if (!line.startsWith(RESPONSE_PREFIX)) {
+            return;
+        }
+        String[] parts = line.substring(RESPONSE_PREFIX.length()).split(" ", 3);
+        try {
+            int id = Integer.parseInt(parts[0]);
+            int status = Integer.parseInt(parts[1]);
+            String text = parts.length > 2 ? parts[2] : "";
+            Callback cb = pending.get(id);
+            if (cb == null) {
+                return;
+            }
+            pending.remove(id);
+            cb.onResponse(id, status, text);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Bad response: " + line, e);
+        }
+    }
+}
@@ -1,14 +1,15 @@
 package android.adhoc;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 
 import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.AssetManager;
 import android.util.Log;
 
@@ -39,52 +40,55 @@ public class NativeHelper {
 		WIFI = WIFI_FILE.getAbsolutePath();
 	}
 
+	private final static String[] EXECUTABLES = {
+		"su_c", "run", "wifi", "script_aria", "script_hero", "script_samsung"
+	};
+
+	/**
+	 * Extracts what changed since the last run, see AssetExtractor.
+	 */
 	public static boolean unzipAssets(Context context) {
-		boolean result = true;
+		final AssetManager am = context.getAssets();
+		String stamp;
 		try {
-			AssetManager am = context.getAssets();
-			final String[] assetList = am.list("");
-
-			for (String asset : assetList) {
-				if (asset.equals("images") || asset.equals("sounds") || asset.equals("webkit")) {
-					continue;
-				}
-
-				int BUFFER = 2048;
-				final File file = new File(NativeHelper.app_bin, asset);
-				final InputStream assetIS = am.open(asset);
-
-				if (file.exists()) {
-					file.delete();
-					Log.i(TAG, "rm " + file.getAbsolutePath());
+			PackageInfo info = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
+			stamp = info.versionCode + "-" + info.lastUpdateTime;
+		} catch (NameNotFoundException e) {
+			stamp = "unknown"; // cannot happen for our own package
+		}
+		AssetExtractor.Source source = new AssetExtractor.Source() {
+			public String[] list() throws IOException {
+				ArrayList<String> assets = new ArrayList<String>();
+				for (String asset : am.list("")) {
+					if (!asset.equals("images") && !asset.equals("sounds") && !asset.equals("webkit")) {
+						assets.add(asset);
+					}
 				}
-
-				FileOutputStream fos = new FileOutputStream(file);
-				BufferedOutputStream dest = new BufferedOutputStream(fos, BUFFER);
-
-				int count;
-				byte[] data = new byte[BUFFER];
-
-				while ((count = assetIS.read(data, 0, BUFFER)) != -1) {
-					dest.write(data, 0, count);
+				return assets.toArray(new String[assets.size()]);
+			}
+			public InputStream open(String name) throws IOException {
+				return am.open(name);
+			}
+		};
+		AssetExtractor.Permissions permissions = new AssetExtractor.Permissions() {
+			public void set(String name, File file) {
+				for (String exe : EXECUTABLES) {
+					if (name.equals(exe)) {
+						chmod("0750", file);
+						return;
+					}
 				}
-
-				dest.flush();
-				dest.close();
-
-				assetIS.close();
 			}
+		};
+		AssetExtractor extractor = new AssetExtractor(app_bin, source, stamp, permissions);
+		try {
+			extractor.extract();
+			Log.i(TAG, "assets: " + extractor.checked + " checked, " + extractor.written + " written");
+			return true;
 		} catch (IOException e) {
-			result = false;
 			Log.e(NativeHelper.TAG, "Can't unzip", e);
+			return false;
 		}
-		chmod("0750", new File(SU_C));
-		chmod("0750", new File(RUN));
-		chmod("0750", new File(WIFI));
-		chmod("0750", new File(app_bin, "script_aria"));
-		chmod("0750", new File(app_bin, "script_hero"));
-		chmod("0750", new File(app_bin, "script_samsung"));
-		return result;
 	}
 
 	public static void chmod(String modestr, File path) {
@@ -131,16 +135,4 @@ public class NativeHelper {
 		return state;
 	}
 
-
-	public static boolean isSupplicantError(String msg) {
-		return msg.contains("supplicant");
-	}
-
-	public static boolean isRootError(String msg) {
-		return msg.contains("ermission") || msg.contains("su: not found");
-	}
-
-	public static boolean isWifiOK(String line) {
-		return line.startsWith("WIFI: OK");
-	}
 }
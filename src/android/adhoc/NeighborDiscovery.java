@@ -0,0 +1,434 @@
+/*
+*  This file is part of Barnacle Wifi Tether
+*  Copyright (C) 2010 by Szymon Jakubczak
+*
+*  This program is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package android.adhoc;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+
+/**
+ * Finds the other nodes of the IBSS with multicast beacons on GROUP, which is
+ * covered by the 224.0.0.0/4 route of the run script.
+ *
+ * Beacon, 20 bytes, big endian:
+ *   magic(2) version(1) flags(1) seq(4) mac(6) ip(4) interval(2, in 100 ms)
+ *
+ * The beacon interval starts at MIN_INTERVAL and doubles up to MAX_INTERVAL
+ * while the peer table is stable; any change resets it, so new nodes learn
+ * about us quickly and a settled mesh costs little airtime. A peer expires
+ * after TTL_BEACONS of its own advertised intervals without a beacon.
+ * While the wake lock is duty-cycled (see WakeBudget) beacons only go out in
+ * the wake windows, so the advertised interval and the expiry of peers are
+ * at least the period.
+ *
+ * Peers are keyed by their 48-bit MAC in a long. The table is small, so it is
+ * a few parallel arrays behind the object lock. Listeners are called on the
+ * discovery thread, and on the caller of stop() for the final PEER_DOWNs.
+ * A failed beacon is retried after MIN_INTERVAL; if receiving fails the
+ * thread closes the socket and sends those PEER_DOWNs itself.
+ */
+class NeighborDiscovery implements Runnable {
+    final static String TAG = "NeighborDiscovery";
+
+    final static String GROUP = "224.0.0.177";
+    final static int PORT = 4177;
+
+    final static int MAGIC = 0xBA7E;
+    final static int VERSION = 1;
+    final static int BEACON_SIZE = 20;
+
+    final static long MIN_INTERVAL = 1000;  // ms
+    final static long MAX_INTERVAL = 16000;
+    final static int TTL_BEACONS = 3;
+    final static int MAX_PEERS = 1024;
+
+    final static int PEER_UP    = 1;
+    final static int PEER_DOWN  = 2;
+    final static int PEER_MOVED = 3; // same MAC, new address
+
+    interface Listener {
+        void onPeer(int event, long mac, int ip);
+    }
+
+    private final long mac;
+    private volatile int ip;
+    private final String iface;
+    private final InetAddress group;
+    private final int port;
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    // peer table, rows [0, size)
+    private final long[] peerMac = new long[MAX_PEERS];
+    private final int[] peerIp = new int[MAX_PEERS];
+    private final long[] peerExpires = new long[MAX_PEERS];
+    private int size = 0;
+
+    private MulticastSocket socket = null;
+    private Thread thread = null;
+    private volatile boolean running = false;
+    private int seq = 0;
+    private long interval = MIN_INTERVAL;
+    private volatile long nextBeacon = 0;
+    private volatile long period = 0;
+
+    /**
+     * @param iface interface to use, null for the default (e.g. loopback in tests)
+     * @param mac 48-bit MAC of this node
+     * @param ip IPv4 address of this node, as in a beacon
+     */
+    NeighborDiscovery(String iface, long mac, int ip, InetAddress group, int port) {
+        this.iface = iface;
+        this.mac = mac;
+        this.ip = ip;
+        this.group = group;
+        this.port = port;
+    }
+
+    String getInterface() {
+        return iface;
+    }
+
+    void addListener(Listener l) {
+        listeners.add(l);
+    }
+
+    void removeListener(Listener l) {
+        listeners.remove(l);
+    }
+
+    /** the address changed, e.g. after duplicate address detection */
+    void setAddress(int ip) {
+        this.ip = ip;
+        nextBeacon = 0; // announce it right away
+    }
+
+    /** @param period duty cycle of the wake lock in ms, 0 if always awake */
+    void setPeriod(long period) {
+        this.period = period;
+    }
+
+    synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        socket = new MulticastSocket(port);
+        if (iface != null) {
+            NetworkInterface ni = NetworkInterface.getByName(iface);
+            if (ni != null) {
+                socket.setNetworkInterface(ni);
+            }
+        }
+        socket.setTimeToLive(1);
+        socket.setLoopbackMode(false); // false enables loopback, we filter our own
+        socket.joinGroup(group);
+        running = true;
+        interval = MIN_INTERVAL;
+        nextBeacon = 0;
+        thread = new Thread(this, TAG);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void stop() {
+        Thread t;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            socket.close(); // unblocks receive
+            t = thread;
+            thread = null;
+        }
+        try {
+            t.join(1000);
+        } catch (InterruptedException e) {}
+        dropPeers();
+    }
+
+    /** The socket broke: shut down as stop() would, on the discovery thread. */
+    private void failed() {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            socket.close();
+            thread = null;
+        }
+        dropPeers();
+    }
+
+    // PEER_DOWN for everyone, so that routes through them go away
+    private void dropPeers() {
+        long[] macs;
+        int[] ips;
+        synchronized (this) {
+            macs = new long[size];
+            ips = new int[size];
+            System.arraycopy(peerMac, 0, macs, 0, size);
+            System.arraycopy(peerIp, 0, ips, 0, size);
+            size = 0;
+        }
+        for (int i = 0; i < macs.length; ++i) {
+            notify(PEER_DOWN, macs[i], ips[i]);
+        }
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    /** @return MACs of the current peers */
+    synchronized long[] peers() {
+        long[] macs = new long[size];
+        System.arraycopy(peerMac, 0, macs, 0, size);
+        return macs;
+    }
+
+    /** @return address of the peer, 0 if unknown */
+    synchronized int address(long peer) {
+        int i = find(peer);
+        return i < 0 ? 0 : peerIp[i];
+    }
+
+    // @Override
+    public void run() {
+        byte[] rx = new byte[64];
+        byte[] tx = new byte[BEACON_SIZE];
+        DatagramPacket in = new DatagramPacket(rx, rx.length);
+        DatagramPacket out = new DatagramPacket(tx, tx.length, group, port);
+        while (running) {
+            try {
+                long now = SystemClock.elapsedRealtime();
+                if (now >= nextBeacon) {
+                    encode(tx);
+                    try {
+                        socket.send(out);
+                        nextBeacon = now + interval;
+                        interval = Math.min(interval * 2, MAX_INTERVAL);
+                    } catch (IOException e) {
+                        // e.g. ENETUNREACH while the interface reassociates
+                        if (running) {
+                            Log.w(TAG, "beacon not sent: " + e.getMessage());
+                        }
+                        nextBeacon = now + MIN_INTERVAL;
+                    }
+                }
+                expire(now);
+                long wait = Math.min(nextBeacon, nextExpiry()) - SystemClock.elapsedRealtime();
+                wait = Math.max(1, wait);
+                socket.setSoTimeout((int) wait);
+                in.setLength(rx.length);
+                try {
+                    socket.receive(in);
+                } catch (InterruptedIOException e) {
+                    continue; // timeout
+                }
+                received(rx, in.getLength(), SystemClock.elapsedRealtime());
+            } catch (IOException e) {
+                if (running) {
+                    Log.e(TAG, "", e);
+                    failed();
+                }
+            }
+        }
+    }
+
+    private void encode(byte[] b) {
+        int s = ++seq;
+        long interval100 = Math.min(Math.max(interval, period) / 100, 0xffff);
+        b[0] = (byte) (MAGIC >> 8);
+        b[1] = (byte) MAGIC;
+        b[2] = (byte) VERSION;
+        b[3] = 0;
+        putInt(b, 4, s);
+        for (int i = 0; i < 6; ++i) {
+            b[8 + i] = (byte) (mac >> (8 * (5 - i)));
+        }
+        putInt(b, 14, ip);
+        b[18] = (byte) (interval100 >> 8);
+        b[19] = (byte) interval100;
+    }
+
+    private static void putInt(byte[] b, int off, int v) {
+        b[off] = (byte) (v >> 24);
+        b[off + 1] = (byte) (v >> 16);
+        b[off + 2] = (byte) (v >> 8);
+        b[off + 3] = (byte) v;
+    }
+
+    private static int getInt(byte[] b, int off) {
+        return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16)
+            | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+    }
+
+    /** @param now SystemClock.elapsedRealtime(), as all the times here */
+    void received(byte[] b, int len, long now) {
+        if (len < BEACON_SIZE || ((b[0] & 0xff) << 8 | (b[1] & 0xff)) != MAGIC || b[2] != VERSION) {
+            return;
+        }
+        long m = 0;
+        for (int i = 0; i < 6; ++i) {
+            m = (m << 8) | (b[8 + i] & 0xff);
+        }
+        if (m == mac) {
+            return; // our own, looped back
+        }
+        int addr = getInt(b, 14);
+        long advertised = (((b[18] & 0xff) << 8) | (b[19] & 0xff)) * 100L;
+        long expires = now + TTL_BEACONS * Math.max(Math.max(advertised, MIN_INTERVAL), period);
+
+        int event = 0;
+        synchronized (this) {
+            int i = find(m);
+            if (i < 0) {
+                if (size == MAX_PEERS) {
+                    return;
+                }
+                i = size++;
+                peerMac[i] = m;
+                event = PEER_UP;
+            } else if (peerIp[i] != addr) {
+                event = PEER_MOVED;
+            }
+            peerIp[i] = addr;
+            peerExpires[i] = expires;
+            if (event != 0) {
+                changed(now);
+            }
+        }
+        if (event != 0) {
+            notify(event, m, addr);
+        }
+    }
+
+    void expire(long now) {
+        while (true) {
+            long m;
+            int addr;
+            synchronized (this) {
+                int i = 0;
+                while (i < size && peerExpires[i] > now) {
+                    ++i;
+                }
+                if (i == size) {
+                    return;
+                }
+                m = peerMac[i];
+                addr = peerIp[i];
+                remove(i);
+                changed(now);
+            }
+            notify(PEER_DOWN, m, addr);
+        }
+    }
+
+    // the topology changed, beacon soon again
+    private void changed(long now) {
+        interval = MIN_INTERVAL;
+        nextBeacon = Math.min(nextBeacon, now + MIN_INTERVAL);
+    }
+
+    private synchronized long nextExpiry() {
+        long next = Long.MAX_VALUE;
+        for (int i = 0; i < size; ++i) {
+            next = Math.min(next, peerExpires[i]);
+        }
+        return next;
+    }
+
+    private int find(long m) {
+        for (int i = 0; i < size; ++i) {
+            if (peerMac[i] == m) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void remove(int i) {
+        --size;
+        peerMac[i] = peerMac[size];
+        peerIp[i] = peerIp[size];
+        peerExpires[i] = peerExpires[size];
+    }
+
+    private void notify(int event, long m, int addr) {
+        for (Listener l : listeners) {
+            l.onPeer(event, m, addr);
+        }
+    }
+
+    static String formatMac(long m) {
+        return String.format("%02x:%02x:%02x:%02x:%02x:%02x",
+                (m >> 40) & 0xff, (m >> 32) & 0xff, (m >> 24) & 0xff,
+                (m >> 16) & 0xff, (m >> 8) & 0xff, m & 0xff);
+    }
+
+    static String formatIp(int a) {
+        return ((a >> 24) & 0xff) + "." + ((a >> 16) & 0xff) + "." + ((a >> 8) & 0xff) + "." + (a & 0xff);
+    }
+
+    /** @return the address, or 0 if it does not parse */
+    static int parseIp(String s) {
+        String[] parts = s.split("\\.");
+        if (parts.length != 4) {
+            return 0;
+        }
+        int a = 0;
+        try {
+            for (String p : parts) {
+                int v = Integer.parseInt(p);
+                if (v < 0 || v > 255) {
+                    return 0;
+                }
+                a = (a << 8) | v;
+            }
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+        return a;
+    }
+
+    /** @return the 48-bit MAC, or -1 if it does not parse */
+    static long parseMac(String s) {
+        String[] parts = s.split(":");
+        if (parts.length != 6) {
+            return -1;
+        }
+        long m = 0;
+        try {
+            for (String p : parts) {
+                m = (m << 8) | (Integer.parseInt(p, 16) & 0xff);
+            }
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+        return m;
+    }
+}
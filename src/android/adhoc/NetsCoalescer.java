@@ -0,0 +1,122 @@
+/*
+*  This file is part of Barnacle Wifi Tether
+*  Copyright (C) 2010 by Szymon Jakubczak
+*
+*  This program is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package android.adhoc;
+
+import android.net.wifi.WifiManager;
+
+
+/**
+ * Collapses bursts of connectivity broadcasts into single MSG_NETSCHANGE.
+ *
+ * Some drivers fire a dozen WIFI_STATE_CHANGED and CONNECTIVITY broadcasts
+ * while they reload. The first one after a quiet WINDOW is handled at once,
+ * the rest of a burst are folded into one message at the end of the window.
+ * The handler reads the Wifi Manager state itself, so only the latest counts.
+ *
+ * It also drops setWifiEnabled calls which cannot change anything: when the
+ * Wifi Manager is already in or on its way to that state, or when the same
+ * command was just sent. A command held back for the latter is not lost:
+ * the Wifi Manager is looked at again when HOLD is over, as after a
+ * broadcast. Used on the service's handler thread only; the clock and the
+ * message are behind interfaces, so bursts can be replayed on a plain JVM.
+ */
+class NetsCoalescer {
+    final static long WINDOW = 250;  // ms
+    final static long HOLD = 2000;   // ms before the same command is sent again
+
+    interface Clock {
+        /** SystemClock.uptimeMillis() on the device */
+        long now();
+    }
+
+    interface Poster {
+        /** sends MSG_NETSCHANGE after delay ms */
+        void post(long delay);
+    }
+
+    private final Clock clock;
+    private final Poster poster;
+    private boolean scheduled = false;
+    private long lastProcessed = -WINDOW;
+    private int lastCommand = -1;    // 1 enable, 0 disable, -1 none
+    private long lastCommandTime = 0;
+
+    int received = 0;
+    int rechecks = 0;  // messages for held commands, not broadcasts
+    int processed = 0;
+    int commandsSent = 0;
+    int commandsSuppressed = 0;
+
+    NetsCoalescer(Clock clock, Poster poster) {
+        this.clock = clock;
+        this.poster = poster;
+    }
+
+    /** A broadcast, or any other reason to look at the Wifi Manager again. */
+    void offer() {
+        ++this.received;
+        if (this.scheduled) {
+            return; // folded into the pending message
+        }
+        long delay = this.lastProcessed + WINDOW - this.clock.now();
+        this.scheduled = true;
+        this.poster.post(Math.max(0, delay));
+    }
+
+    /** Call when handling the message. */
+    void onProcessed() {
+        this.scheduled = false;
+        ++this.processed;
+        this.lastProcessed = this.clock.now();
+    }
+
+    int dropped() {
+        return this.received + this.rechecks - this.processed;
+    }
+
+    /**
+     * @param wifiState current WifiManager.getWifiState()
+     * @return whether setWifiEnabled(enable) should actually be called
+     */
+    boolean shouldSend(boolean enable, int wifiState) {
+        long now = this.clock.now();
+        int command = enable ? 1 : 0;
+        boolean redundant = enable
+            ? wifiState == WifiManager.WIFI_STATE_ENABLED || wifiState == WifiManager.WIFI_STATE_ENABLING
+            : wifiState == WifiManager.WIFI_STATE_DISABLED || wifiState == WifiManager.WIFI_STATE_DISABLING;
+        if (redundant) {
+            ++this.commandsSuppressed;
+            return false;
+        }
+        if (command == this.lastCommand && now - this.lastCommandTime < HOLD) {
+            ++this.commandsSuppressed;
+            // no broadcast may come to ask again, so look again ourselves
+            if (!this.scheduled) {
+                ++this.rechecks;
+                this.scheduled = true;
+                this.poster.post(this.lastCommandTime + HOLD - now);
+            }
+            return false;
+        }
+        this.lastCommand = command;
+        this.lastCommandTime = now;
+        ++this.commandsSent;
+        return true;
+    }
+}
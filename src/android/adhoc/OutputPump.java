@@ -0,0 +1,281 @@
+/*
+*  This file is part of Barnacle Wifi Tether
+*  Copyright (C) 2010 by Szymon Jakubczak
+*
+*  This program is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package android.adhoc;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.os.Handler;
+import android.util.Log;
+
+
+/**
+ * Services stdout and stderr of the native process from a single thread.
+ *
+ * Process pipes are not selectable on Android, so the pump reads whatever is
+ * available() on either pipe and sleeps with a bounded backoff when both are
+ * idle. It never blocks in read(), so stop() always ends the thread.
+ * Lines are classified here; only state-relevant ones reach the handler and
+ * everything else is logged, one log call per read chunk.
+ */
+class OutputPump implements Runnable {
+    final static String TAG = "AdHocService";
+    private final static int BUFFER_SIZE = 8192;
+    private final static long MIN_WAIT = 10;  // ms
+    private final static long MAX_WAIT = 160; // ms
+    private final static long STANDBY_WAIT = 1000; // ms, nothing to react to in standby
+
+    private volatile Handler handler;
+    private final Process process;
+    private final Pipe output;
+    private final Pipe error;
+    private final StartupTrace trace;
+    private volatile boolean stopped = false;
+    private Thread thread = null;
+
+    /**
+     * @param rules classifier rules for the configured lan_script
+     */
+    public OutputPump(Handler handler, Process process, NativeClassifier.Rules rules,
+            StartupTrace trace, String errorFormat) {
+        this.handler = handler;
+        this.process = process;
+        this.trace = trace;
+        this.output = new Pipe(AdHocService.MSG_OUTPUT, process.getInputStream(), rules, errorFormat);
+        this.error = new Pipe(AdHocService.MSG_ERROR, process.getErrorStream(), rules, errorFormat);
+    }
+
+    /**
+     * Redirects the messages, e.g. to a new service. While the handler is null
+     * (warm standby) output is only logged.
+     */
+    public void setHandler(Handler handler) {
+        this.handler = handler;
+    }
+
+    private void post(int what, int arg1, Object obj) {
+        Handler h = handler;
+        if (h != null) {
+            h.obtainMessage(what, arg1, 0, obj).sendToTarget();
+        }
+    }
+
+    public void start() {
+        thread = new Thread(this, "OutputPump");
+        thread.start();
+    }
+
+    /**
+     * Stops the pump without posting end of stream. Safe to call more than once.
+     */
+    public void stop() {
+        stopped = true;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Waits for the pump thread to end, at most timeout ms.
+     */
+    public void join(long timeout) {
+        if (thread == null) {
+            return;
+        }
+        try {
+            thread.join(timeout);
+        } catch (InterruptedException e) {
+        }
+    }
+
+    public void run() {
+        long wait = MIN_WAIT;
+        try {
+            while (!stopped) {
+                if (output.poll() + error.poll() > 0) {
+                    wait = MIN_WAIT;
+                    continue;
+                }
+                if (hasExited()) {
+                    // drain what is left, but do not block on a pipe held by a grandchild
+                    while (output.poll() + error.poll() > 0);
+                    output.finish();
+                    error.finish();
+                    // NOTE: MSG_ERROR(null) stops the process in the service
+                    post(AdHocService.MSG_OUTPUT, 0, null);
+                    post(AdHocService.MSG_ERROR, 0, null);
+                    return;
+                }
+                Thread.sleep(wait);
+                wait = Math.min(wait * 2, handler == null ? STANDBY_WAIT : MAX_WAIT);
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        } catch (IOException e) {
+            if (!stopped) {
+                post(AdHocService.MSG_EXCEPTION, 0, e);
+            }
+        }
+    }
+
+    boolean hasExited() {
+        try {
+            process.exitValue();
+            return true;
+        } catch (IllegalThreadStateException e) {
+            return false;
+        }
+    }
+
+
+    private class Pipe {
+        private final InputStream is;
+        private final int msg;
+        private final String logFormat;
+        private final NativeClassifier classifier;
+        private final byte[] buf = new byte[BUFFER_SIZE];
+        private int end = 0;
+        private boolean errorPosted = false;
+        // pending range of lines that are only logged
+        private int logStart = -1;
+        private int logEnd = -1;
+
+        Pipe(int msgType, InputStream is, NativeClassifier.Rules rules, String logFormat) {
+            this.msg = msgType;
+            this.is = is;
+            this.classifier = new NativeClassifier(rules);
+            this.logFormat = logFormat;
+        }
+
+        /**
+         * Reads what is available without blocking.
+         * @return number of bytes consumed
+         */
+        int poll() throws IOException {
+            int n = Math.min(is.available(), buf.length - end);
+            if (n <= 0) {
+                return 0;
+            }
+            n = is.read(buf, end, n);
+            if (n <= 0) {
+                return 0;
+            }
+            end += n;
+            int start = 0;
+            for (int i = end - n; i < end; ++i) {
+                if (buf[i] == '\n') {
+                    line(start, i);
+                    start = i + 1;
+                }
+            }
+            if (start == 0 && end == buf.length) {
+                // no newline in a full buffer, treat it as one line
+                line(0, end);
+                start = end;
+            }
+            flushLog();
+            end -= start;
+            if (end > 0) {
+                System.arraycopy(buf, start, buf, 0, end);
+            }
+            return n;
+        }
+
+        void finish() {
+            if (end > 0) {
+                line(0, end);
+                flushLog();
+                end = 0;
+            }
+        }
+
+        private void line(int start, int end) {
+            int len = end - start;
+            if (len > 0 && buf[end - 1] == '\r') {
+                --len;
+            }
+            if (msg == AdHocService.MSG_OUTPUT) {
+                int event = classifier.classify(buf, start, len);
+                if (event == NativeClassifier.EVENT_MARK) {
+                    trace.markNative(buf, start, len);
+                    return;
+                }
+                if (event == NativeClassifier.EVENT_LINK_UP || event == NativeClassifier.EVENT_LINK_DOWN
+                        || event == NativeClassifier.EVENT_PEER || event == NativeClassifier.EVENT_ADDR) {
+                    flushLog();
+                    post(AdHocService.MSG_LINK, event, new String(buf, start, len));
+                    return;
+                }
+                if (event == NativeClassifier.EVENT_RESPONSE) {
+                    post(AdHocService.MSG_RESPONSE, 0, new String(buf, start, len));
+                    return;
+                }
+                if (event == NativeClassifier.EVENT_OK) {
+                    trace.mark(StartupTrace.PHASE_OK);
+                    flushLog();
+                    post(msg, 0, new String(buf, start, len));
+                    return;
+                }
+            } else if (!errorPosted && len > 0) {
+                // the first error line decides the failure, the rest is only logged
+                errorPosted = true;
+                flushLog();
+                int error;
+                switch (classifier.classify(buf, start, len)) {
+                case NativeClassifier.EVENT_ROOT:
+                    error = AdHocApp.ERROR_ROOT;
+                    break;
+                case NativeClassifier.EVENT_SUPPLICANT:
+                    error = AdHocApp.ERROR_SUPPLICANT;
+                    break;
+                case NativeClassifier.EVENT_DRIVER:
+                    error = AdHocApp.ERROR_DRIVER;
+                    break;
+                case NativeClassifier.EVENT_KILLED:
+                    error = AdHocApp.ERROR_KILLED;
+                    break;
+                default:
+                    error = AdHocApp.ERROR_OTHER;
+                }
+                post(msg, error, new String(buf, start, len));
+                return;
+            }
+            if (len == 0) {
+                return;
+            }
+            if (logStart < 0) {
+                logStart = start;
+            }
+            logEnd = start + len;
+        }
+
+        private void flushLog() {
+            if (logStart < 0) {
+                return;
+            }
+            String lines = new String(buf, logStart, logEnd - logStart);
+            if (msg == AdHocService.MSG_ERROR) {
+                Log.e(TAG, String.format(logFormat, lines));
+            } else {
+                Log.i(TAG, lines);
+            }
+            logStart = logEnd = -1;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+*  This file is part of Barnacle Wifi Tether
+*  Copyright (C) 2010 by Szymon Jakubczak
+*
+*  This program is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package android.adhoc;
+
+import java.io.IOException;
+
+import android.os.Handler;
+import android.util.Log;
+
+
+/**
+ * The busiest peers on the lan interface, via NativeControl PEERS.
+ *
+ * The native side counts every frame by peer MAC, see native/wifi/traffic.hh.
+ * Every INTERVAL it is asked for the TOP peers by bytes since the last time,
+ * and starts counting afresh. The last answer is kept in parallel arrays,
+ * busiest first; rx is what the peer sent us, tx what we sent to it.
+ *
+ * Not thread-safe, use it from the service handler only.
+ */
+class PeerTraffic implements NativeControl.Callback {
+    final static String TAG = "PeerTraffic";
+    final static long INTERVAL = 10000;  // ms
+    final static int TOP = 8;            // the most the native side returns
+
+    private final Handler handler;
+    private NativeControl control = null;
+
+    private final long[] mac = new long[TOP];
+    private final int[] ip = new int[TOP];
+    private final long[] rxPackets = new long[TOP];
+    private final long[] rxBytes = new long[TOP];
+    private final long[] txPackets = new long[TOP];
+    private final long[] txBytes = new long[TOP];
+    private int count = 0;
+    private long period = 0;   // ms the last answer covers
+    private int peers = 0;     // peers heard in that period
+    private long overflow = 0; // frames of peers the table had no room for, in total
+    private long drops = 0;    // frames the kernel dropped, in total
+
+    private final Runnable poll = new Runnable() {
+        public void run() {
+            if (control == null) {
+                return;
+            }
+            try {
+                control.peers(TOP, PeerTraffic.this);
+            } catch (IOException e) {
+                Log.e(TAG, "", e);
+                control = null;
+            }
+        }
+    };
+
+    PeerTraffic(Handler handler) {
+        this.handler = handler;
+    }
+
+    void start(NativeControl control) {
+        stop();
+        this.control = control;
+        this.count = 0;
+        handler.post(poll); // the first answer only starts the capture
+    }
+
+    void stop() {
+        control = null;
+        handler.removeCallbacks(poll);
+    }
+
+    // @Override
+    public void onResponse(int id, int status, String text) {
+        if (control == null) {
+            return;
+        }
+        if (status != NativeControl.STATUS_OK) {
+            // no packet sockets here, do not keep asking
+            Log.w(TAG, "no per-peer counts: " + status + " " + text);
+            control = null;
+            return;
+        }
+        record(text);
+        handler.postDelayed(poll, INTERVAL);
+    }
+
+    private void record(String text) {
+        String[] parts = text.trim().split(" ");
+        if (parts.length < 4 || (parts.length - 4) % 6 != 0) {
+            Log.w(TAG, "Bad peers: " + text);
+            return;
+        }
+        try {
+            period = Long.parseLong(parts[0]);
+            peers = Integer.parseInt(parts[1]);
+            overflow += Long.parseLong(parts[2]);
+            drops += Long.parseLong(parts[3]);
+            int n = Math.min((parts.length - 4) / 6, TOP);
+            for (int i = 0, p = 4; i < n; ++i, p += 6) {
+                mac[i] = Long.parseLong(parts[p], 16);
+                ip[i] = (int) Long.parseLong(parts[p + 1], 16);
+                rxPackets[i] = Long.parseLong(parts[p + 2]);
+                rxBytes[i] = Long.parseLong(parts[p + 3]);
+                txPackets[i] = Long.parseLong(parts[p + 4]);
+                txBytes[i] = Long.parseLong(parts[p + 5]);
+            }
+            count = n;
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Bad peers: " + text);
+            count = 0;
+        }
+    }
+
+    /** @return how many peers the last answer has, at most TOP */
+    int count() {
+        return count;
+    }
+
+    /** @return ms the last answer covers */
+    long period() {
+        return period;
+    }
+
+    /** @return peers heard in the last period, including those not in the top */
+    int peers() {
+        return peers;
+    }
+
+    long overflow() {
+        return overflow;
+    }
+
+    long drops() {
+        return drops;
+    }
+
+    /** @param i 0 for the busiest, see NeighborDiscovery.formatMac */
+    long getMac(int i) {
+        return mac[i];
+    }
+
+    /** @return the peer's last IPv4 address, 0 if none was seen */
+    int getIp(int i) {
+        return ip[i];
+    }
+
+    long getRxPackets(int i) {
+        return rxPackets[i];
+    }
+
+    long getRxBytes(int i) {
+        return rxBytes[i];
+    }
+
+    long getTxPackets(int i) {
+        return txPackets[i];
+    }
+
+    long getTxBytes(int i) {
+        return txBytes[i];
+    }
+
+    /** @return bytes per second to and from peer i in the last period */
+    long rate(int i) {
+        return (period <= 0) ? 0 : (rxBytes[i] + txBytes[i]) * 1000 / period;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+*  This file is part of Barnacle Wifi Tether
+*  Copyright (C) 2010 by Szymon Jakubczak
+*
+*  This program is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package android.adhoc;
+
+import java.lang.reflect.Field;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+
+/**
+ * Stops the native process off the main looper.
+ *
+ * Closing stdin ends the association loop, after which the run script unloads
+ * the driver. If that does not finish in time the process gets SIGTERM and
+ * then SIGKILL. When done, the stopper is posted back as MSG_STOPPED.
+ *
+ * NOTE: the process is su, so the signals only work if it is not setuid;
+ * either way we stop waiting after the last deadline.
+ */
+class ProcessStopper implements Runnable {
+    final static String TAG = "ProcessStopper";
+    final static int EXIT_UNKNOWN = -1;
+
+    final static long EOF_TIMEOUT  = 5000; // ms, rmmod can be slow
+    final static long TERM_TIMEOUT = 2000;
+    final static long KILL_TIMEOUT = 1000;
+    private final static long POLL = 50;
+    private final static int SIGTERM = 15;
+
+    static final int STOP_EOF  = 0;
+    static final int STOP_TERM = 1;
+    static final int STOP_KILL = 2;
+    static final int STOP_HUNG = 3;
+
+    private final Handler handler;
+    private final Process process;
+    private final OutputPump pump;
+
+    /** exit status of the process or EXIT_UNKNOWN */
+    int exitStatus = EXIT_UNKNOWN;
+    /** how long the shutdown took in ms */
+    long latency = 0;
+    /** which step ended the process, one of STOP_* */
+    int how = STOP_HUNG;
+
+    /**
+     * @param handler where to post MSG_STOPPED, or null if nobody waits for it
+     */
+    ProcessStopper(Handler handler, Process process, OutputPump pump) {
+        this.handler = handler;
+        this.process = process;
+        this.pump = pump;
+    }
+
+    public void start() {
+        new Thread(this, TAG).start();
+    }
+
+    public void run() {
+        long started = SystemClock.elapsedRealtime();
+        try {
+            process.getOutputStream().close();
+        } catch (Exception e) {
+        }
+        if (waitFor(EOF_TIMEOUT)) {
+            how = STOP_EOF;
+        } else {
+            int pid = getPid(process);
+            Log.w(TAG, "no exit after EOF, sending SIGTERM to " + pid);
+            if (pid > 0) {
+                android.os.Process.sendSignal(pid, SIGTERM);
+            }
+            if (waitFor(TERM_TIMEOUT)) {
+                how = STOP_TERM;
+            } else {
+                Log.w(TAG, "no exit after SIGTERM, killing " + pid);
+                process.destroy(); // SIGKILL
+                if (waitFor(KILL_TIMEOUT)) {
+                    how = STOP_KILL;
+                }
+            }
+        }
+        latency = SystemClock.elapsedRealtime() - started;
+        if (pump != null) {
+            // make sure no end of stream is posted after MSG_STOPPED
+            pump.stop();
+            pump.join(POLL);
+        }
+        if (how != STOP_HUNG) {
+            process.destroy(); // release the pipes
+        }
+        if (handler != null) {
+            handler.obtainMessage(AdHocService.MSG_STOPPED, this).sendToTarget();
+        }
+    }
+
+    private boolean waitFor(long timeout) {
+        long deadline = SystemClock.elapsedRealtime() + timeout;
+        while (true) {
+            try {
+                exitStatus = process.exitValue();
+                return true;
+            } catch (IllegalThreadStateException e) {
+            }
+            if (SystemClock.elapsedRealtime() >= deadline) {
+                return false;
+            }
+            try {
+                Thread.sleep(POLL);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+    }
+
+    /** Process does not expose the pid, so look for the field of the implementation. */
+    static int getPid(Process process) {
+        final String[] names = { "id", "pid" };
+        for (String name : names) {
+            try {
+                Field f = process.getClass().getDeclaredField(name);
+                f.setAccessible(true);
+                return f.getInt(process);
+            } catch (NoSuchFieldException e) {
+            } catch (IllegalAccessException e) {
+                Log.e(TAG, "Could not read pid", e);
+            }
+        }
+        return -1;
+    }
+}
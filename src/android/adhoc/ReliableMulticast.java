@@ -0,0 +1,692 @@
+/*
+*  This file is part of Barnacle Wifi Tether
+*  Copyright (C) 2010 by Szymon Jakubczak
+*
+*  This program is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package android.adhoc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import android.util.Log;
+
+
+/**
+ * Reliable, ordered multicast on top of MeshTransport, in the style of NORM.
+ *
+ * The sender numbers its packets and keeps the last WINDOW of them in an
+ * off-heap ring for repairs. Every fecK packets it sends their XOR, which
+ * lets a receiver rebuild any one packet lost from the block without asking.
+ * A receiver that misses more waits a random backoff and multicasts a NACK
+ * for what it lacks; others missing the same packets hear it and hold their
+ * own, so a loss seen by many costs one NACK and one repair. After a burst
+ * the sender repeats its highest sequence in a few heartbeats, so losses at
+ * the tail are noticed too. Packets that leave the sender's window before
+ * they are repaired are given up on and counted. The window lasts WINDOW
+ * packets, so a sender at 500 packets/s leaves about five NACK rounds for a
+ * repair. A receiver starts with the first packet it hears, there is no
+ * history before that.
+ *
+ *  DATA   = type(1) flags(1) seq(4) low(4) payload
+ *  PARITY = type(1) k(1) first(4) lengths(2) xor
+ *  NACK   = type(1) count(1) sender(4) [ first(4) length(2) ] * count
+ *  BEAT   = type(1) 0(1) next(4) low(4)
+ *
+ * low is the oldest sequence the sender can still repair. All protocol
+ * state is guarded by this; timers run from tick(), like MeshRouter.
+ */
+public class ReliableMulticast implements MeshTransport.Listener, Runnable {
+    final static String TAG = "ReliableMulticast";
+
+    final static int TYPE_DATA   = 1;
+    final static int TYPE_PARITY = 2;
+    final static int TYPE_NACK   = 3;
+    final static int TYPE_BEAT   = 4;
+    final static int FLAG_REPAIR = 1;
+
+    final static int HEADER = 10;
+    public final static int MAX_PAYLOAD = MeshTransport.MAX_MESSAGE - HEADER;
+    final static int SLOT = MAX_PAYLOAD + 2;  // length(2) payload
+    final static int WINDOW = 256;            // packets, a power of 2
+    final static int PARITIES = 64;           // parity blocks kept per sender
+    final static int SENDERS = 8;
+    final static int MAX_RANGES = 128;
+
+    final static long FEC_WAIT = 20;        // ms for parity before a NACK
+    final static long NACK_BACKOFF = 40;    // ms, random part of the NACK delay
+    final static long REPAIR_WAIT = 80;     // ms before a NACK is repeated
+    final static long REPAIR_HOLDOFF = 50;  // ms between repairs of one packet
+    final static long BEAT_INTERVAL = 100;  // ms, doubled after every beat
+    final static int BEATS = 4;
+    final static int NACK_TRIES = 10;       // unanswered NACKs before giving up
+
+    public interface Listener {
+        /** In order, on the receive thread, data valid only during the call. */
+        void onData(int sender, int seq, ByteBuffer data);
+    }
+
+    public interface Transport {
+        ByteBuffer acquire();
+        void send(ByteBuffer b) throws IOException;
+    }
+
+    private final int self;
+    private final int fecK;
+    private final Listener listener;
+    private Transport transport = null;
+    private MeshTransport mesh = null;  // stopped with us
+    private final Random random;
+    private volatile boolean running = false;
+    private Thread thread = null;
+
+    // sender: the last WINDOW packets, slot = seq % WINDOW
+    private final ByteBuffer txRing = ByteBuffer.allocateDirect(WINDOW * SLOT);
+    private final long[] lastRepair = new long[WINDOW];
+    private int nextSeq = 0;
+    private int sent = 0;  // packets ever sent, the window is min(sent, WINDOW)
+    private final ByteBuffer parity = ByteBuffer.allocateDirect(MAX_PAYLOAD);
+    private int parityFirst = 0;
+    private int parityCount = 0;
+    private int parityLengths = 0;
+    private int parityMax = 0;
+    private long nextBeat = Long.MAX_VALUE;
+    private long beatInterval = BEAT_INTERVAL;
+    private int beats = 0;
+
+    private final Peer[] peers = new Peer[SENDERS];
+    private int npeers = 0;
+
+    // counters
+    public volatile long dataSent = 0;
+    public volatile long paritySent = 0;
+    public volatile long repairsSent = 0;
+    public volatile long nacksSent = 0;
+    public volatile long nacksSuppressed = 0;
+    public volatile long delivered = 0;
+    public volatile long recovered = 0;     // rebuilt from parity
+    public volatile long repaired = 0;      // filled by a retransmission
+    public volatile long unrecoverable = 0;
+    public volatile long duplicates = 0;
+
+    /** What we know about one sender. */
+    private static class Peer {
+        final int sender;
+        int next;        // next to deliver
+        int high;        // one past the highest seen
+        long nackAt = 0; // 0 if no NACK is due
+        int tries = 0;   // NACKs since the last delivery
+        boolean held;    // our NACK was held for someone else's this round
+        long seen;
+        final ByteBuffer ring = ByteBuffer.allocateDirect(WINDOW * SLOT);
+        final int[] slotSeq = new int[WINDOW];
+        final boolean[] have = new boolean[WINDOW];
+        final ByteBuffer parity = ByteBuffer.allocateDirect(PARITIES * MAX_PAYLOAD);
+        final int[] parityFirst = new int[PARITIES];
+        final int[] parityK = new int[PARITIES];   // 0 if the slot is empty
+        final int[] parityLengths = new int[PARITIES];
+        int nextParity = 0;
+
+        Peer(int sender, int first, long now) {
+            this.sender = sender;
+            this.seen = now;
+            reset(first);
+        }
+
+        void reset(int first) {
+            next = first;
+            high = first;
+            nackAt = 0;
+            tries = 0;
+            held = false;
+            Arrays.fill(have, false);
+            Arrays.fill(parityK, 0);
+        }
+
+        boolean has(int seq) {
+            int s = seq & (WINDOW - 1);
+            return have[s] && slotSeq[s] == seq;
+        }
+
+        boolean missing() {
+            for (int s = next; s - high < 0; ++s) {
+                if (!has(s)) return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @param self our address, as in MeshTransport
+     * @param fecK packets per parity block, 0 for no FEC
+     */
+    public ReliableMulticast(int self, int fecK, Listener listener) {
+        this.self = self;
+        this.fecK = Math.min(fecK, 255);
+        this.listener = listener;
+        this.random = new Random(self);
+    }
+
+    /** Starts t, whose listener must be this, and stops it with stop(). */
+    public void start(final MeshTransport t) throws IOException {
+        t.start();
+        synchronized (this) {
+            mesh = t;
+        }
+        start(new Transport() {
+            public ByteBuffer acquire() {
+                return t.acquire();
+            }
+            public void send(ByteBuffer b) throws IOException {
+                t.send(b);
+            }
+        });
+    }
+
+    /** Runs the timers on a thread of its own until stop(). */
+    public synchronized void start(Transport transport) {
+        if (running) {
+            return;
+        }
+        this.transport = transport;
+        running = true;
+        thread = new Thread(this, TAG);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        Thread t;
+        MeshTransport m;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            t = thread;
+            thread = null;
+            m = mesh;
+            mesh = null;
+            notifyAll();
+        }
+        try {
+            t.join(1000);
+        } catch (InterruptedException e) {}
+        if (m != null) {
+            m.stop();
+        }
+    }
+
+    /** For use without start(), e.g. driven by a simulated clock. */
+    synchronized void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    // @Override
+    public void run() {
+        synchronized (this) {
+            while (running) {
+                long now = System.currentTimeMillis();
+                long wait = tick(now) - now;
+                try {
+                    wait(Math.max(1, Math.min(wait, 1000)));
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends a packet of up to MAX_PAYLOAD bytes, from position to limit.
+     * @return its sequence number
+     */
+    public synchronized int send(ByteBuffer data, long now) throws IOException {
+        int len = data.remaining();
+        if (len > MAX_PAYLOAD) {
+            throw new IllegalArgumentException("packet of " + len + " bytes");
+        }
+        int seq = nextSeq++;
+        int slot = (seq & (WINDOW - 1)) * SLOT;
+        int pos = data.position();
+        txRing.putShort(slot, (short) len);
+        for (int i = 0; i < len; ++i) {
+            txRing.put(slot + 2 + i, data.get(pos + i));
+        }
+        lastRepair[seq & (WINDOW - 1)] = now - REPAIR_HOLDOFF;
+        ++sent;
+        transmitData(seq, 0);
+        ++dataSent;
+        if (fecK > 0) {
+            addParity(seq, slot, len);
+            if (parityCount == fecK) {
+                flushParity();
+            }
+        }
+        // tell the receivers where we are once the burst is over
+        beats = 0;
+        beatInterval = BEAT_INTERVAL;
+        nextBeat = now + beatInterval;
+        notifyAll();
+        return seq;
+    }
+
+    public int send(byte[] data, int off, int len) throws IOException {
+        return send(ByteBuffer.wrap(data, off, len), System.currentTimeMillis());
+    }
+
+    /** @return the oldest sequence we can still repair */
+    private int low() {
+        return nextSeq - Math.min(sent, WINDOW);
+    }
+
+    private void transmitData(int seq, int flags) throws IOException {
+        int slot = (seq & (WINDOW - 1)) * SLOT;
+        int len = txRing.getShort(slot) & 0xffff;
+        ByteBuffer b = transport.acquire();
+        b.put((byte) TYPE_DATA).put((byte) flags).putInt(seq).putInt(low());
+        for (int i = 0; i < len; ++i) {
+            b.put(txRing.get(slot + 2 + i));
+        }
+        transport.send(b);
+    }
+
+    private void addParity(int seq, int slot, int len) {
+        if (parityCount == 0) {
+            parityFirst = seq;
+            parityLengths = 0;
+            parityMax = 0;
+        }
+        for (int i = 0; i < len; ++i) {
+            byte v = txRing.get(slot + 2 + i);
+            parity.put(i, (i < parityMax) ? (byte) (parity.get(i) ^ v) : v);
+        }
+        if (len > parityMax) {
+            parityMax = len;
+        }
+        parityLengths ^= len;
+        ++parityCount;
+    }
+
+    private void flushParity() throws IOException {
+        if (parityCount == 0) {
+            return;
+        }
+        ByteBuffer b = transport.acquire();
+        b.put((byte) TYPE_PARITY).put((byte) parityCount).putInt(parityFirst)
+            .putShort((short) parityLengths);
+        for (int i = 0; i < parityMax; ++i) {
+            b.put(parity.get(i));
+        }
+        transport.send(b);
+        ++paritySent;
+        parityCount = 0;
+    }
+
+    /** Fires the due timers. @return when to call again */
+    synchronized long tick(long now) {
+        long next = now + 1000;
+        if (transport == null) {
+            return next;
+        }
+        try {
+            if (now >= nextBeat) {
+                flushParity(); // a partial block at the end of a burst
+                ByteBuffer b = transport.acquire();
+                b.put((byte) TYPE_BEAT).put((byte) 0).putInt(nextSeq).putInt(low());
+                transport.send(b);
+                beatInterval *= 2;
+                nextBeat = (++beats < BEATS) ? now + beatInterval : Long.MAX_VALUE;
+            }
+            next = Math.min(next, nextBeat);
+            for (int i = 0; i < npeers; ++i) {
+                Peer p = peers[i];
+                if (p.nackAt != 0 && now >= p.nackAt) {
+                    sendNack(p, now);
+                }
+                if (p.nackAt != 0) {
+                    next = Math.min(next, p.nackAt);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "", e);
+        }
+        return next;
+    }
+
+    private void sendNack(Peer p, long now) throws IOException {
+        if (!p.missing()) {
+            p.nackAt = 0;
+            return;
+        }
+        if (++p.tries > NACK_TRIES) {
+            // the sender is gone or cannot hear us
+            Log.w(TAG, "giving up on " + (p.high - p.next) + " from " + p.sender);
+            skipTo(p, p.high);
+            p.nackAt = 0;
+            return;
+        }
+        ByteBuffer b = transport.acquire();
+        int countAt = b.position() + 1;
+        b.put((byte) TYPE_NACK).put((byte) 0).putInt(p.sender);
+        int ranges = 0;
+        int s = p.next;
+        while (s - p.high < 0 && ranges < MAX_RANGES) {
+            if (p.has(s)) {
+                ++s;
+                continue;
+            }
+            int first = s;
+            while (s - p.high < 0 && !p.has(s) && s - first < 0xffff) {
+                ++s;
+            }
+            b.putInt(first).putShort((short) (s - first));
+            ++ranges;
+        }
+        b.put(countAt, (byte) ranges);
+        transport.send(b);
+        ++nacksSent;
+        p.nackAt = now + REPAIR_WAIT;
+        p.held = false;
+    }
+
+    // @Override
+    public void onMessage(int sender, ByteBuffer data) {
+        receive(sender, data, System.currentTimeMillis());
+    }
+
+    /** Handles one message, from position to limit. */
+    synchronized void receive(int sender, ByteBuffer b, long now) {
+        int base = b.position();
+        int end = b.limit();
+        if (end - base < 2) {
+            return;
+        }
+        int type = b.get(base);
+        try {
+            switch (type) {
+            case TYPE_DATA:
+                if (end - base >= HEADER) {
+                    onDataPacket(sender, b, base, end, now);
+                }
+                break;
+            case TYPE_PARITY:
+                if (end - base >= 8) {
+                    onParity(sender, b, base, end, now);
+                }
+                break;
+            case TYPE_NACK:
+                onNack(b, base, end, now);
+                break;
+            case TYPE_BEAT:
+                if (end - base >= HEADER) {
+                    Peer p = peer(sender, b.getInt(base + 2), now);
+                    if (p != null) {
+                        advance(p, b.getInt(base + 2), b.getInt(base + 6), now);
+                    }
+                }
+                break;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "", e);
+        }
+        notifyAll(); // timers may have changed
+    }
+
+    private Peer peer(int sender, int first, long now) {
+        for (int i = 0; i < npeers; ++i) {
+            if (peers[i].sender == sender) {
+                peers[i].seen = now;
+                return peers[i];
+            }
+        }
+        int i = npeers;
+        if (npeers < SENDERS) {
+            ++npeers;
+        } else {
+            // replace whoever was quiet the longest
+            i = 0;
+            for (int j = 1; j < SENDERS; ++j) {
+                if (peers[j].seen < peers[i].seen) i = j;
+            }
+        }
+        // a new receiver starts at whatever it hears first, no history
+        peers[i] = new Peer(sender, first, now);
+        return peers[i];
+    }
+
+    /** the sender says it is at next and can repair from low */
+    private void advance(Peer p, int next, int low, long now) {
+        if (next - p.high > 0) {
+            p.high = next;
+        }
+        if (low - p.next > 0) {
+            skipTo(p, low);
+        }
+        if (p.high - p.next >= WINDOW) {
+            skipTo(p, p.high - WINDOW + 1);
+        }
+        deliver(p);
+        if (p.missing()) {
+            if (p.nackAt == 0) {
+                p.nackAt = now + (fecK > 0 ? FEC_WAIT : 0) + random.nextInt((int) NACK_BACKOFF);
+            }
+        } else {
+            p.nackAt = 0;
+        }
+    }
+
+    private void onDataPacket(int sender, ByteBuffer b, int base, int end, long now) {
+        int flags = b.get(base + 1);
+        int seq = b.getInt(base + 2);
+        int low = b.getInt(base + 6);
+        Peer p = peer(sender, seq, now);
+        if (p.next - seq > WINDOW) {
+            // repairs are never that old, the sender started over
+            Log.i(TAG, "restart of " + sender);
+            p.reset(seq);
+        }
+        if (seq - p.next < 0 || p.has(seq)) {
+            ++duplicates;
+            return;
+        }
+        if (seq - p.next >= WINDOW) {
+            // too far ahead to keep the gap, give up on the oldest
+            skipTo(p, seq - WINDOW + 1);
+        }
+        store(p, seq, b, base + HEADER, end - base - HEADER);
+        if ((flags & FLAG_REPAIR) != 0) {
+            ++repaired;
+        }
+        tryParity(p, seq);
+        advance(p, seq + 1, low, now);
+    }
+
+    private void store(Peer p, int seq, ByteBuffer src, int off, int len) {
+        int s = seq & (WINDOW - 1);
+        int slot = s * SLOT;
+        p.ring.putShort(slot, (short) len);
+        for (int i = 0; i < len; ++i) {
+            p.ring.put(slot + 2 + i, src.get(off + i));
+        }
+        p.slotSeq[s] = seq;
+        p.have[s] = true;
+    }
+
+    private void onParity(int sender, ByteBuffer b, int base, int end, long now) {
+        int k = b.get(base + 1) & 0xff;
+        int first = b.getInt(base + 2);
+        Peer p = peer(sender, first, now);
+        if (k == 0 || first + k - p.next <= 0) {
+            return; // all delivered already
+        }
+        int i = p.nextParity;
+        p.nextParity = (i + 1) % PARITIES;
+        int len = Math.min(end - base - 8, MAX_PAYLOAD);
+        int off = i * MAX_PAYLOAD;
+        for (int j = 0; j < MAX_PAYLOAD; ++j) {
+            p.parity.put(off + j, j < len ? b.get(base + 8 + j) : 0);
+        }
+        p.parityFirst[i] = first;
+        p.parityK[i] = k;
+        p.parityLengths[i] = b.getShort(base + 6) & 0xffff;
+        rebuild(p, i);
+        advance(p, first + k, p.next, now);
+    }
+
+    /** after seq arrived, a parity block it belongs to may now be complete but one */
+    private void tryParity(Peer p, int seq) {
+        for (int i = 0; i < PARITIES; ++i) {
+            int k = p.parityK[i];
+            if (k != 0 && seq - p.parityFirst[i] >= 0 && seq - p.parityFirst[i] < k) {
+                rebuild(p, i);
+            }
+        }
+    }
+
+    /** @return true if the one packet missing from parity block i was rebuilt */
+    private boolean rebuild(Peer p, int i) {
+        int first = p.parityFirst[i];
+        int k = p.parityK[i];
+        int lost = 0;
+        int missing = 0;
+        for (int s = first; s - (first + k) < 0; ++s) {
+            if (!p.has(s)) {
+                missing = s;
+                if (++lost > 1) return false;
+            }
+        }
+        if (lost == 0 || missing - p.next < 0) {
+            p.parityK[i] = 0; // nothing left to do with this one
+            return false;
+        }
+        int off = i * MAX_PAYLOAD;
+        int len = p.parityLengths[i];
+        int dst = (missing & (WINDOW - 1)) * SLOT;
+        for (int j = 0; j < MAX_PAYLOAD; ++j) {
+            p.ring.put(dst + 2 + j, p.parity.get(off + j));
+        }
+        for (int s = first; s - (first + k) < 0; ++s) {
+            if (s == missing) continue;
+            int src = (s & (WINDOW - 1)) * SLOT;
+            int l = p.ring.getShort(src) & 0xffff;
+            len ^= l;
+            for (int j = 0; j < l; ++j) {
+                p.ring.put(dst + 2 + j, (byte) (p.ring.get(dst + 2 + j) ^ p.ring.get(src + 2 + j)));
+            }
+        }
+        if (len > MAX_PAYLOAD) {
+            return false; // corrupt
+        }
+        p.ring.putShort(dst, (short) len);
+        p.slotSeq[missing & (WINDOW - 1)] = missing;
+        p.have[missing & (WINDOW - 1)] = true;
+        p.parityK[i] = 0;
+        ++recovered;
+        return true;
+    }
+
+    private void onNack(ByteBuffer b, int base, int end, long now) throws IOException {
+        if (end - base < 6) {
+            return;
+        }
+        int count = b.get(base + 1) & 0xff;
+        int target = b.getInt(base + 2);
+        if (end - base < 6 + 6 * count) {
+            return;
+        }
+        if (target == self) {
+            for (int r = 0; r < count; ++r) {
+                int first = b.getInt(base + 6 + 6 * r);
+                int len = b.getShort(base + 10 + 6 * r) & 0xffff;
+                for (int s = first; s - (first + len) < 0; ++s) {
+                    int age = nextSeq - s;
+                    if (age <= 0 || age > Math.min(sent, WINDOW)) {
+                        continue; // gone or never sent
+                    }
+                    int slot = s & (WINDOW - 1);
+                    if (now - lastRepair[slot] >= REPAIR_HOLDOFF) {
+                        lastRepair[slot] = now;
+                        transmitData(s, FLAG_REPAIR);
+                        ++repairsSent;
+                    }
+                }
+            }
+            return;
+        }
+        // someone asked the same sender: hold our NACK if it covers our first gap
+        for (int i = 0; i < npeers; ++i) {
+            Peer p = peers[i];
+            if (p.sender != target || p.nackAt == 0 || p.held) {
+                continue;
+            }
+            int gap = p.next;
+            while (gap - p.high < 0 && p.has(gap)) {
+                ++gap;
+            }
+            for (int r = 0; r < count; ++r) {
+                int first = b.getInt(base + 6 + 6 * r);
+                int len = b.getShort(base + 10 + 6 * r) & 0xffff;
+                if (gap - first >= 0 && gap - (first + len) < 0) {
+                    // once a round, or a lost repair would keep us waiting
+                    p.nackAt = now + REPAIR_WAIT;
+                    p.held = true;
+                    ++nacksSuppressed;
+                    break;
+                }
+            }
+        }
+    }
+
+    /** gives up on what is missing before seq */
+    private void skipTo(Peer p, int seq) {
+        while (p.next - seq < 0) {
+            if (p.has(p.next)) {
+                deliverOne(p);
+            } else {
+                ++unrecoverable;
+                ++p.next;
+            }
+        }
+        if (p.high - p.next < 0) {
+            p.high = p.next;
+        }
+    }
+
+    private void deliver(Peer p) {
+        while (p.next - p.high < 0 && p.has(p.next)) {
+            deliverOne(p);
+        }
+    }
+
+    private void deliverOne(Peer p) {
+        int s = p.next & (WINDOW - 1);
+        int slot = s * SLOT;
+        int len = p.ring.getShort(slot) & 0xffff;
+        p.tries = 0;  // delivered packets stay in the ring for parity
+        ++p.next;
+        ++delivered;
+        ByteBuffer d = p.ring.duplicate();
+        d.limit(slot + 2 + len);
+        d.position(slot + 2);
+        try {
+            listener.onData(p.sender, p.next - 1, d);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "listener", e);
+        }
+    }
+}
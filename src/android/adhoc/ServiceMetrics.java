@@ -0,0 +1,200 @@
+/*
+*  This file is part of Barnacle Wifi Tether
+*  Copyright (C) 2010 by Szymon Jakubczak
+*
+*  This program is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package android.adhoc;
+
+
+/**
+ * What StatsServer exports: the service state and its history, failures by
+ * AdHocApp.ERROR_*, the claimed address, startup times and, while the
+ * service exists, its link counters. Names and label sets are encoded here
+ * once, see StatsServer.Output.
+ */
+class ServiceMetrics implements StatsServer.Source {
+    private final static String[] ERROR_NAMES = { "none", "root", "other", "supplicant", "assets", "driver", "killed" };
+
+    private final static byte[] STATE = StatsServer.ascii("adhoc_state");
+    private final static byte[] STATE_H = StatsServer.family("adhoc_state", "gauge",
+            "1 for the current state of AdHocService.");
+    private final static byte[][] STATE_L = labels("state", ServiceState.STATE_NAMES);
+    private final static byte[] SINCE = StatsServer.ascii("adhoc_state_changed_timestamp_seconds");
+    private final static byte[] SINCE_H = StatsServer.family("adhoc_state_changed_timestamp_seconds", "gauge",
+            "When the service entered its current state.");
+    private final static byte[] EVENTS = StatsServer.ascii("adhoc_events_total");
+    private final static byte[] EVENTS_H = StatsServer.family("adhoc_events_total", "counter",
+            "Events accepted by the service state machine, conflict is a restart for the Wifi Manager.");
+    private final static byte[][] EVENTS_L = labels("event", ServiceState.EVENT_NAMES);
+    private final static byte[] FAILURE = StatsServer.ascii("adhoc_last_failure_timestamp_seconds");
+    private final static byte[] FAILURE_H = StatsServer.family("adhoc_last_failure_timestamp_seconds", "gauge",
+            "When the service last failed, and why.");
+    private final static byte[] CAUSE = StatsServer.ascii("cause");
+    private final static byte[] ERRORS = StatsServer.ascii("adhoc_errors_total");
+    private final static byte[] ERRORS_H = StatsServer.family("adhoc_errors_total", "counter",
+            "Errors reported to the user, by AdHocApp.ERROR_*.");
+    private final static byte[][] ERRORS_L = labels("error", ERROR_NAMES);
+    private final static byte[] ADDRESS = StatsServer.ascii("adhoc_address_info");
+    private final static byte[] ADDRESS_H = StatsServer.family("adhoc_address_info", "gauge",
+            "The address claimed on the mesh.");
+    private final static byte[] IP = StatsServer.ascii("ip");
+    private final static byte[] READY = StatsServer.ascii("adhoc_app_ready_seconds");
+    private final static byte[] READY_H = StatsServer.family("adhoc_app_ready_seconds", "gauge",
+            "Time from process start until startup work was done.");
+    private final static byte[] STARTS = StatsServer.ascii("adhoc_starts_total");
+    private final static byte[] STARTS_H = StatsServer.family("adhoc_starts_total", "counter",
+            "Completed starts of the native process, cold or from standby.");
+    private final static byte[] START = StatsServer.ascii("adhoc_start_seconds");
+    private final static byte[] START_H = StatsServer.family("adhoc_start_seconds", "gauge",
+            "Start latency percentiles, as the upper bound of a histogram bucket.");
+    private final static byte[] COLD = StatsServer.ascii("start=\"cold\"");
+    private final static byte[] WARM = StatsServer.ascii("start=\"warm\"");
+    private final static byte[] COLD_P50 = StatsServer.ascii("start=\"cold\",quantile=\"0.5\"");
+    private final static byte[] COLD_P99 = StatsServer.ascii("start=\"cold\",quantile=\"0.99\"");
+    private final static byte[] WARM_P50 = StatsServer.ascii("start=\"warm\",quantile=\"0.5\"");
+    private final static byte[] WARM_P99 = StatsServer.ascii("start=\"warm\",quantile=\"0.99\"");
+
+    private final static byte[] LINK = StatsServer.ascii("adhoc_link_events_total");
+    private final static byte[] LINK_H = StatsServer.family("adhoc_link_events_total", "counter",
+            "Association and neighbor events from the native process.");
+    private final static byte[][] LINK_L = labels("event", new String[] { "up", "down", "peer" });
+    private final static byte[] RX = StatsServer.ascii("dir=\"rx\"");
+    private final static byte[] TX = StatsServer.ascii("dir=\"tx\"");
+    private final static byte[] BYTES = StatsServer.ascii("adhoc_lan_bytes_total");
+    private final static byte[] BYTES_H = StatsServer.family("adhoc_lan_bytes_total", "counter",
+            "Interface counters of the lan interface at the last sample.");
+    private final static byte[] PACKETS = StatsServer.ascii("adhoc_lan_packets_total");
+    private final static byte[] PACKETS_H = StatsServer.family("adhoc_lan_packets_total", "counter",
+            "Interface counters of the lan interface at the last sample.");
+    private final static byte[] LAN_ERRORS = StatsServer.ascii("adhoc_lan_errors_total");
+    private final static byte[] LAN_ERRORS_H = StatsServer.family("adhoc_lan_errors_total", "counter",
+            "Interface counters of the lan interface at the last sample.");
+    private final static byte[] LEVEL = StatsServer.ascii("adhoc_lan_signal_dbm");
+    private final static byte[] LEVEL_H = StatsServer.family("adhoc_lan_signal_dbm", "gauge",
+            "Signal level at the last sample.");
+    private final static byte[] BITRATE = StatsServer.ascii("adhoc_lan_bitrate_kbps");
+    private final static byte[] BITRATE_H = StatsServer.family("adhoc_lan_bitrate_kbps", "gauge",
+            "Bitrate at the last sample.");
+    private final static byte[] PEERS = StatsServer.ascii("adhoc_lan_peers");
+    private final static byte[] PEERS_H = StatsServer.family("adhoc_lan_peers", "gauge",
+            "Peers heard in the last PeerTraffic period.");
+    private final static byte[] WAKE = StatsServer.ascii("adhoc_wake_held_seconds");
+    private final static byte[] WAKE_H = StatsServer.family("adhoc_wake_held_seconds", "gauge",
+            "Time the wake lock was held this hour.");
+    private final static byte[] NETS = StatsServer.ascii("adhoc_wifi_commands_total");
+    private final static byte[] NETS_H = StatsServer.family("adhoc_wifi_commands_total", "counter",
+            "Wifi Manager toggles sent and suppressed as redundant.");
+    private final static byte[] SENT = StatsServer.ascii("result=\"sent\"");
+    private final static byte[] SUPPRESSED = StatsServer.ascii("result=\"suppressed\"");
+
+    private final AdHocApp app;
+
+    ServiceMetrics(AdHocApp app) {
+        this.app = app;
+    }
+
+    private static byte[][] labels(String key, String[] values) {
+        byte[][] out = new byte[values.length][];
+        for (int i = 0; i < values.length; ++i) {
+            out[i] = StatsServer.ascii(key + "=\"" + values[i] + "\"");
+        }
+        return out;
+    }
+
+    // @Override
+    public void write(StatsServer.Output out) {
+        ServiceState state = app.getServiceState();
+        ServiceState.Snapshot s = state.snapshot();
+        out.family(STATE_H);
+        for (int i = 0; i < STATE_L.length; ++i) {
+            out.sample(STATE, STATE_L[i], (i == s.state - ServiceState.FAILED) ? 1 : 0);
+        }
+        out.family(SINCE_H);
+        out.millis(SINCE, null, s.since);
+        out.family(EVENTS_H);
+        for (int e = 0; e < ServiceState.EVENTS; ++e) {
+            out.sample(EVENTS, EVENTS_L[e], state.count(e));
+        }
+        ServiceState.Transition f = state.lastFailure();
+        if (f != null) {
+            out.family(FAILURE_H);
+            out.sample(FAILURE, CAUSE, f.cause != null ? f.cause : ServiceState.EVENT_NAMES[f.event],
+                    f.time / 1000);
+        }
+        out.family(ERRORS_H);
+        for (int e = 1; e < ERRORS_L.length; ++e) {
+            out.sample(ERRORS, ERRORS_L[e], app.getErrors(e));
+        }
+        out.family(ADDRESS_H);
+        out.sample(ADDRESS, IP, app.getIPAdress(), 1);
+        if (app.getTimeToReady() >= 0) {
+            out.family(READY_H);
+            out.millis(READY, null, app.getTimeToReady());
+        }
+
+        StartupTrace trace = app.getStartupTrace();
+        out.family(STARTS_H);
+        out.sample(STARTS, COLD, trace.count(StartupTrace.PHASE_REQUEST));
+        out.sample(STARTS, WARM, trace.count(StartupTrace.WARM));
+        out.family(START_H);
+        startPercentile(out, COLD_P50, trace.percentile(StartupTrace.PHASE_REQUEST, 0.5));
+        startPercentile(out, COLD_P99, trace.percentile(StartupTrace.PHASE_REQUEST, 0.99));
+        startPercentile(out, WARM_P50, trace.percentile(StartupTrace.WARM, 0.5));
+        startPercentile(out, WARM_P99, trace.percentile(StartupTrace.WARM, 0.99));
+
+        AdHocService service = app.getAdHocService();
+        if (service == null) {
+            return;
+        }
+        out.family(LINK_H);
+        out.sample(LINK, LINK_L[0], service.getLinkUps());
+        out.sample(LINK, LINK_L[1], service.getLinkDowns());
+        out.sample(LINK, LINK_L[2], service.getPeerJoins());
+        LinkStats link = service.getLinkStats();
+        if (link.count() > 0) {
+            out.family(BYTES_H);
+            out.sample(BYTES, RX, link.latest(LinkStats.FIELD_RX_BYTES));
+            out.sample(BYTES, TX, link.latest(LinkStats.FIELD_TX_BYTES));
+            out.family(PACKETS_H);
+            out.sample(PACKETS, RX, link.latest(LinkStats.FIELD_RX_PACKETS));
+            out.sample(PACKETS, TX, link.latest(LinkStats.FIELD_TX_PACKETS));
+            out.family(LAN_ERRORS_H);
+            out.sample(LAN_ERRORS, RX, link.latest(LinkStats.FIELD_RX_ERRORS));
+            out.sample(LAN_ERRORS, TX, link.latest(LinkStats.FIELD_TX_ERRORS));
+            out.family(LEVEL_H);
+            out.sample(LEVEL, link.latest(LinkStats.FIELD_LEVEL));
+            out.family(BITRATE_H);
+            out.sample(BITRATE, link.latest(LinkStats.FIELD_BITRATE));
+        }
+        out.family(PEERS_H);
+        out.sample(PEERS, service.getPeerTraffic().peers());
+        WakeBudget wake = service.getWakeBudget();
+        if (wake != null) {
+            out.family(WAKE_H);
+            out.millis(WAKE, null, wake.getHeldMs(0));
+        }
+        NetsCoalescer nets = service.getNetsCoalescer();
+        out.family(NETS_H);
+        out.sample(NETS, SENT, nets.commandsSent);
+        out.sample(NETS, SUPPRESSED, nets.commandsSuppressed);
+    }
+
+    private static void startPercentile(StatsServer.Output out, byte[] labels, long ms) {
+        if (ms >= 0) {
+            out.millis(START, labels, ms);
+        }
+    }
+}
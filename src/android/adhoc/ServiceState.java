@@ -0,0 +1,191 @@
+/*
+*  This file is part of Barnacle Wifi Tether
+*  Copyright (C) 2010 by Szymon Jakubczak
+*
+*  This program is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package android.adhoc;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * The state of AdHocService as an explicit machine.
+ *
+ * Only the service's handler fires events. Any other thread may read the
+ * published Snapshot and the recent transitions without locks: both are
+ * immutable objects behind atomic references. The machine is owned by
+ * AdHocApp so the history survives the service, e.g. after a failure.
+ */
+class ServiceState {
+    // states, same values as AdHocService.STATE_*
+    final static int FAILED   = -1;
+    final static int STOPPED  = 0;
+    final static int STARTING = 1;
+    final static int RUNNING  = 2;
+    final static int STATES   = 4;
+
+    final static int EVENT_CREATE     = 0; // service created
+    final static int EVENT_START      = 1; // assets ok, waiting for the Wifi Manager
+    final static int EVENT_NO_ASSETS  = 2; // cannot start, assets missing
+    final static int EVENT_OK         = 3; // WIFI: OK
+    final static int EVENT_ERROR      = 4; // native error, exit or failed exec
+    final static int EVENT_EXCEPTION  = 5; // Java exception reading the process
+    final static int EVENT_CONFLICT   = 6; // Wifi Manager came back, restarting
+    final static int EVENT_STOP       = 7; // stop requested or process parked
+    final static int EVENTS           = 8;
+
+    final static String[] STATE_NAMES = { "failed", "stopped", "starting", "running" };
+    final static String[] EVENT_NAMES = {
+        "create", "start", "no_assets", "ok", "error", "exception", "conflict", "stop"
+    };
+
+    final static int ILLEGAL = -2;
+    private final static int F = FAILED, S = STOPPED, G = STARTING, R = RUNNING, X = ILLEGAL;
+
+    /** [state - FAILED][event] -> next state, or ILLEGAL */
+    private final static int[][] TABLE = {
+        //        create start no_assets ok  error exception conflict stop
+        /* F */ { S,     G,    F,        X,  X,    X,        X,       F },
+        /* S */ { S,     G,    F,        X,  X,    X,        X,       X },
+        /* G */ { S,     X,    X,        R,  F,    F,        X,       S },
+        /* R */ { S,     X,    X,        X,  F,    F,        G,       S },
+    };
+
+    final static int HISTORY = 32;
+
+    /** One accepted event. */
+    static class Transition {
+        final long seq;
+        final long time;     // System.currentTimeMillis()
+        final int from;
+        final int to;
+        final int event;
+        final String cause;  // may be null
+
+        Transition(long seq, long time, int from, int to, int event, String cause) {
+            this.seq = seq;
+            this.time = time;
+            this.from = from;
+            this.to = to;
+            this.event = event;
+            this.cause = cause;
+        }
+
+        @Override
+        public String toString() {
+            return time + " " + STATE_NAMES[from - FAILED] + " -" + EVENT_NAMES[event] + "-> "
+                + STATE_NAMES[to - FAILED] + (cause == null ? "" : " (" + cause + ")");
+        }
+    }
+
+    /** What readers see: the current state and the transition that led to it. */
+    static class Snapshot {
+        final int state;
+        final long since;        // time of the last state change
+        final long transitions;  // accepted events so far
+        final Transition last;   // null before the first event
+
+        Snapshot(int state, long since, long transitions, Transition last) {
+            this.state = state;
+            this.since = since;
+            this.transitions = transitions;
+            this.last = last;
+        }
+    }
+
+    private final AtomicReference<Snapshot> current;
+    private final AtomicReferenceArray<Transition> ring =
+        new AtomicReferenceArray<Transition>(HISTORY);
+    private final AtomicIntegerArray counts = new AtomicIntegerArray(EVENTS);
+    private volatile Transition lastFailure = null;
+
+    ServiceState() {
+        this.current = new AtomicReference<Snapshot>(
+            new Snapshot(STOPPED, System.currentTimeMillis(), 0, null));
+    }
+
+    /** @return the state event would lead to from state, or ILLEGAL */
+    static int next(int state, int event) {
+        return TABLE[state - FAILED][event];
+    }
+
+    /** @return whether event would be accepted now */
+    boolean can(int event) {
+        return next(get(), event) != ILLEGAL;
+    }
+
+    /**
+     * Applies event. Only to be called from one thread, the service's handler.
+     * @return false, and nothing changes, if the event is illegal in this state
+     */
+    boolean fire(int event, String cause) {
+        Snapshot s = this.current.get();
+        int to = next(s.state, event);
+        if (to == ILLEGAL) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        Transition t = new Transition(s.transitions, now, s.state, to, event, cause);
+        this.ring.set((int)(t.seq % HISTORY), t);
+        this.counts.incrementAndGet(event);
+        if (to == FAILED && s.state != FAILED) {
+            this.lastFailure = t;
+        }
+        this.current.set(new Snapshot(to, to == s.state ? s.since : now, s.transitions + 1, t));
+        return true;
+    }
+
+    int get() {
+        return this.current.get().state;
+    }
+
+    Snapshot snapshot() {
+        return this.current.get();
+    }
+
+    /** @return up to HISTORY recent transitions, oldest first */
+    Transition[] history() {
+        long end = this.current.get().transitions;
+        long start = Math.max(0, end - HISTORY);
+        Transition[] out = new Transition[(int)(end - start)];
+        int n = 0;
+        for (long seq = start; seq < end; ++seq) {
+            Transition t = this.ring.get((int)(seq % HISTORY));
+            // the writer may have lapped us meanwhile, skip those slots
+            if (t != null && t.seq == seq) {
+                out[n++] = t;
+            }
+        }
+        if (n < out.length) {
+            Transition[] shorter = new Transition[n];
+            System.arraycopy(out, 0, shorter, 0, n);
+            return shorter;
+        }
+        return out;
+    }
+
+    /** @return the last transition into FAILED, or null, also once out of history() */
+    Transition lastFailure() {
+        return this.lastFailure;
+    }
+
+    /** @return how many times event was accepted, e.g. EVENT_CONFLICT for restarts */
+    int count(int event) {
+        return this.counts.get(event);
+    }
+}
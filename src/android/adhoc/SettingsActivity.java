@@ -29,9 +29,9 @@ import android.widget.Toast;
 public class SettingsActivity extends PreferenceActivity implements Preference.OnPreferenceChangeListener {
     final static int[] prefids = {
         R.string.lan_gw, R.string.lan_netmask, R.string.lan_essid, R.string.lan_channel,
-        R.string.lan_script
+        R.string.lan_script, R.string.lan_power, R.string.lan_stats
     };
-    final static int[] checks = { R.string.lan_wext };
+    final static int[] checks = { R.string.lan_wext, R.string.lan_warm, R.string.lan_mesh };
 
     private void setSummary(Preference p, CharSequence s) {
         if ((s != null) && (s.length() > 0)) {
@@ -69,8 +69,21 @@ public class SettingsActivity extends PreferenceActivity implements Preference.O
         if (key == null) {
         	return true;
         }
-        if (((AdHocApp)getApplication()).isRunning()) {
-            Toast.makeText(this, this.getString(R.string.restartneeded), Toast.LENGTH_SHORT).show();
+        AdHocApp app = (AdHocApp)getApplication();
+        if (key.equals(getString(R.string.lan_stats))) {
+            // served by the app, not part of the service configuration
+            app.setStatsPort((String)newValue);
+            this.setSummary(pref, (String)newValue);
+            return true;
+        }
+        app.invalidateConfig();
+        // the process in standby was configured with the old value
+        app.dropStandby();
+        if (app.isRunning()) {
+            String value = (newValue instanceof String) ? (String)newValue : null;
+            if (!app.applySetting(key, value)) {
+                Toast.makeText(this, this.getString(R.string.restartneeded), Toast.LENGTH_SHORT).show();
+            }
         }
         if (ListPreference.class.isInstance(pref) || EditTextPreference.class.isInstance(pref)) {
         	this.setSummary(pref, (String)newValue);
@@ -0,0 +1,180 @@
+/*
+*  This file is part of Barnacle Wifi Tether
+*  Copyright (C) 2010 by Szymon Jakubczak
+*
+*  This program is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package android.adhoc;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+
+/**
+ * Runs the startup steps of AdHocApp on a small pool of background threads.
+ *
+ * A step may depend on earlier steps and only runs once they have all
+ * succeeded. Steps must be added in dependency order: the pool is FIFO, so
+ * the oldest unfinished step always holds a thread and a step blocked on its
+ * dependencies can never starve them.
+ */
+class StagedInit {
+    final static String TAG = "StagedInit";
+    final static int THREADS = 2;
+
+    interface Step {
+        /** @return false if the step failed, its dependents will not run */
+        boolean run() throws Exception;
+    }
+
+    /** The future of one step. Its value is true iff it and all its dependencies succeeded. */
+    static class Task extends FutureTask<Boolean> {
+        final String name;
+        private final ArrayList<Waiter> waiting = new ArrayList<Waiter>();
+        private long elapsed = -1;
+
+        Task(String name, Callable<Boolean> c) {
+            super(c);
+            this.name = name;
+        }
+
+        /** Blocks until done. @return whether the step succeeded */
+        boolean await() {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        return get();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    } catch (Exception e) {
+                        return false;
+                    }
+                }
+            } finally {
+                if (interrupted) Thread.currentThread().interrupt();
+            }
+        }
+
+        /** @return true if done and succeeded, never blocks */
+        boolean succeeded() {
+            return isDone() && await();
+        }
+
+        /** @return ms the step itself took, -1 if it did not run */
+        long getElapsed() {
+            return elapsed;
+        }
+
+        /** Sends what to handler once the step is done, right away if it is already. */
+        void notifyWhenDone(Handler handler, int what) {
+            synchronized (waiting) {
+                if (!isDone()) {
+                    waiting.add(new Waiter(handler, what));
+                    return;
+                }
+            }
+            handler.sendEmptyMessage(what);
+        }
+
+        /** Forgets a notifyWhenDone that has not been sent yet. */
+        void cancelNotify(Handler handler, int what) {
+            synchronized (waiting) {
+                for (int i = waiting.size() - 1; i >= 0; --i) {
+                    Waiter m = waiting.get(i);
+                    if (m.handler == handler && m.what == what) {
+                        waiting.remove(i);
+                    }
+                }
+            }
+        }
+
+        @Override
+        protected void done() {
+            synchronized (waiting) {
+                for (Waiter m : waiting) {
+                    m.handler.sendEmptyMessage(m.what);
+                }
+                waiting.clear();
+            }
+        }
+    }
+
+    private static class Waiter {
+        final Handler handler;
+        final int what;
+        Waiter(Handler handler, int what) {
+            this.handler = handler;
+            this.what = what;
+        }
+    }
+
+    private final ExecutorService executor;
+
+    StagedInit() {
+        this.executor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+            private int count = 0;
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "init-" + (++count));
+                t.setDaemon(true);
+                t.setPriority(Thread.NORM_PRIORITY - 1);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * @param deps steps that must succeed first, already added to this
+     */
+    Task add(final String name, final Step step, final Task... deps) {
+        final Task[] task = new Task[1];
+        task[0] = new Task(name, new Callable<Boolean>() {
+            public Boolean call() throws Exception {
+                for (Task d : deps) {
+                    if (!d.await()) {
+                        Log.e(TAG, name + ": skipped, " + d.name + " failed");
+                        return false;
+                    }
+                }
+                long t0 = SystemClock.uptimeMillis();
+                boolean ok;
+                try {
+                    ok = step.run();
+                } catch (Exception e) {
+                    Log.e(TAG, name + ": " + e.toString());
+                    ok = false;
+                }
+                task[0].elapsed = SystemClock.uptimeMillis() - t0;
+                Log.d(TAG, name + (ok ? " done in " : " failed after ") + task[0].elapsed + "ms");
+                return ok;
+            }
+        });
+        executor.execute(task[0]);
+        return task[0];
+    }
+
+    /** No more steps will be added; the threads exit once the queue is drained. */
+    void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,286 @@
+/*
+*  This file is part of Barnacle Wifi Tether
+*  Copyright (C) 2010 by Szymon Jakubczak
+*
+*  This program is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package android.adhoc;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+
+/**
+ * Times every phase from startAdHoc() to WIFI: OK.
+ *
+ * Timestamps are SystemClock.uptimeMillis(), i.e. CLOCK_MONOTONIC, the same
+ * clock the native side uses for its "MARK: <phase> <ms>" lines. Durations
+ * between consecutive phases are kept in log-scale histograms which survive
+ * restarts in startup.bin, and are exported to startup.csv after every start.
+ */
+class StartupTrace {
+    final static String TAG = "StartupTrace";
+
+    final static int PHASE_REQUEST    = 0;  // AdHocApp.startAdHoc
+    final static int PHASE_SERVICE    = 1;  // MSG_START
+    final static int PHASE_WIFI_OFF   = 2;  // Wifi Manager is disabled
+    final static int PHASE_EXEC       = 3;  // native process started
+    final static int PHASE_LOAD       = 4;  // native: driver loaded
+    final static int PHASE_CONFIG     = 5;  // native: address and multicast route set
+    final static int PHASE_SETTLE     = 6;  // native: after the settle wait
+    final static int PHASE_SUPPLICANT = 7;  // native: wpa_supplicant connected
+    final static int PHASE_ASSOC      = 8;  // native: association requested
+    final static int PHASE_OK         = 9;  // WIFI: OK received
+    final static int PHASES           = 10;
+    // histogram row for the total of warm restarts, see lan_warm
+    final static int WARM             = PHASES;
+    private final static int ROWS     = PHASES + 1;
+
+    /** names used by the native markers, null for phases marked in Java */
+    final static String[] NAMES = {
+        "total", "service", "wifi_off", "exec", "load", "config", "settle",
+        "supplicant", "assoc", "ok", "warm_total"
+    };
+    private final static boolean[] NATIVE = {
+        false, false, false, false, true, true, true, true, true, false
+    };
+
+    private final static int MAGIC = 0x42535432; // BST2
+    private final static int BUCKETS = 34;
+    private final static long[] BOUNDS = new long[BUCKETS]; // upper bounds in ms
+    static {
+        for (int b = 0; b < BUCKETS; ++b) {
+            BOUNDS[b] = Math.round(Math.pow(2, b / 2.0));
+        }
+    }
+
+    private final File dir;
+    private final long[] marks = new long[PHASES];
+    // [phase][bucket], the PHASE_REQUEST row holds the total of cold starts
+    private final int[][] histogram = new int[ROWS][BUCKETS];
+    private boolean warm = false;
+
+    StartupTrace(File dir) {
+        this.dir = dir;
+        java.util.Arrays.fill(marks, -1);
+        load();
+    }
+
+    /**
+     * Starts a new trace at PHASE_REQUEST.
+     * @param warm whether the native process resumes from standby
+     */
+    synchronized void begin(boolean warm) {
+        this.warm = warm;
+        java.util.Arrays.fill(marks, -1);
+        marks[PHASE_REQUEST] = SystemClock.uptimeMillis();
+    }
+
+    void mark(int phase) {
+        mark(phase, SystemClock.uptimeMillis());
+    }
+
+    synchronized void mark(int phase, long uptime) {
+        if (marks[PHASE_REQUEST] < 0 || marks[phase] >= 0) {
+            return; // not tracing, or already marked
+        }
+        marks[phase] = uptime;
+        if (phase == PHASE_OK) {
+            complete();
+        }
+    }
+
+    /** Aborts the current trace, e.g. when the start failed. */
+    synchronized void cancel() {
+        marks[PHASE_REQUEST] = -1;
+    }
+
+    /**
+     * Marks a native phase from a "MARK: <name> <uptime>" line without
+     * allocating.
+     */
+    void markNative(byte[] buf, int off, int len) {
+        int i = off + 6; // skip "MARK: "
+        final int end = off + len;
+        int nameStart = i;
+        while (i < end && buf[i] != ' ') ++i;
+        int nameLen = i - nameStart;
+        long t = 0;
+        boolean digits = false;
+        for (++i; i < end && buf[i] >= '0' && buf[i] <= '9'; ++i) {
+            t = t * 10 + (buf[i] - '0');
+            digits = true;
+        }
+        for (int p = 0; p < PHASES; ++p) {
+            if (NATIVE[p] && equals(NAMES[p], buf, nameStart, nameLen)) {
+                mark(p, digits ? t : SystemClock.uptimeMillis());
+                return;
+            }
+        }
+    }
+
+    private static boolean equals(String s, byte[] buf, int off, int len) {
+        if (s.length() != len) {
+            return false;
+        }
+        for (int i = 0; i < len; ++i) {
+            if (s.charAt(i) != buf[off + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void complete() {
+        long prev = marks[PHASE_REQUEST];
+        for (int p = PHASE_REQUEST + 1; p < PHASES; ++p) {
+            if (marks[p] >= 0) {
+                ++histogram[p][bucket(marks[p] - prev)];
+                prev = marks[p];
+            }
+        }
+        long total = marks[PHASE_OK] - marks[PHASE_REQUEST];
+        ++histogram[warm ? WARM : PHASE_REQUEST][bucket(total)];
+        marks[PHASE_REQUEST] = -1;
+        Log.i(TAG, (warm ? "warm" : "cold") + " start took " + total + "ms");
+        save();
+        try {
+            Writer w = new BufferedWriter(new FileWriter(new File(dir, "startup.csv")));
+            try {
+                writeCsv(w);
+            } finally {
+                w.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write startup.csv", e);
+        }
+    }
+
+    static int bucket(long ms) {
+        for (int b = 0; b < BUCKETS - 1; ++b) {
+            if (ms <= BOUNDS[b]) {
+                return b;
+            }
+        }
+        return BUCKETS - 1;
+    }
+
+    /**
+     * @return upper bound in ms of the bucket holding the q-th quantile, or -1 if empty
+     */
+    synchronized long percentile(int phase, double q) {
+        int[] h = histogram[phase];
+        long count = 0;
+        for (int c : h) {
+            count += c;
+        }
+        if (count == 0) {
+            return -1;
+        }
+        long rank = (long) Math.ceil(q * count);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; ++b) {
+            seen += h[b];
+            if (seen >= rank) {
+                return BOUNDS[b];
+            }
+        }
+        return BOUNDS[BUCKETS - 1];
+    }
+
+    synchronized int count(int phase) {
+        int count = 0;
+        for (int c : histogram[phase]) {
+            count += c;
+        }
+        return count;
+    }
+
+    /** One row per phase: name, count, p50, p99, then the bucket counts. */
+    synchronized void writeCsv(Writer w) throws IOException {
+        w.write("# model=" + Build.MODEL + " device=" + Build.DEVICE + "\n");
+        w.write("phase,count,p50_ms,p99_ms");
+        for (int b = 0; b < BUCKETS; ++b) {
+            w.write(",le_" + BOUNDS[b]);
+        }
+        w.write('\n');
+        for (int p = 0; p < ROWS; ++p) {
+            w.write(NAMES[p] + "," + count(p) + "," + percentile(p, 0.5) + "," + percentile(p, 0.99));
+            for (int b = 0; b < BUCKETS; ++b) {
+                w.write("," + histogram[p][b]);
+            }
+            w.write('\n');
+        }
+    }
+
+    private synchronized void save() {
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(new File(dir, "startup.bin"))));
+            try {
+                out.writeInt(MAGIC);
+                out.writeUTF(Build.MODEL);
+                out.writeByte(ROWS);
+                out.writeByte(BUCKETS);
+                for (int p = 0; p < ROWS; ++p) {
+                    for (int b = 0; b < BUCKETS; ++b) {
+                        out.writeInt(histogram[p][b]);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not save startup.bin", e);
+        }
+    }
+
+    private void load() {
+        File f = new File(dir, "startup.bin");
+        if (!f.exists()) {
+            return;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(f));
+            try {
+                if (in.readInt() != MAGIC || !Build.MODEL.equals(in.readUTF())
+                        || in.readByte() != ROWS || in.readByte() != BUCKETS) {
+                    return; // different layout or device, start over
+                }
+                for (int p = 0; p < ROWS; ++p) {
+                    for (int b = 0; b < BUCKETS; ++b) {
+                        histogram[p][b] = in.readInt();
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not load startup.bin", e);
+        }
+    }
+}
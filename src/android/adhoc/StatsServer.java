@@ -0,0 +1,434 @@
+/*
+*  This file is part of Barnacle Wifi Tether
+*  Copyright (C) 2010 by Szymon Jakubczak
+*
+*  This program is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package android.adhoc;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+
+import android.util.Log;
+
+
+/**
+ * Metrics in the Prometheus text format over HTTP/1.0, GET /metrics, so
+ * relays can be watched from a monitoring server on the mesh. There is no
+ * authentication, so listen on the mesh address only, not e.g. on cellular.
+ *
+ * One thread runs a Selector over the listening socket and up to CLIENTS
+ * connections. Each connection slot has its request and response buffers
+ * from the start, the Source writes into the response through Output with
+ * names encoded ahead of time and numbers written digit by digit, so apart
+ * from the channel and key NIO creates per connection a scrape allocates
+ * nothing. The connection is closed after the response, as in HTTP/1.0.
+ *
+ * The Source is called on the server thread and reads its values without
+ * locking; a scrape may see a sample being written, never a broken line.
+ * Only android.util.Log is used here, so this runs on a plain JVM.
+ */
+public class StatsServer implements Runnable {
+    final static String TAG = "StatsServer";
+
+    final static int CLIENTS = 4;
+    final static int REQUEST = 1024;         // bytes, longer requests are refused
+    final static int RESPONSE = 32 * 1024;
+    final static long TIMEOUT = 5000;        // ms for a whole exchange
+
+    public interface Source {
+        /** Writes all metrics. Called on the server thread. */
+        void write(Output out);
+    }
+
+    private final static byte[] OK = ascii("HTTP/1.0 200 OK\r\n"
+            + "Content-Type: text/plain; version=0.0.4\r\nConnection: close\r\n\r\n");
+    private final static byte[] NOT_FOUND = ascii("HTTP/1.0 404 Not Found\r\n"
+            + "Content-Type: text/plain\r\nConnection: close\r\n\r\nGET /metrics\n");
+    private final static byte[] BAD_REQUEST = ascii("HTTP/1.0 400 Bad Request\r\n"
+            + "Connection: close\r\n\r\n");
+    private final static byte[] ERROR = ascii("HTTP/1.0 500 Internal Server Error\r\n"
+            + "Connection: close\r\n\r\n");
+    private final static byte[] GET = ascii("GET /metrics");
+    private final static byte[] MIN_VALUE = ascii(Long.toString(Long.MIN_VALUE));
+
+    /** One connection slot. */
+    private static class Client {
+        SocketChannel channel = null;
+        SelectionKey key = null;
+        long since;
+        final ByteBuffer in = ByteBuffer.allocate(REQUEST);
+        final ByteBuffer out = ByteBuffer.allocateDirect(RESPONSE);
+    }
+
+    private final InetAddress address;
+    private final int port;
+    private final Source source;
+    private final Client[] clients = new Client[CLIENTS];
+    private final Output output = new Output();
+    private Selector selector = null;
+    private ServerSocketChannel server = null;
+    private SelectionKey serverKey = null;
+    private Thread thread = null;
+    private volatile boolean running = false;
+    private long timeout = TIMEOUT;
+
+    // counters
+    public volatile long scrapes = 0;
+    public volatile long refused = 0;   // no free slot, bad or slow request
+    public volatile long errors = 0;    // the Source failed or did not fit
+
+    /**
+     * @param address to listen on, null for all interfaces
+     * @param port 0 for any free port
+     */
+    public StatsServer(InetAddress address, int port, Source source) {
+        this.address = address;
+        this.port = port;
+        this.source = source;
+        for (int i = 0; i < CLIENTS; ++i) {
+            clients[i] = new Client();
+        }
+    }
+
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        try {
+            selector = Selector.open();
+            server = ServerSocketChannel.open();
+            server.socket().setReuseAddress(true);
+            server.socket().bind(new InetSocketAddress(address, port));
+            server.configureBlocking(false);
+            serverKey = server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        running = true;
+        thread = new Thread(this, TAG);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        Thread t;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            selector.wakeup();
+            t = thread;
+            thread = null;
+        }
+        try {
+            t.join(1000);
+        } catch (InterruptedException e) {}
+        synchronized (this) {
+            close();
+        }
+    }
+
+    /** Before start(), e.g. shorter in tests. */
+    synchronized void setTimeout(long ms) {
+        this.timeout = ms;
+    }
+
+    /** @return the port we listen on, -1 if not started */
+    public synchronized int getPort() {
+        return (server == null) ? -1 : server.socket().getLocalPort();
+    }
+
+    private void close() {
+        for (Client c : clients) {
+            drop(c);
+        }
+        try {
+            if (server != null) server.close();
+        } catch (IOException e) {}
+        try {
+            if (selector != null) selector.close();
+        } catch (IOException e) {}
+        server = null;
+        selector = null;
+    }
+
+    // @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select(timeout);
+                // no iterator over the selected keys, check our few keys instead
+                Set<SelectionKey> selected = selector.selectedKeys();
+                if (!selected.isEmpty()) {
+                    if (selected.contains(serverKey)) {
+                        accept();
+                    }
+                    for (Client c : clients) {
+                        if (c.key != null && selected.contains(c.key) && c.key.isValid()) {
+                            handle(c);
+                        }
+                    }
+                    selected.clear();
+                }
+                long now = System.currentTimeMillis();
+                for (Client c : clients) {
+                    if (c.channel != null && now - c.since > timeout) {
+                        ++refused;
+                        drop(c);
+                    }
+                }
+            } catch (IOException e) {
+                if (running) {
+                    Log.e(TAG, "", e);
+                }
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel ch = server.accept();
+        if (ch == null) {
+            return;
+        }
+        for (Client c : clients) {
+            if (c.channel == null) {
+                ch.configureBlocking(false);
+                c.channel = ch;
+                c.key = ch.register(selector, SelectionKey.OP_READ, c);
+                c.since = System.currentTimeMillis();
+                c.in.clear();
+                return;
+            }
+        }
+        ++refused;
+        ch.close();
+    }
+
+    private void handle(Client c) {
+        try {
+            if (c.key.isReadable()) {
+                if (c.channel.read(c.in) < 0) {
+                    drop(c);
+                    return;
+                }
+                if (ended(c.in)) {
+                    respond(c);
+                } else if (!c.in.hasRemaining()) {
+                    ++refused;
+                    c.out.clear();
+                    c.out.put(BAD_REQUEST);
+                    send(c);
+                }
+                return;
+            }
+            if (c.key.isWritable()) {
+                c.channel.write(c.out);
+                if (!c.out.hasRemaining()) {
+                    drop(c);
+                }
+            }
+        } catch (IOException e) {
+            drop(c); // the client went away
+        }
+    }
+
+    /** @return whether the request headers are complete */
+    private static boolean ended(ByteBuffer in) {
+        int end = in.position();
+        for (int i = 1; i < end; ++i) {
+            if (in.get(i) == '\n' && (in.get(i - 1) == '\n'
+                    || (i >= 3 && in.get(i - 1) == '\r' && in.get(i - 2) == '\n'))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void respond(Client c) throws IOException {
+        ByteBuffer in = c.in;
+        boolean metrics = in.position() > GET.length;
+        for (int i = 0; metrics && i < GET.length; ++i) {
+            metrics = in.get(i) == GET[i];
+        }
+        if (metrics) {
+            byte next = in.get(GET.length);
+            metrics = next == ' ' || next == '?' || next == '\r' || next == '\n';
+        }
+        c.out.clear();
+        if (!metrics) {
+            c.out.put(NOT_FOUND);
+        } else {
+            c.out.put(OK);
+            try {
+                output.target = c.out;
+                source.write(output);
+                ++scrapes;
+            } catch (BufferOverflowException e) {
+                ++errors;
+                Log.e(TAG, "metrics do not fit in " + RESPONSE + " bytes");
+                c.out.clear();
+                c.out.put(ERROR);
+            } catch (RuntimeException e) {
+                ++errors;
+                Log.e(TAG, "", e);
+                c.out.clear();
+                c.out.put(ERROR);
+            } finally {
+                output.target = null;
+            }
+        }
+        send(c);
+    }
+
+    private void send(Client c) throws IOException {
+        c.out.flip();
+        c.channel.write(c.out);
+        if (c.out.hasRemaining()) {
+            c.key.interestOps(SelectionKey.OP_WRITE);
+        } else {
+            drop(c);
+        }
+    }
+
+    private void drop(Client c) {
+        if (c.key != null) {
+            c.key.cancel();
+        }
+        if (c.channel != null) {
+            try {
+                c.channel.close();
+            } catch (IOException e) {}
+        }
+        c.key = null;
+        c.channel = null;
+    }
+
+    static byte[] ascii(String s) {
+        byte[] b = new byte[s.length()];
+        for (int i = 0; i < b.length; ++i) {
+            b[i] = (byte) s.charAt(i);
+        }
+        return b;
+    }
+
+    /** The header of a metric family, for Output.family(). */
+    static byte[] family(String name, String type, String help) {
+        return ascii("# HELP " + name + " " + help + "\n# TYPE " + name + " " + type + "\n");
+    }
+
+    /**
+     * Writes samples without allocating. Names and label sets are given as
+     * bytes encoded once, see ascii() and family(); a label set is what goes
+     * between the braces, e.g. state="running".
+     */
+    public static final class Output {
+        private ByteBuffer target = null;
+        private final byte[] digits = new byte[20];
+
+        public void family(byte[] header) {
+            target.put(header);
+        }
+
+        public void sample(byte[] name, byte[] labels, long value) {
+            name(name, labels);
+            number(value);
+            target.put((byte) '\n');
+        }
+
+        public void sample(byte[] name, long value) {
+            sample(name, null, value);
+        }
+
+        /** A value in ms, written in seconds as Prometheus prefers. */
+        public void millis(byte[] name, byte[] labels, long ms) {
+            name(name, labels);
+            if (ms < 0) {
+                target.put((byte) '-');
+                ms = -ms;
+            }
+            number(ms / 1000);
+            target.put((byte) '.');
+            long frac = ms % 1000;
+            target.put((byte) ('0' + frac / 100));
+            target.put((byte) ('0' + frac / 10 % 10));
+            target.put((byte) ('0' + frac % 10));
+            target.put((byte) '\n');
+        }
+
+        /** A sample with one label whose value is only known now, escaped. */
+        public void sample(byte[] name, byte[] key, CharSequence label, long value) {
+            target.put(name);
+            target.put((byte) '{');
+            target.put(key);
+            target.put((byte) '=');
+            target.put((byte) '"');
+            for (int i = 0; i < label.length(); ++i) {
+                char ch = label.charAt(i);
+                if (ch == '\\' || ch == '"') {
+                    target.put((byte) '\\');
+                    target.put((byte) ch);
+                } else if (ch == '\n') {
+                    target.put((byte) '\\');
+                    target.put((byte) 'n');
+                } else {
+                    target.put((ch < 0x20 || ch > 0x7e) ? (byte) '?' : (byte) ch);
+                }
+            }
+            target.put((byte) '"');
+            target.put((byte) '}');
+            target.put((byte) ' ');
+            number(value);
+            target.put((byte) '\n');
+        }
+
+        private void name(byte[] name, byte[] labels) {
+            target.put(name);
+            if (labels != null) {
+                target.put((byte) '{');
+                target.put(labels);
+                target.put((byte) '}');
+            }
+            target.put((byte) ' ');
+        }
+
+        private void number(long v) {
+            if (v < 0) {
+                if (v == Long.MIN_VALUE) {
+                    target.put(MIN_VALUE);
+                    return;
+                }
+                target.put((byte) '-');
+                v = -v;
+            }
+            int n = digits.length;
+            do {
+                digits[--n] = (byte) ('0' + v % 10);
+                v /= 10;
+            } while (v != 0);
+            target.put(digits, n, digits.length - n);
+        }
+    }
+}
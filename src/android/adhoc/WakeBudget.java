@@ -0,0 +1,218 @@
+/*
+*  This file is part of Barnacle Wifi Tether
+*  Copyright (C) 2010 by Szymon Jakubczak
+*
+*  This program is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package android.adhoc;
+
+
+/**
+ * Decides when AdHocService holds its wake lock.
+ *
+ * With a period of 0 the lock is held all the time, as before. Otherwise it
+ * is held only
+ *  - while pinned, i.e. the service is starting or stopping,
+ *  - for HOLD ms after a poke: link, peer and route changes and responses
+ *    to commands the user started, but not responses to our own polls,
+ *    which would keep the lock held for good,
+ *  - in an ACTIVE window at the start of every period.
+ * Windows are aligned to wall clock time, so peers with roughly synchronized
+ * clocks are awake together and can exchange beacons and queued traffic.
+ * A longer period saves more battery and adds up to one period of latency.
+ *
+ * Between windows a wakeup alarm is set for the next boundary. All the
+ * platform parts are behind interfaces so the scheduling can run on a
+ * simulated clock.
+ */
+class WakeBudget {
+    final static long ACTIVE = 5000;   // ms awake at the start of each period
+    final static long HOLD = 10000;    // ms awake after activity
+    final static long HOUR = 3600 * 1000;
+    final static int HOURS = 24;       // metrics kept
+
+    interface Clock {
+        /** wall clock time in ms, as used for RTC alarms */
+        long now();
+    }
+
+    interface Lock {
+        void acquire();
+        void release();
+    }
+
+    interface Alarm {
+        /** wake the device and call update() at time, replacing any earlier alarm */
+        void set(long time);
+        void cancel();
+    }
+
+    private final Clock clock;
+    private final Lock lock;
+    private final Alarm alarm;
+    private long period = 0;
+    private boolean pinned = false;
+    private long activeUntil = 0;
+    private boolean held = false;
+    private long accounted = 0;        // held time is accounted up to here
+    private boolean running = false;
+
+    // per-hour metrics, a ring indexed by hour % HOURS
+    private final long[] hourOf = new long[HOURS];
+    private final long[] heldMs = new long[HOURS];
+    private final int[] wakeups = new int[HOURS];
+
+    WakeBudget(Clock clock, Lock lock, Alarm alarm) {
+        this.clock = clock;
+        this.lock = lock;
+        this.alarm = alarm;
+        for (int i = 0; i < HOURS; ++i) {
+            hourOf[i] = -1;
+        }
+    }
+
+    /** @param period duty cycle in ms, 0 to stay awake */
+    synchronized void start(long period) {
+        this.running = true;
+        this.period = (period > ACTIVE) ? period : 0;
+        this.update();
+    }
+
+    /** Releases the lock for good. */
+    synchronized void stop() {
+        long now = clock.now();
+        account(now);
+        if (held) {
+            lock.release();
+            held = false;
+        }
+        alarm.cancel();
+        running = false;
+    }
+
+    synchronized void setPeriod(long period) {
+        this.period = (period > ACTIVE) ? period : 0;
+        this.update();
+    }
+
+    synchronized long getPeriod() {
+        return period;
+    }
+
+    /** While pinned the lock is held regardless of the duty cycle. */
+    synchronized void setPinned(boolean pinned) {
+        if (this.pinned != pinned) {
+            this.pinned = pinned;
+            this.update();
+        }
+    }
+
+    /** Something happened that deserves a response soon. */
+    synchronized void poke() {
+        long until = clock.now() + HOLD;
+        if (until > activeUntil) {
+            activeUntil = until;
+            if (!held) {
+                update();
+            } // else the alarm at the old boundary will extend it
+        }
+    }
+
+    /**
+     * Takes or drops the lock as due now and sets the alarm for the next
+     * boundary. Called on every change and from the alarm.
+     */
+    synchronized void update() {
+        if (!running) {
+            return;
+        }
+        long now = clock.now();
+        account(now);
+        boolean want = (period == 0) || pinned || now < activeUntil || inWindow(now);
+        if (want && !held) {
+            lock.acquire();
+            held = true;
+            ++wakeups[bucket(now / HOUR)];
+        } else if (!want && held) {
+            lock.release();
+            held = false;
+        }
+        if (period == 0 || pinned) {
+            alarm.cancel();
+            return;
+        }
+        long next = windowBoundary(now);
+        if (now < activeUntil && activeUntil < next) {
+            next = activeUntil;
+        }
+        alarm.set(next);
+    }
+
+    synchronized boolean isHeld() {
+        return held;
+    }
+
+    boolean inWindow(long now) {
+        return period != 0 && (now % period) < ACTIVE;
+    }
+
+    /** @return the next start or end of an active window after now */
+    long windowBoundary(long now) {
+        long start = now - (now % period);
+        return inWindow(now) ? start + ACTIVE : start + period;
+    }
+
+    /** @return ms the lock was held in the hour hoursAgo hours back, 0 is this hour */
+    synchronized long getHeldMs(int hoursAgo) {
+        long now = clock.now();
+        account(now);
+        int b = find(now / HOUR - hoursAgo);
+        return b < 0 ? 0 : heldMs[b];
+    }
+
+    /** @return times the lock was taken in that hour */
+    synchronized int getWakeups(int hoursAgo) {
+        int b = find(clock.now() / HOUR - hoursAgo);
+        return b < 0 ? 0 : wakeups[b];
+    }
+
+    private int find(long hour) {
+        int b = (int)(hour % HOURS);
+        return (hour >= 0 && hourOf[b] == hour) ? b : -1;
+    }
+
+    private int bucket(long hour) {
+        int b = (int)(hour % HOURS);
+        if (hourOf[b] != hour) {
+            hourOf[b] = hour;
+            heldMs[b] = 0;
+            wakeups[b] = 0;
+        }
+        return b;
+    }
+
+    /** adds the held time since the last call, split at hour boundaries */
+    private void account(long now) {
+        if (held) {
+            long t = accounted;
+            while (t < now) {
+                long end = Math.min(now, (t / HOUR + 1) * HOUR);
+                heldMs[bucket(t / HOUR)] += end - t;
+                t = end;
+            }
+        }
+        accounted = now;
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ *  This file is part of Barnacle Wifi Tether
+ *  Copyright (C) 2010 by Szymon Jakubczak
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+// Channel::score and Channel::pick replayed on recorded scans, see channel.hh
+//
+//   g++ -Wall -I native/wifi tests/native/channel_test.cc -o /tmp/channel_test
+//   /tmp/channel_test
+
+#include <stdio.h>
+#include <stdlib.h>
+
+#include <channel.hh>
+
+using namespace Channel;
+
+static int failures = 0;
+
+#define CHECK_EQ(a, b) { \
+    int _a = (a), _b = (b); \
+    if (_a != _b) { \
+      fprintf(stderr, "%s:%d: %s == %d, expected %d\n", __FILE__, __LINE__, #a, _a, _b); \
+      ++failures; \
+    } \
+  }
+
+#define BSS(last, ch, level, ours) { { 0x02, 0, 0, 0, 0, last }, ch, level, 0, ours }
+
+// a venue as seen from the middle of the room: busy on 1 and 6, 11 is clear
+static const Bss Venue[] = {
+  BSS(0x10, 1, -45, false), BSS(0x11, 1, -52, false), BSS(0x12, 1, -60, false),
+  BSS(0x13, 2, -70, false),
+  BSS(0x20, 6, -40, false), BSS(0x21, 6, -48, false), BSS(0x22, 6, -55, false),
+  BSS(0x23, 6, -66, false), BSS(0x24, 7, -75, false),
+  BSS(0x30, 11, -88, false),
+};
+static const int VenueSize = sizeof(Venue) / sizeof(Venue[0]);
+
+static void testFromFreq() {
+  CHECK_EQ(fromFreq(2412), 1);
+  CHECK_EQ(fromFreq(2437), 6);
+  CHECK_EQ(fromFreq(2472), 13);
+  CHECK_EQ(fromFreq(2484), 14);
+  CHECK_EQ(fromFreq(11), 11); // TIWLAN reports channel numbers
+  CHECK_EQ(fromFreq(5180), 0);
+}
+
+static void testScore() {
+  int cost[Max + 1];
+  // nothing around: only the noise floor, which is 0
+  score(NULL, 0, 0, 0, cost);
+  for (int c = 1; c <= Max; ++c)
+    CHECK_EQ(cost[c], 0);
+
+  // one strong cell on 6 reaches 2..10, less with distance
+  Bss one[] = { BSS(1, 6, -40, false) };
+  score(one, 1, 0, 0, cost);
+  CHECK_EQ(cost[6], weight(-40) * 5);
+  CHECK_EQ(cost[4], weight(-40) * 3);
+  CHECK_EQ(cost[2], weight(-40) * 1);
+  CHECK_EQ(cost[1], 0);
+  CHECK_EQ(cost[11], 0);
+
+  // our own cell is not in the way, busy only counts on the current channel
+  one[0].ours = true;
+  score(one, 1, 6, 10, cost);
+  CHECK_EQ(cost[6], BusyWeight * 10);
+  CHECK_EQ(cost[5], 0);
+
+  // noise above the floor costs on its channel only
+  Bss noisy[] = { { { 0 }, 3, -60, -85, false } };
+  int quiet[Max + 1];
+  noisy[0].noise = 0;
+  score(noisy, 1, 0, 0, quiet);
+  noisy[0].noise = -85;
+  score(noisy, 1, 0, 0, cost);
+  CHECK_EQ(cost[3] - quiet[3], 4 * 10);
+  CHECK_EQ(cost[4] - quiet[4], 0);
+}
+
+static void testPick() {
+  // empty air: the first of the tie-break order
+  CHECK_EQ(pick(NULL, 0, 0, 0, 0), 1);
+  // the venue: 11 is the clear one
+  CHECK_EQ(pick(Venue, VenueSize, 0, 0, 0), 11);
+  // running on 6, far worse than 11: move
+  CHECK_EQ(pick(Venue, VenueSize, 6, 0, 0), 11);
+  // running on 12, in the same quantum as 11: stay
+  int cost[Max + 1];
+  score(Venue, VenueSize, 12, 0, cost);
+  CHECK_EQ(cost[12] / Quantum, cost[11] / Quantum);
+  CHECK_EQ(pick(Venue, VenueSize, 12, 0, 0), 12);
+  // ... until our own channel gets busy
+  CHECK_EQ(pick(Venue, VenueSize, 12, 0, 40), 11);
+  // running on 9, Margin quanta worse: move
+  CHECK_EQ(cost[9] / Quantum - cost[11] / Quantum >= Margin, 1);
+  CHECK_EQ(pick(Venue, VenueSize, 9, 0, 0), 11);
+  // a channel we just left is not picked again
+  CHECK_EQ(pick(Venue, VenueSize, 0, 11, 0) != 11, 1);
+}
+
+static void testFollow() {
+  Bss scan[VenueSize + 2];
+  memcpy(scan, Venue, sizeof(Venue));
+  // our ESSID on 6 wins over the better 11
+  scan[VenueSize] = (Bss)BSS(0x40, 6, -50, true);
+  CHECK_EQ(pick(scan, VenueSize + 1, 0, 0, 0), 6);
+  CHECK_EQ(pick(scan, VenueSize + 1, 11, 0, 0), 6);
+  // but not if it is on the channel we are avoiding, i.e. stragglers
+  CHECK_EQ(pick(scan, VenueSize + 1, 11, 6, 0), 11);
+  // only ourselves around: scoring as usual
+  scan[VenueSize].channel = 11;
+  CHECK_EQ(pick(scan, VenueSize + 1, 11, 0, 0), 11);
+}
+
+/**
+ * A mesh moved from 6 to 11 and some nodes stayed behind. Those left on 6
+ * hear both cells, so do the movers once avoid runs out: all must end up
+ * on the same channel, whatever their BSSIDs and busy time.
+ */
+static void testSplit() {
+  for (int lowOnOld = 0; lowOnOld < 2; ++lowOnOld) {
+    Bss scan[VenueSize + 2];
+    memcpy(scan, Venue, sizeof(Venue));
+    uint8_t low = 0x50, high = 0x60;
+    scan[VenueSize] = (Bss)BSS(lowOnOld ? low : high, 6, -50, true);
+    scan[VenueSize + 1] = (Bss)BSS(lowOnOld ? high : low, 11, -50, true);
+    int n = VenueSize + 2;
+    CHECK_EQ(pick(scan, n, 11, 6, 0), 11);       // movers stay
+    for (int busy = 0; busy <= 60; busy += 30) {
+      CHECK_EQ(pick(scan, n, 6, 0, busy), 11);   // stragglers follow
+      CHECK_EQ(pick(scan, n, 11, 0, busy), 11);  // movers, once avoid runs out
+      CHECK_EQ(pick(scan, n, 0, 0, busy), 11);   // a node joining
+    }
+  }
+
+  // two channels that cost the same: the lowest BSSID decides for everybody
+  Bss tie[] = { BSS(0x70, 1, -50, true), BSS(0x71, 11, -50, true) };
+  CHECK_EQ(pick(tie, 2, 1, 0, 50), 1);
+  CHECK_EQ(pick(tie, 2, 11, 0, 50), 1);
+  CHECK_EQ(pick(tie, 2, 0, 0, 0), 1);
+}
+
+/**
+ * Nodes spread over the room see the venue a little differently; starting
+ * together they must still pick the same channel.
+ */
+static void testConverge() {
+  srand(1);
+  for (int round = 0; round < 1000; ++round) {
+    int first = 0;
+    for (int node = 0; node < 8; ++node) {
+      Bss scan[VenueSize];
+      memcpy(scan, Venue, sizeof(Venue));
+      for (int i = 0; i < VenueSize; ++i)
+        scan[i].level += rand() % 7 - 3;
+      int c = pick(scan, VenueSize, 0, 0, 0);
+      if (!first) first = c;
+      CHECK_EQ(c, first);
+    }
+  }
+}
+
+int main() {
+  testFromFreq();
+  testScore();
+  testPick();
+  testFollow();
+  testSplit();
+  testConverge();
+  if (failures) {
+    fprintf(stderr, "%d failures\n", failures);
+    return 1;
+  }
+  printf("ok\n");
+  return 0;
+}
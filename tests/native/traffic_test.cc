@@ -0,0 +1,274 @@
+/*
+ *  This file is part of Barnacle Wifi Tether
+ *  Copyright (C) 2010 by Szymon Jakubczak
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+// The per-peer traffic table of traffic.hh: keys, probing, overflow, the
+// top list, frame parsing, and the table swap of a snapshot on loopback.
+//
+//   g++ -Wall -I native/wifi -I native/include tests/native/traffic_test.cc -lpthread -o /tmp/traffic_test
+//   /tmp/traffic_test
+//
+// The capture needs a packet socket, i.e. root; without one it is skipped.
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <net/if.h>
+#include <netinet/in.h>
+
+#include <traffic.hh>
+
+using namespace Traffic;
+
+static int failures = 0;
+
+#define CHECK_EQ(a, b) { \
+    long long _a = (a), _b = (b); \
+    if (_a != _b) { \
+      fprintf(stderr, "%s:%d: %s == %lld, expected %lld\n", __FILE__, __LINE__, #a, _a, _b); \
+      ++failures; \
+    } \
+  }
+
+static Table table;
+
+static uint64_t peer(unsigned n) {
+  uint8_t mac[6] = { 0x02, 0, 0, (uint8_t)(n >> 16), (uint8_t)(n >> 8), (uint8_t)n };
+  return key(mac);
+}
+
+// the first n keys after from whose home slot is slot
+static void inSlot(unsigned slot, uint64_t *keys, unsigned n, unsigned from) {
+  for (unsigned i = from; n > 0; ++i) {
+    if ((hash(peer(i)) & (Capacity - 1)) == slot) {
+      *keys++ = peer(i);
+      --n;
+    }
+  }
+}
+
+static void testKey() {
+  uint8_t mac[6] = { 0x02, 0x11, 0x22, 0x33, 0x44, 0x55 };
+  table.clear();
+  Entry *e = table.get(key(mac));
+  CHECK_EQ(e->mac(), 0x021122334455LL);
+  // the zero MAC is a peer too, not an empty slot
+  uint8_t zero[6] = { 0 };
+  CHECK_EQ(key(zero) != 0, 1);
+  CHECK_EQ(table.get(key(zero)) != NULL, 1);
+  CHECK_EQ(table.get(key(zero))->mac(), 0);
+  CHECK_EQ(table.size(), 2);
+}
+
+static void testProbing() {
+  // colliding keys take the next slots and are all found again
+  table.clear();
+  uint64_t keys[4];
+  inSlot(7, keys, 4, 0);
+  Entry *e[4];
+  for (int i = 0; i < 4; ++i)
+    e[i] = table.get(keys[i]);
+  for (int i = 0; i < 4; ++i) {
+    CHECK_EQ(e[i] - e[0], i);
+    CHECK_EQ(table.get(keys[i]) == e[i], 1);
+    CHECK_EQ(e[i]->key, keys[i]);
+  }
+  CHECK_EQ(table.size(), 4);
+
+  // and wrap around at the end of the table
+  table.clear();
+  uint64_t last[2];
+  inSlot(Capacity - 1, last, 2, 0);
+  Entry *a = table.get(last[0]);
+  Entry *b = table.get(last[1]);
+  CHECK_EQ(b - a, -(long long)(Capacity - 1));
+  CHECK_EQ(table.get(last[1]) == b, 1);
+}
+
+static void testOverflow() {
+  table.clear();
+  for (unsigned i = 0; i < MaxLoad; ++i)
+    table.add(peer(i), 0, false, 100);
+  CHECK_EQ(table.size(), MaxLoad);
+  CHECK_EQ(table.overflow, 0);
+  // no room for a new peer: counted as overflow, the others still count
+  CHECK_EQ(table.get(peer(MaxLoad)) == NULL, 1);
+  table.add(peer(MaxLoad), 0, false, 100);
+  table.add(peer(MaxLoad + 1), 0, true, 100);
+  CHECK_EQ(table.overflow, 2);
+  table.add(peer(0), 0, true, 50);
+  CHECK_EQ(table.get(peer(0))->txPackets, 1);
+  CHECK_EQ(table.size(), MaxLoad);
+  // every peer that fit is found, with its own count
+  unsigned found = 0;
+  for (unsigned i = 0; i < MaxLoad; ++i) {
+    Entry *e = table.get(peer(i));
+    if (e && e->rxPackets == 1 && e->rxBytes == 100) ++found;
+  }
+  CHECK_EQ(found, MaxLoad);
+  table.clear();
+  CHECK_EQ(table.size(), 0);
+  CHECK_EQ(table.overflow, 0);
+  CHECK_EQ(table.get(peer(MaxLoad)) != NULL, 1);
+}
+
+static void testTop() {
+  table.clear();
+  for (unsigned i = 1; i <= 20; ++i)
+    table.add(peer(i), 0, i % 2, i * 1000);
+  Entry top[5];
+  CHECK_EQ(table.top(top, 5), 5);
+  for (int i = 0; i < 5; ++i)
+    CHECK_EQ(top[i].mac(), peer(20 - i) & 0xffffffffffffULL);
+  Entry all[30];
+  CHECK_EQ(table.top(all, 30), 20);
+  CHECK_EQ(all[19].bytes(), 1000);
+  // rx and tx both count
+  table.add(peer(1), 0, true, 100000);
+  CHECK_EQ(table.top(top, 1), 1);
+  CHECK_EQ(top[0].mac(), peer(1) & 0xffffffffffffULL);
+  CHECK_EQ(top[0].rxBytes + top[0].txBytes, 101000);
+  table.clear();
+  CHECK_EQ(table.top(top, 5), 0);
+}
+
+// an Ethernet frame from mac 0x02..01 to 0x02..02, of the given type
+static void frame(uint8_t *b, uint8_t type, uint8_t version) {
+  memset(b, 0, Snap);
+  uint8_t dst[6] = { 0x02, 0, 0, 0, 0, 0x02 };
+  uint8_t src[6] = { 0x02, 0, 0, 0, 0, 0x01 };
+  memcpy(b, dst, 6);
+  memcpy(b + 6, src, 6);
+  b[12] = 0x08;
+  b[13] = type;
+  b[14] = version << 4 | 5;
+  uint8_t ips[8] = { 170, 160, 1, 1, 170, 160, 1, 2 }; // src, dst
+  memcpy(b + 26, ips, 8);
+}
+
+static void testAccount() {
+  uint8_t b[Snap];
+  uint64_t from = peer(1), to = peer(2);
+  table.clear();
+  // received: by source MAC and IP
+  frame(b, 0x00, 4);
+  account(table, b, Snap, 1500, false);
+  CHECK_EQ(table.get(from)->rxPackets, 1);
+  CHECK_EQ(table.get(from)->rxBytes, 1500);
+  CHECK_EQ(table.get(from)->ip, 0xAAA00101);
+  // sent: by destination
+  account(table, b, Snap, 60, true);
+  CHECK_EQ(table.get(to)->txPackets, 1);
+  CHECK_EQ(table.get(to)->txBytes, 60);
+  CHECK_EQ(table.get(to)->ip, 0xAAA00102);
+  CHECK_EQ(table.size(), 2);
+
+  // not IPv4: counted, the address is kept from before
+  frame(b, 0x06, 4); // ARP
+  account(table, b, Snap, 42, false);
+  CHECK_EQ(table.get(from)->rxPackets, 2);
+  CHECK_EQ(table.get(from)->ip, 0xAAA00101);
+  frame(b, 0x00, 6);
+  b[26] = 10;
+  account(table, b, Snap, 42, false);
+  CHECK_EQ(table.get(from)->ip, 0xAAA00101);
+  // cut before the addresses: no address either
+  frame(b, 0x00, 4);
+  b[26] = 10;
+  account(table, b, Snap - 1, 42, false);
+  CHECK_EQ(table.get(from)->rxPackets, 4);
+  CHECK_EQ(table.get(from)->ip, 0xAAA00101);
+  // shorter than an Ethernet header: ignored
+  account(table, b, ETH_HLEN - 1, 42, false);
+  CHECK_EQ(table.get(from)->rxPackets, 4);
+  CHECK_EQ(table.size(), 2);
+}
+
+static Capture capture;
+static Entry all[MaxLoad];
+
+// the entry of mac in a table the capture may no longer write, zeros if none
+static Entry find(const Table &t, uint64_t mac) {
+  unsigned n = t.top(all, MaxLoad);
+  for (unsigned i = 0; i < n; ++i)
+    if (all[i].mac() == mac) return all[i];
+  Entry none;
+  memset(&none, 0, sizeof(none));
+  return none;
+}
+
+// sends n datagrams to ourselves, waits for them to be counted
+static void loopback(unsigned n, const Table *&t) {
+  int s = socket(AF_INET, SOCK_DGRAM, 0);
+  sockaddr_in to;
+  memset(&to, 0, sizeof(to));
+  to.sin_family = AF_INET;
+  to.sin_port = htons(9); // discard
+  to.sin_addr.s_addr = htonl(INADDR_LOOPBACK);
+  char payload[100] = { 0 };
+  for (unsigned i = 0; i < n; ++i)
+    sendto(s, payload, sizeof(payload), 0, (sockaddr *)&to, sizeof(to));
+  close(s);
+  usleep(200 * 1000);
+  long long ms;
+  unsigned drops;
+  t = &capture.snapshot(ms, drops);
+  CHECK_EQ(drops, 0);
+}
+
+static void testSnapshot() {
+  unsigned lo = if_nametoindex("lo");
+  if (!lo || !capture.start(lo)) {
+    printf("snapshot skipped, no packet socket\n");
+    return;
+  }
+  const Table *t;
+  loopback(0, t); // whatever came before
+  // each datagram is seen going out and coming in, from and to MAC 0
+  loopback(100, t);
+  const Table *first = t;
+  Entry e = find(*first, 0);
+  CHECK_EQ(e.txPackets >= 100, 1);
+  CHECK_EQ(e.rxPackets >= 100, 1);
+  CHECK_EQ(e.ip, 0x7f000001);
+
+  // the next snapshot has only what came since, in the other table
+  loopback(10, t);
+  CHECK_EQ(t != first, 1);
+  e = find(*t, 0);
+  CHECK_EQ(e.txPackets >= 10 && e.txPackets < 100, 1);
+  CHECK_EQ(e.rxPackets >= 10 && e.rxPackets < 100, 1);
+
+  // and the one after that is the first table again, counted afresh
+  loopback(0, t);
+  CHECK_EQ(t == first, 1);
+  CHECK_EQ(find(*t, 0).txPackets < 10, 1);
+}
+
+int main() {
+  testKey();
+  testProbing();
+  testOverflow();
+  testTop();
+  testAccount();
+  testSnapshot();
+  if (failures) {
+    fprintf(stderr, "%d failures\n", failures);
+    return 1;
+  }
+  printf("ok\n");
+  return 0;
+}
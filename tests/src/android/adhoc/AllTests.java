@@ -0,0 +1,44 @@
+/*
+*  This file is part of Barnacle Wifi Tether
+*  Copyright (C) 2010 by Szymon Jakubczak
+*
+*  This program is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package android.adhoc;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+
+/**
+ * All the tests of the tests/ tree, see README.
+ */
+public class AllTests {
+    public static Test suite() {
+        TestSuite suite = new TestSuite("android.adhoc");
+        suite.addTestSuite(ServiceStateTest.class);
+        suite.addTestSuite(NativeClassifierTest.class);
+        suite.addTestSuite(NativeControlTest.class);
+        suite.addTestSuite(NeighborDiscoveryTest.class);
+        suite.addTestSuite(MeshRouterTest.class);
+        suite.addTestSuite(AssetExtractorTest.class);
+        suite.addTestSuite(NetsCoalescerTest.class);
+        suite.addTestSuite(WakeBudgetTest.class);
+        suite.addTestSuite(ReliableMulticastTest.class);
+        suite.addTestSuite(StatsServerTest.class);
+        suite.addTestSuite(MeshTransportTest.class);
+        return suite;
+    }
+}
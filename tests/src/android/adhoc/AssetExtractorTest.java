@@ -0,0 +1,220 @@
+/*
+*  This file is part of Barnacle Wifi Tether
+*  Copyright (C) 2010 by Szymon Jakubczak
+*
+*  This program is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package android.adhoc;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+
+/**
+ * AssetExtractor on a temporary directory with assets in memory: what is
+ * read, what is written, and what the manifest keeps between runs.
+ */
+public class AssetExtractorTest extends TestCase {
+    private File dir;
+    private final TreeMap<String, byte[]> assets = new TreeMap<String, byte[]>();
+    private final HashMap<String, byte[]> changeOnOpen = new HashMap<String, byte[]>();
+    private final ArrayList<String> opened = new ArrayList<String>();
+    private final ArrayList<String> permitted = new ArrayList<String>();
+
+    private final AssetExtractor.Source source = new AssetExtractor.Source() {
+        public String[] list() {
+            return assets.keySet().toArray(new String[assets.size()]);
+        }
+        public InputStream open(String name) throws IOException {
+            opened.add(name);
+            byte[] b = assets.get(name);
+            if (b == null) {
+                throw new IOException("no asset " + name);
+            }
+            byte[] next = changeOnOpen.remove(name);
+            if (next != null) {
+                assets.put(name, next);
+            }
+            return new ByteArrayInputStream(b);
+        }
+    };
+
+    private final AssetExtractor.Permissions permissions = new AssetExtractor.Permissions() {
+        public void set(String name, File file) {
+            assertTrue(file.getName().endsWith(AssetExtractor.TMP));
+            permitted.add(name);
+        }
+    };
+
+    @Override
+    protected void setUp() throws IOException {
+        dir = File.createTempFile("assets", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+        assets.put("run", "#!/system/bin/sh\necho run\n".getBytes());
+        assets.put("wifi", binary(100000, 1));
+        assets.put("su_c", binary(3000, 2));
+    }
+
+    @Override
+    protected void tearDown() {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    private static byte[] binary(int size, int seed) {
+        byte[] b = new byte[size];
+        for (int i = 0; i < size; ++i) {
+            b[i] = (byte) (i * 31 + seed);
+        }
+        return b;
+    }
+
+    private AssetExtractor extract(String stamp) throws IOException {
+        opened.clear();
+        permitted.clear();
+        AssetExtractor x = new AssetExtractor(dir, source, stamp, permissions);
+        assertTrue(x.extract());
+        return x;
+    }
+
+    private byte[] read(String name) throws IOException {
+        File f = new File(dir, name);
+        byte[] b = new byte[(int) f.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(f));
+        try {
+            in.readFully(b);
+        } finally {
+            in.close();
+        }
+        return b;
+    }
+
+    private void assertExtracted() throws IOException {
+        for (String name : assets.keySet()) {
+            assertTrue(name, Arrays.equals(assets.get(name), read(name)));
+        }
+        assertFalse(new File(dir, AssetExtractor.MANIFEST + AssetExtractor.TMP).exists());
+    }
+
+    public void testFirstRun() throws IOException {
+        AssetExtractor x = extract("1-100");
+        assertEquals(3, x.checked);
+        assertEquals(3, x.written);
+        assertEquals(3, permitted.size());
+        assertTrue(new File(dir, AssetExtractor.MANIFEST).isFile());
+        assertExtracted();
+    }
+
+    public void testSameStamp() throws IOException {
+        extract("1-100");
+        AssetExtractor x = extract("1-100");
+        // nothing read at all
+        assertEquals(0, opened.size());
+        assertEquals(0, x.checked);
+        assertEquals(0, x.written);
+    }
+
+    public void testUpdate() throws IOException {
+        extract("1-100");
+        // a new package with the same assets: checked, not written
+        AssetExtractor x = extract("2-200");
+        assertEquals(3, x.checked);
+        assertEquals(0, x.written);
+        assertEquals(0, permitted.size());
+        // one asset changed, with the same size
+        byte[] wifi = binary(100000, 3);
+        assets.put("wifi", wifi);
+        x = extract("3-300");
+        assertEquals(3, x.checked);
+        assertEquals(1, x.written);
+        assertEquals("[wifi]", permitted.toString());
+        assertExtracted();
+        // a new asset
+        assets.put("script_hero", "wlan_loader\n".getBytes());
+        x = extract("4-400");
+        assertEquals(1, x.written);
+        assertEquals("[script_hero]", permitted.toString());
+        assertExtracted();
+        // and nothing to do after that
+        x = extract("4-400");
+        assertEquals(0, opened.size());
+    }
+
+    public void testDamaged() throws IOException {
+        extract("1-100");
+        // truncated by someone: the stamp alone is not trusted
+        FileWriter w = new FileWriter(new File(dir, "run"));
+        w.write("#!");
+        w.close();
+        AssetExtractor x = extract("1-100");
+        assertEquals(3, x.checked);
+        assertEquals(1, x.written);
+        assertEquals("[run]", permitted.toString());
+        assertExtracted();
+
+        assertTrue(new File(dir, "su_c").delete());
+        x = extract("1-100");
+        assertEquals(1, x.written);
+        assertExtracted();
+    }
+
+    public void testBadManifest() throws IOException {
+        extract("1-100");
+        FileWriter w = new FileWriter(new File(dir, AssetExtractor.MANIFEST));
+        w.write("1-100\nwifi notanumber 0\n");
+        w.close();
+        AssetExtractor x = extract("1-100");
+        assertEquals(3, x.checked);
+        assertEquals(3, x.written);
+        assertExtracted();
+        // and a good one again
+        x = extract("1-100");
+        assertEquals(0, opened.size());
+    }
+
+    public void testChangedWhileExtracting() throws IOException {
+        extract("1-100");
+        byte[] old = assets.get("wifi");
+        assets.put("wifi", binary(100000, 4));
+        // checksummed as one thing, then reads as another
+        changeOnOpen.put("wifi", binary(100000, 5));
+        try {
+            extract("2-200");
+            fail("extracted an asset that changed");
+        } catch (IOException e) {
+        }
+        // the old file is still in place, whole
+        assertTrue(Arrays.equals(old, read("wifi")));
+        // and the next run retries, the manifest was not updated
+        AssetExtractor x = extract("2-200");
+        assertEquals(3, x.checked);
+        assertEquals(1, x.written);
+        assertExtracted();
+    }
+}
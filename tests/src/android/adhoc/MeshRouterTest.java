@@ -0,0 +1,272 @@
+/*
+*  This file is part of Barnacle Wifi Tether
+*  Copyright (C) 2010 by Szymon Jakubczak
+*
+*  This program is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package android.adhoc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Several MeshRouters wired together on a simulated clock: MPR selection,
+ * least ETX routes, and the route changes handed to the sink.
+ */
+public class MeshRouterTest extends TestCase {
+    private final static long STEP = 100; // ms
+
+    private static int ip(int node) {
+        return 0xAAA00100 + node;
+    }
+
+    /** the nodes, their links and a queue of messages in the air */
+    private static class Mesh {
+        final MeshRouter[] routers;
+        final boolean[][] link;
+        final ArrayList<ArrayList<String>> sinks = new ArrayList<ArrayList<String>>();
+        final ArrayList<Object[]> air = new ArrayList<Object[]>(); // { from, bytes }
+        long now = 0;
+
+        Mesh(int n) {
+            routers = new MeshRouter[n];
+            link = new boolean[n][n];
+            for (int i = 0; i < n; ++i) {
+                final ArrayList<String> sink = new ArrayList<String>();
+                sinks.add(sink);
+                routers[i] = new MeshRouter(ip(i), new MeshRouter.RouteSink() {
+                    public void addRoute(int dst, int gw, int hops) {
+                        sink.add("add " + (dst & 0xff) + " via " + (gw & 0xff) + " " + hops);
+                    }
+                    public void delRoute(int dst, int gw) {
+                        sink.add("del " + (dst & 0xff) + " via " + (gw & 0xff));
+                    }
+                });
+                final int from = i;
+                routers[i].setTransport(new MeshRouter.Transport() {
+                    public void send(byte[] b, int len) throws IOException {
+                        byte[] copy = new byte[len];
+                        System.arraycopy(b, 0, copy, 0, len);
+                        air.add(new Object[] { from, copy });
+                    }
+                });
+            }
+        }
+
+        void connect(int a, int b, boolean up) {
+            link[a][b] = up;
+            link[b][a] = up;
+        }
+
+        void run(long ms) {
+            for (long end = now + ms; now < end; now += STEP) {
+                for (MeshRouter r : routers) {
+                    r.tick(now);
+                }
+                // delivered in order, forwarded TCs go to the end
+                for (int m = 0; m < air.size(); ++m) {
+                    int from = (Integer) air.get(m)[0];
+                    byte[] b = (byte[]) air.get(m)[1];
+                    for (int to = 0; to < routers.length; ++to) {
+                        if (link[from][to]) {
+                            routers[to].receive(b, b.length, now);
+                        }
+                    }
+                }
+                air.clear();
+            }
+        }
+
+        /** @return "gw hops" of the route from a to b, null if none */
+        String route(int a, int b) {
+            MeshRouter.Route r = routers[a].routes().get(ip(b));
+            return r == null ? null : (r.gw & 0xff) + " " + r.hops;
+        }
+    }
+
+    private static Mesh line(int n) {
+        Mesh m = new Mesh(n);
+        for (int i = 0; i + 1 < n; ++i) {
+            m.connect(i, i + 1, true);
+        }
+        return m;
+    }
+
+    public void testEtx() {
+        assertEquals(MeshRouter.COST_SCALE, MeshRouter.etx(255, 255));
+        assertEquals(4 * MeshRouter.COST_SCALE, MeshRouter.etx(128, 128), 8);
+        assertEquals(MeshRouter.MAX_COST, MeshRouter.etx(0, 255));
+        assertEquals(MeshRouter.MAX_COST, MeshRouter.etx(255, 0));
+        assertEquals(MeshRouter.MAX_COST, MeshRouter.etx(1, 1));
+    }
+
+    public void testLine() {
+        Mesh m = line(5);
+        m.run(30000);
+        for (int a = 0; a < 5; ++a) {
+            assertEquals(a == 0 || a == 4 ? 1 : 2, m.routers[a].neighborCount());
+            for (int b = 0; b < 5; ++b) {
+                int hops = Math.abs(a - b);
+                String expected = hops < 2 ? null : (a < b ? a + 1 : a - 1) + " " + hops;
+                assertEquals(a + " -> " + b, expected, m.route(a, b));
+            }
+        }
+        // each installed once, nothing taken back on a stable mesh
+        assertEquals(3, m.sinks.get(0).size());
+        assertTrue(m.sinks.get(0).contains("add 2 via 1 2"));
+        assertTrue(m.sinks.get(0).contains("add 3 via 1 3"));
+        assertTrue(m.sinks.get(0).contains("add 4 via 1 4"));
+        m.sinks.get(0).clear();
+        m.run(60000);
+        assertEquals(0, m.sinks.get(0).size());
+    }
+
+    public void testMprs() {
+        // 0 in the middle of 1, 2, 3; only 3 reaches 6, 1 and 2 both reach 4,
+        // 2 also reaches 5
+        Mesh m = new Mesh(7);
+        m.connect(0, 1, true);
+        m.connect(0, 2, true);
+        m.connect(0, 3, true);
+        m.connect(1, 4, true);
+        m.connect(2, 4, true);
+        m.connect(2, 5, true);
+        m.connect(3, 6, true);
+        m.run(20000);
+        // 3 for 6, 2 for 4 and 5, 1 is not needed
+        assertEquals(2, m.routers[0].mprCount());
+        assertEquals("3 2", m.route(0, 6));
+        assertEquals("2 2", m.route(0, 5));
+        // TCs flooded by the MPRs reach the far side
+        assertTrue(m.route(4, 3).endsWith(" 3"));
+        assertTrue(m.route(4, 6).endsWith(" 4"));
+        assertTrue(m.route(6, 5).endsWith(" 4"));
+    }
+
+    public void testMprsOnlyWay() {
+        // greedy by coverage alone would take 1 first and need all three,
+        // the only ways to 8 and 9 already cover everything
+        Mesh m = new Mesh(10);
+        m.connect(0, 1, true);
+        m.connect(0, 2, true);
+        m.connect(0, 3, true);
+        int[][] twoHop = { { 1, 4 }, { 1, 5 }, { 1, 6 }, { 1, 7 }, { 2, 4 }, { 2, 5 }, { 2, 8 },
+                           { 3, 6 }, { 3, 7 }, { 3, 9 } };
+        for (int[] l : twoHop) {
+            m.connect(l[0], l[1], true);
+        }
+        m.run(20000);
+        assertEquals(2, m.routers[0].mprCount());
+        assertEquals("2 2", m.route(0, 8));
+        assertEquals("3 2", m.route(0, 9));
+    }
+
+    public void testLeastCost() {
+        // 0 reaches 3 through 1 or 2, a bad link makes 1 the worse way
+        Mesh m = new Mesh(4);
+        m.connect(0, 1, true);
+        m.connect(0, 2, true);
+        m.connect(1, 3, true);
+        m.connect(2, 3, true);
+        m.run(20000);
+        String first = m.route(0, 3);
+        assertNotNull(first);
+        int gw = first.charAt(0) - '0';
+        int other = 3 - gw;
+        m.sinks.get(0).clear();
+        // lose most HELLOs between 0 and the gateway
+        for (int i = 0; i < 10; ++i) {
+            m.connect(0, gw, i % 4 == 0);
+            m.run(MeshRouter.HELLO_INTERVAL);
+        }
+        m.connect(0, gw, true);
+        m.run(STEP);
+        assertEquals(other + " 2", m.route(0, 3));
+        // the old route goes before the new one is added
+        ArrayList<String> sink = m.sinks.get(0);
+        int del = sink.indexOf("del 3 via " + gw);
+        int add = sink.indexOf("add 3 via " + other + " 2");
+        assertTrue(sink.toString(), del >= 0 && add > del);
+    }
+
+    public void testBreak() {
+        Mesh m = line(4);
+        m.run(20000);
+        assertEquals("1 3", m.route(0, 3));
+        m.sinks.get(0).clear();
+        m.connect(2, 3, false);
+        m.run(MeshRouter.TOPOLOGY_HOLD + MeshRouter.NEIGHBOR_HOLD + 1000);
+        assertNull(m.route(0, 3));
+        assertEquals("1 2", m.route(0, 2));
+        assertEquals("[del 3 via 1]", m.sinks.get(0).toString());
+
+        // and back
+        m.sinks.get(0).clear();
+        m.connect(2, 3, true);
+        m.run(20000);
+        assertEquals("1 3", m.route(0, 3));
+        assertEquals("[add 3 via 1 3]", m.sinks.get(0).toString());
+    }
+
+    public void testCloser() {
+        // 0 - 1 - 2 - 3, then 3 moves next to 0: the route becomes one hop
+        // and is withdrawn, the subnet route covers it
+        Mesh m = line(4);
+        m.run(20000);
+        m.sinks.get(0).clear();
+        m.connect(0, 3, true);
+        m.run(10000);
+        assertNull(m.route(0, 3));
+        assertTrue(m.sinks.get(0).contains("del 3 via 1"));
+        assertFalse(m.routers[0].routes().containsKey(ip(1)));
+    }
+
+    public void testPeriod() {
+        // all asleep but for the first ACTIVE ms of each period: no route lost
+        Mesh m = line(4);
+        m.run(20000);
+        assertEquals("1 3", m.route(0, 3));
+        m.sinks.get(0).clear();
+        for (MeshRouter r : m.routers) {
+            r.setPeriod(60000);
+        }
+        for (int i = 0; i < 5; ++i) {
+            m.run(WakeBudget.ACTIVE);
+            for (int a = 0; a < 3; ++a) {
+                m.connect(a, a + 1, false);
+            }
+            m.run(60000 - WakeBudget.ACTIVE);
+            for (int a = 0; a < 3; ++a) {
+                m.connect(a, a + 1, true);
+            }
+            assertEquals("1 3", m.route(0, 3));
+        }
+        assertEquals(0, m.sinks.get(0).size());
+    }
+
+    public void testStop() throws Exception {
+        Mesh m = line(3);
+        m.run(20000);
+        HashMap<Integer, MeshRouter.Route> routes = m.routers[0].routes();
+        assertEquals(1, routes.size());
+        // not started, so stop() leaves it alone
+        m.routers[0].stop();
+        assertEquals(1, m.routers[0].routes().size());
+    }
+}
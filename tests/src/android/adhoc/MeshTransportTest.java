@@ -0,0 +1,179 @@
+/*
+*  This file is part of Barnacle Wifi Tether
+*  Copyright (C) 2010 by Szymon Jakubczak
+*
+*  This program is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package android.adhoc;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+
+/**
+ * MeshTransport: the datagram parser on made-up datagrams, then batching
+ * and throughput over real sockets, where multicast loops back to us.
+ */
+public class MeshTransportTest extends TestCase {
+    private final static int SELF = 0xAAA00101;
+    private final static int PEER = 0xAAA00102;
+
+    private final ArrayList<String> heard = new ArrayList<String>();
+
+    private final MeshTransport.Listener recorder = new MeshTransport.Listener() {
+        public void onMessage(int sender, ByteBuffer data) {
+            StringBuilder b = new StringBuilder().append(sender & 0xff).append(':');
+            while (data.hasRemaining()) {
+                b.append((char) data.get());
+            }
+            heard.add(b.toString());
+        }
+    };
+
+    /** a datagram as transmit() writes it */
+    private static ByteBuffer datagram(int sender, int seq, String... messages) {
+        ByteBuffer b = ByteBuffer.allocate(MeshTransport.MTU);
+        b.putShort((short) MeshTransport.MAGIC).put((byte) MeshTransport.VERSION)
+            .put((byte) messages.length).putInt(sender).putInt(seq);
+        for (String m : messages) {
+            b.putShort((short) m.length());
+            for (int i = 0; i < m.length(); ++i) {
+                b.put((byte) m.charAt(i));
+            }
+        }
+        b.flip();
+        return b;
+    }
+
+    public void testReceived() throws IOException {
+        MeshTransport t = new MeshTransport(null, InetAddress.getByName("239.255.42.1"), 42424,
+                SELF, recorder);
+        t.received(datagram(PEER, 5, "ab", "", "c"), 0);
+        assertEquals("[2:ab, 2:, 2:c]", heard.toString());
+        assertEquals(1, t.datagramsReceived);
+        assertEquals(3, t.messagesReceived);
+
+        // our own, looped back
+        t.received(datagram(SELF, 0, "x"), 0);
+        assertEquals(1, t.datagramsReceived);
+
+        // a gap, then a late one and a repeat
+        t.received(datagram(PEER, 8, "d"), 0);
+        assertEquals(2, t.lost);
+        t.received(datagram(PEER, 7, "late"), 0);
+        t.received(datagram(PEER, 8, "d"), 0);
+        assertEquals(2, t.duplicates);
+        // a sender that started over is not a loss
+        t.received(datagram(PEER, 9 + MeshTransport.RESTART, "e"), 0);
+        t.received(datagram(PEER, 0, "f"), 0);
+        assertEquals(2, t.lost);
+        assertEquals("[2:ab, 2:, 2:c, 2:d, 2:e, 2:f]", heard.toString());
+
+        // broken: the messages before the break still count
+        ByteBuffer b = datagram(PEER, 1, "g", "hh");
+        b.limit(b.limit() - 1);
+        t.received(b, 0);
+        b = datagram(PEER, 2, "i");
+        b.putShort(0, (short) 0);
+        t.received(b, 0);
+        b = datagram(PEER, 3);
+        b.limit(MeshTransport.HEADER - 1);
+        t.received(b, 0);
+        assertEquals(3, t.malformed);
+        assertEquals("2:g", heard.get(heard.size() - 1));
+    }
+
+    /** @return an unstarted transport on the test group */
+    private static MeshTransport transport(int port, int self, MeshTransport.Listener listener)
+            throws IOException {
+        return new MeshTransport(null, InetAddress.getByName("239.255.42.1"), port, self, listener);
+    }
+
+    public void testThroughput() throws Exception {
+        final int messages = 20000;
+        final int size = 64;
+        final int[] got = new int[2]; // messages, out of order
+        final long[] last = new long[1];
+        // a port of our own, so that test runs side by side do not hear each other
+        int port = 40000 + new Random().nextInt(20000);
+        MeshTransport rx = transport(port, SELF, new MeshTransport.Listener() {
+            private int next = 0;
+            public void onMessage(int sender, ByteBuffer data) {
+                int n = data.getInt(data.position());
+                synchronized (got) {
+                    if (n < next || data.remaining() != size) {
+                        ++got[1];
+                    }
+                    next = n + 1;
+                    ++got[0];
+                    last[0] = System.nanoTime();
+                }
+            }
+        });
+        MeshTransport tx = transport(port, PEER, recorder);
+        try {
+            rx.start();
+            tx.start();
+        } catch (IOException e) {
+            rx.stop();
+            return; // no multicast here
+        }
+        try {
+            byte[] m = new byte[size];
+            long start = System.nanoTime();
+            for (int i = 0; i < messages; ++i) {
+                m[0] = (byte) (i >> 24);
+                m[1] = (byte) (i >> 16);
+                m[2] = (byte) (i >> 8);
+                m[3] = (byte) i;
+                tx.offer(m, 0, size);
+                if (i % 250 == 249) {
+                    Thread.sleep(1); // a paced sender, the socket buffer drops bursts
+                }
+            }
+            tx.flush();
+            for (int i = 0; i < 100 && rx.messagesReceived < tx.messagesSent; ++i) {
+                Thread.sleep(10);
+            }
+            if (rx.datagramsReceived == 0) {
+                return; // no multicast route back to us
+            }
+            // batched up to the MTU; a full socket buffer drops whole
+            // datagrams at the sender, so what counts is what went out
+            int perDatagram = (MeshTransport.MTU - MeshTransport.HEADER) / (2 + size);
+            assertTrue(tx.messagesSent <= tx.datagramsSent * perDatagram);
+            assertTrue(tx.messagesSent > (tx.datagramsSent - 1) * perDatagram);
+            synchronized (got) {
+                assertEquals(0, got[1]);
+                assertEquals(rx.messagesReceived, got[0]);
+                assertTrue("received " + got[0] + " of " + tx.messagesSent,
+                        got[0] >= tx.messagesSent * 9 / 10);
+                double seconds = (last[0] - start) / 1e9;
+                assertTrue("messages/s " + got[0] / seconds, got[0] / seconds > 10000);
+            }
+            assertEquals(0, rx.malformed);
+            assertEquals(0, rx.duplicates);
+        } finally {
+            tx.stop();
+            rx.stop();
+        }
+    }
+}
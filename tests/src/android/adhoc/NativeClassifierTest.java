@@ -0,0 +1,131 @@
+/*
+*  This file is part of Barnacle Wifi Tether
+*  Copyright (C) 2010 by Szymon Jakubczak
+*
+*  This program is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package android.adhoc;
+
+import junit.framework.TestCase;
+
+
+/**
+ * NativeClassifier on lines as the native side prints them: every rule, the
+ * anchoring, the priority order and the per-script rules.
+ */
+public class NativeClassifierTest extends TestCase {
+    private final NativeClassifier wifi = new NativeClassifier(NativeClassifier.Rules.forScript(""));
+
+    private static int classify(NativeClassifier c, String line) {
+        byte[] b = line.getBytes();
+        return c.classify(b, 0, b.length);
+    }
+
+    private int classify(String line) {
+        return classify(wifi, line);
+    }
+
+    public void testRules() {
+        assertEquals(NativeClassifier.EVENT_NONE, classify(""));
+        assertEquals(NativeClassifier.EVENT_NONE, classify("WIFI: configuring eth0"));
+        assertEquals(NativeClassifier.EVENT_OK, classify("WIFI: OK eth0 00:11:22:33:44:55"));
+        assertEquals(NativeClassifier.EVENT_MARK, classify("MARK: iface"));
+        assertEquals(NativeClassifier.EVENT_LINK_UP, classify("WIFI: EVENT CONNECTED 02:11:22:33:44:55"));
+        assertEquals(NativeClassifier.EVENT_LINK_DOWN, classify("WIFI: EVENT DISCONNECTED"));
+        assertEquals(NativeClassifier.EVENT_PEER, classify("WIFI: EVENT PEER 00:aa:bb:cc:dd:ee"));
+        assertEquals(NativeClassifier.EVENT_RESPONSE, classify("WIFI: R 7 0 ok"));
+        assertEquals(NativeClassifier.EVENT_ADDR, classify("WIFI: ADDR 170.160.12.34"));
+        assertEquals(NativeClassifier.EVENT_ROOT, classify("su: Permission denied"));
+        assertEquals(NativeClassifier.EVENT_ROOT, classify("/system/bin/sh: su: not found"));
+        assertEquals(NativeClassifier.EVENT_SUPPLICANT, classify("WIFI: Failed to start wpa_supplicant"));
+        assertEquals(NativeClassifier.EVENT_DRIVER, classify("WIFI: Failed to load driver"));
+        assertEquals(NativeClassifier.EVENT_KILLED, classify("WIFI: killed by signal 9"));
+    }
+
+    public void testAnchored() {
+        // status lines only count at the start, errors anywhere
+        assertEquals(NativeClassifier.EVENT_NONE, classify("echo WIFI: OK"));
+        assertEquals(NativeClassifier.EVENT_NONE, classify(" MARK: iface"));
+        assertEquals(NativeClassifier.EVENT_NONE, classify("got WIFI: R 1 0"));
+        assertEquals(NativeClassifier.EVENT_ROOT, classify("run: line 3: Permission denied"));
+        assertEquals(NativeClassifier.EVENT_KILLED, classify("E/wifi: WIFI: killed"));
+    }
+
+    public void testPriority() {
+        // root > supplicant > driver > killed > OK > the rest
+        assertEquals(NativeClassifier.EVENT_ROOT, classify("wpa_supplicant: Permission denied"));
+        assertEquals(NativeClassifier.EVENT_ROOT, classify("WIFI: Failed to load driver: permission"));
+        assertEquals(NativeClassifier.EVENT_SUPPLICANT, classify("WIFI: Failed to load driver, supplicant"));
+        assertEquals(NativeClassifier.EVENT_SUPPLICANT, classify("WIFI: OK but no supplicant"));
+        assertEquals(NativeClassifier.EVENT_DRIVER, classify("WIFI: killed, WIFI: Failed to load driver"));
+        assertEquals(NativeClassifier.EVENT_KILLED, classify("WIFI: OK WIFI: killed"));
+        assertEquals(NativeClassifier.EVENT_OK, classify("WIFI: OK MARK: "));
+        assertEquals(NativeClassifier.EVENT_MARK, classify("MARK: WIFI: EVENT PEER"));
+        // the order of the patterns on the line does not matter
+        assertEquals(NativeClassifier.EVENT_ROOT, classify("supplicant ... su: not found"));
+        assertEquals(NativeClassifier.EVENT_ROOT, classify("su: not found ... supplicant"));
+    }
+
+    public void testScripts() {
+        NativeClassifier aria = new NativeClassifier(NativeClassifier.Rules.forScript("script_aria"));
+        NativeClassifier hero = new NativeClassifier(NativeClassifier.Rules.forScript("script_hero"));
+        assertEquals(NativeClassifier.EVENT_NONE, classify("insmod: init_module failed"));
+        assertEquals(NativeClassifier.EVENT_DRIVER, classify(aria, "insmod: init_module failed"));
+        assertEquals(NativeClassifier.EVENT_DRIVER, classify(aria, "rmmod: delete_module failed"));
+        assertEquals(NativeClassifier.EVENT_DRIVER, classify(aria, "firmware not found!"));
+        assertEquals(NativeClassifier.EVENT_NONE, classify(aria, "wlan_loader: failed"));
+        assertEquals(NativeClassifier.EVENT_DRIVER, classify(hero, "wlan_loader: failed"));
+        assertEquals(NativeClassifier.EVENT_DRIVER, classify(hero, "insmod: init_module failed"));
+        // the common rules are still there, with their priority
+        assertEquals(NativeClassifier.EVENT_ROOT, classify(hero, "wlan_loader: Permission denied"));
+        assertEquals(NativeClassifier.EVENT_OK, classify(aria, "WIFI: OK tiwlan0 00:11:22:33:44:55"));
+        // compiled once per script
+        assertSame(NativeClassifier.Rules.forScript("script_hero"), NativeClassifier.Rules.forScript("script_hero"));
+        assertSame(NativeClassifier.Rules.forScript(null), NativeClassifier.Rules.forScript(""));
+    }
+
+    public void testOK() {
+        String line = "WIFI: OK tiwlan0 00:1a:2B:3c:4d:5e";
+        assertEquals(NativeClassifier.EVENT_OK, classify(line));
+        assertEquals("tiwlan0", line.substring(wifi.ifaceStart, wifi.ifaceStart + wifi.ifaceLen));
+        assertEquals(0x001a2b3c4d5eL, wifi.mac);
+
+        assertEquals(NativeClassifier.EVENT_OK, classify("WIFI: OK eth0 00:11:22"));
+        assertEquals(-1L, wifi.mac);
+        assertEquals(NativeClassifier.EVENT_OK, classify("WIFI: OK eth0"));
+        assertEquals(4, wifi.ifaceLen);
+        assertEquals(-1L, wifi.mac);
+    }
+
+    public void testOffset() {
+        // a line in the middle of the pump's buffer
+        byte[] b = "WIFI: killed\nWIFI: OK eth0 00:11:22:33:44:55\nsu".getBytes();
+        int off = "WIFI: killed\n".length();
+        int len = "WIFI: OK eth0 00:11:22:33:44:55".length();
+        assertEquals(NativeClassifier.EVENT_OK, wifi.classify(b, off, len));
+        assertEquals("eth0", new String(b, wifi.ifaceStart, wifi.ifaceLen));
+        assertEquals(0x001122334455L, wifi.mac);
+        assertEquals(NativeClassifier.EVENT_NONE, wifi.classify(b, off + 1, len - 1));
+    }
+
+    public void testBytes() {
+        // anything the native side may print, including non-ASCII
+        byte[] b = new byte[256];
+        for (int i = 0; i < b.length; ++i) {
+            b[i] = (byte) i;
+        }
+        assertEquals(NativeClassifier.EVENT_NONE, wifi.classify(b, 0, b.length));
+    }
+}
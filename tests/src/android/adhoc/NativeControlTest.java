@@ -0,0 +1,191 @@
+/*
+*  This file is part of Barnacle Wifi Tether
+*  Copyright (C) 2010 by Szymon Jakubczak
+*
+*  This program is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package android.adhoc;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+
+/**
+ * The request frames NativeControl writes and the responses it dispatches,
+ * as native/wifi/control.hh reads and writes them.
+ */
+public class NativeControlTest extends TestCase {
+    private final ByteArrayOutputStream os = new ByteArrayOutputStream();
+    private final ArrayList<String> responses = new ArrayList<String>();
+
+    private final NativeControl.Callback recorder = new NativeControl.Callback() {
+        public void onResponse(int id, int status, String text) {
+            responses.add(id + " " + status + " " + text);
+        }
+    };
+
+    /** @return the frames written so far, split at their length fields */
+    private ArrayList<byte[]> frames() {
+        byte[] b = os.toByteArray();
+        ArrayList<byte[]> frames = new ArrayList<byte[]>();
+        int off = 0;
+        while (off < b.length) {
+            assertEquals(NativeControl.MAGIC, b[off] & 0xff);
+            int len = ((b[off + 4] & 0xff) << 8) | (b[off + 5] & 0xff);
+            byte[] f = new byte[6 + len];
+            System.arraycopy(b, off, f, 0, f.length);
+            frames.add(f);
+            off += f.length;
+        }
+        assertEquals(b.length, off);
+        return frames;
+    }
+
+    private static int id(byte[] frame) {
+        return ((frame[2] & 0xff) << 8) | (frame[3] & 0xff);
+    }
+
+    public void testEncode() {
+        byte[] f = NativeControl.encode(NativeControl.CMD_SET_ESSID, 0x1234, "mesh".getBytes());
+        assertEquals(10, f.length);
+        assertEquals(0xB5, f[0] & 0xff);
+        assertEquals(NativeControl.CMD_SET_ESSID, f[1]);
+        assertEquals(0x12, f[2]);
+        assertEquals(0x34, f[3]);
+        assertEquals(0, f[4]);
+        assertEquals(4, f[5]);
+        assertEquals("mesh", new String(f, 6, 4));
+
+        f = NativeControl.encode(NativeControl.CMD_REASSOC, 0xffff, null);
+        assertEquals(6, f.length);
+        assertEquals(0xffff, id(f));
+        assertEquals(0, f[5]);
+
+        f = NativeControl.encode(NativeControl.CMD_SET_ESSID, 1, new byte[NativeControl.MAX_PAYLOAD]);
+        assertEquals(6 + 255, f.length);
+        assertEquals(255, f[5] & 0xff);
+        try {
+            NativeControl.encode(NativeControl.CMD_SET_ESSID, 1, new byte[NativeControl.MAX_PAYLOAD + 1]);
+            fail("payload too long");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    public void testCommands() throws Exception {
+        NativeControl c = new NativeControl(os);
+        int first = c.setChannel(11, null);
+        int second = c.scan(6, 250, null);
+        c.peers(8, null);
+        ArrayList<byte[]> frames = frames();
+        assertEquals(3, frames.size());
+        assertEquals(NativeControl.CMD_SET_CHANNEL, frames.get(0)[1]);
+        assertEquals(first, id(frames.get(0)));
+        assertEquals(11, frames.get(0)[6]);
+        assertEquals(NativeControl.CMD_SCAN, frames.get(1)[1]);
+        assertEquals(second, id(frames.get(1)));
+        assertEquals((first + 1) & 0xffff, second);
+        assertEquals(6, frames.get(1)[6]);
+        assertEquals(100, frames.get(1)[7]); // busy is a percentage
+        assertEquals(NativeControl.CMD_PEERS, frames.get(2)[1]);
+        assertEquals(8, frames.get(2)[6]);
+    }
+
+    public void testRoutes() throws Exception {
+        NativeControl c = new NativeControl(os);
+        int n = NativeControl.ROUTES_PER_FRAME + 2;
+        int[] routes = new int[3 * n];
+        for (int i = 0; i < n; ++i) {
+            routes[3 * i] = 0xAAA00000 + i;
+            routes[3 * i + 1] = 0xAAA0FF01;
+            routes[3 * i + 2] = i * 20;
+        }
+        c.routes(NativeControl.CMD_ADD_ROUTE, routes, n, null);
+        ArrayList<byte[]> frames = frames();
+        assertEquals(2, frames.size());
+        assertEquals(6 + NativeControl.ROUTES_PER_FRAME * NativeControl.ROUTE_ENTRY, frames.get(0).length);
+        assertEquals(6 + 2 * NativeControl.ROUTE_ENTRY, frames.get(1).length);
+        for (int i = 0; i < n; ++i) {
+            byte[] f = frames.get(i / NativeControl.ROUTES_PER_FRAME);
+            int off = 6 + (i % NativeControl.ROUTES_PER_FRAME) * NativeControl.ROUTE_ENTRY;
+            assertEquals(NativeControl.CMD_ADD_ROUTE, f[1]);
+            assertEquals(routes[3 * i], getInt(f, off));
+            assertEquals(0xAAA0FF01, getInt(f, off + 4));
+            assertEquals(Math.min(i * 20, 255), f[off + 8] & 0xff);
+        }
+
+        // only as many as count
+        os.reset();
+        c.routes(NativeControl.CMD_DEL_ROUTE, routes, 1, null);
+        frames = frames();
+        assertEquals(1, frames.size());
+        assertEquals(6 + NativeControl.ROUTE_ENTRY, frames.get(0).length);
+        os.reset();
+        c.routes(NativeControl.CMD_DEL_ROUTE, routes, 0, null);
+        assertEquals(0, os.size());
+    }
+
+    public void testResponses() throws Exception {
+        NativeControl c = new NativeControl(os);
+        int a = c.getStats(recorder);
+        int b = c.scan(0, 0, recorder);
+        c.reassoc(null);
+        // out of order, with text, without, and with spaces in it
+        c.onResponse("WIFI: R " + b + " 0 6 1 3 0 0 0 0 0 0 0 0 0 0 0");
+        c.onResponse("WIFI: R " + a + " 1");
+        assertEquals(2, responses.size());
+        assertEquals(b + " 0 6 1 3 0 0 0 0 0 0 0 0 0 0 0", responses.get(0));
+        assertEquals(a + " 1 ", responses.get(1));
+        // once only
+        c.onResponse("WIFI: R " + a + " 0 again");
+        assertEquals(2, responses.size());
+    }
+
+    public void testBadResponses() throws Exception {
+        NativeControl c = new NativeControl(os);
+        int a = c.getStats(recorder);
+        c.onResponse("WIFI: OK eth0");
+        c.onResponse("WIFI: R ");
+        c.onResponse("WIFI: R x 0 text");
+        c.onResponse("WIFI: R " + a);
+        c.onResponse("WIFI: R " + a + " zero");
+        c.onResponse("WIFI: R " + (a + 1000) + " 0 unknown id");
+        assertEquals(0, responses.size());
+        // still pending
+        c.onResponse("WIFI: R " + a + " 0 ok");
+        assertEquals(1, responses.size());
+    }
+
+    public void testIdsAcrossInstances() throws Exception {
+        // a resumed process gets a new NativeControl while the old one may
+        // still have a response on the way
+        NativeControl old = new NativeControl(os);
+        int late = old.getStats(null);
+        NativeControl c = new NativeControl(os);
+        int id = c.getStats(recorder);
+        assertTrue(id != late);
+        c.onResponse("WIFI: R " + late + " 0 stale");
+        assertEquals(0, responses.size());
+        c.onResponse("WIFI: R " + id + " 0 fresh");
+        assertEquals(1, responses.size());
+        assertEquals(id + " 0 fresh", responses.get(0));
+    }
+
+    private static int getInt(byte[] b, int off) {
+        return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16)
+            | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+    }
+}
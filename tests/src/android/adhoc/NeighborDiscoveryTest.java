@@ -0,0 +1,181 @@
+/*
+*  This file is part of Barnacle Wifi Tether
+*  Copyright (C) 2010 by Szymon Jakubczak
+*
+*  This program is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package android.adhoc;
+
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+
+
+/**
+ * The peer table of NeighborDiscovery, fed with beacons at chosen times:
+ * joining, moving, expiry after TTL_BEACONS advertised intervals.
+ * No sockets, the discovery thread is not started.
+ */
+public class NeighborDiscoveryTest extends TestCase {
+    private final static long SELF = 0x020000000001L;
+    private final static long PEER = 0x020000000002L;
+    private final static int IP = 0xAAA00102;
+
+    private final NeighborDiscovery nd = new NeighborDiscovery(null, SELF, 0xAAA00101, null, NeighborDiscovery.PORT);
+    private final ArrayList<String> events = new ArrayList<String>();
+
+    @Override
+    protected void setUp() {
+        nd.addListener(new NeighborDiscovery.Listener() {
+            public void onPeer(int event, long mac, int ip) {
+                events.add(event + " " + NeighborDiscovery.formatMac(mac) + " " + NeighborDiscovery.formatIp(ip));
+            }
+        });
+    }
+
+    /** a beacon as encode() writes it */
+    private static byte[] beacon(long mac, int ip, long interval) {
+        byte[] b = new byte[NeighborDiscovery.BEACON_SIZE];
+        b[0] = (byte) (NeighborDiscovery.MAGIC >> 8);
+        b[1] = (byte) NeighborDiscovery.MAGIC;
+        b[2] = (byte) NeighborDiscovery.VERSION;
+        for (int i = 0; i < 6; ++i) {
+            b[8 + i] = (byte) (mac >> (8 * (5 - i)));
+        }
+        for (int i = 0; i < 4; ++i) {
+            b[14 + i] = (byte) (ip >> (8 * (3 - i)));
+        }
+        b[18] = (byte) ((interval / 100) >> 8);
+        b[19] = (byte) (interval / 100);
+        return b;
+    }
+
+    private void receive(long mac, int ip, long interval, long now) {
+        byte[] b = beacon(mac, ip, interval);
+        nd.received(b, b.length, now);
+    }
+
+    private static String event(int event, long mac, int ip) {
+        return event + " " + NeighborDiscovery.formatMac(mac) + " " + NeighborDiscovery.formatIp(ip);
+    }
+
+    public void testUpMovedDown() {
+        receive(PEER, IP, 1000, 0);
+        assertEquals(1, nd.size());
+        assertEquals(IP, nd.address(PEER));
+        receive(PEER, IP, 2000, 1000);
+        receive(PEER, IP + 1, 4000, 3000);
+        assertEquals(IP + 1, nd.address(PEER));
+        nd.expire(3000 + 3 * 4000);
+        assertEquals(0, nd.size());
+        assertEquals(0, nd.address(PEER));
+        assertEquals(3, events.size());
+        assertEquals(event(NeighborDiscovery.PEER_UP, PEER, IP), events.get(0));
+        assertEquals(event(NeighborDiscovery.PEER_MOVED, PEER, IP + 1), events.get(1));
+        assertEquals(event(NeighborDiscovery.PEER_DOWN, PEER, IP + 1), events.get(2));
+    }
+
+    public void testExpiry() {
+        // TTL_BEACONS of the advertised interval
+        receive(PEER, IP, 16000, 100000);
+        nd.expire(100000 + NeighborDiscovery.TTL_BEACONS * 16000 - 1);
+        assertEquals(1, nd.size());
+        nd.expire(100000 + NeighborDiscovery.TTL_BEACONS * 16000);
+        assertEquals(0, nd.size());
+
+        // a beacon pushes it back
+        receive(PEER, IP, 2000, 200000);
+        receive(PEER, IP, 2000, 205000);
+        nd.expire(205000 + NeighborDiscovery.TTL_BEACONS * 2000 - 1);
+        assertEquals(1, nd.size());
+
+        // but never less than MIN_INTERVAL
+        receive(PEER + 1, IP + 1, 0, 300000);
+        nd.expire(300000 + NeighborDiscovery.TTL_BEACONS * NeighborDiscovery.MIN_INTERVAL - 1);
+        assertTrue(nd.address(PEER + 1) != 0);
+        nd.expire(300000 + NeighborDiscovery.TTL_BEACONS * NeighborDiscovery.MIN_INTERVAL);
+        assertEquals(0, nd.address(PEER + 1));
+    }
+
+    public void testPeriod() {
+        // beacons only go out in the wake windows: at least one period each
+        nd.setPeriod(60000);
+        receive(PEER, IP, 2000, 0);
+        nd.expire(NeighborDiscovery.TTL_BEACONS * 60000 - 1);
+        assertEquals(1, nd.size());
+        nd.expire(NeighborDiscovery.TTL_BEACONS * 60000);
+        assertEquals(0, nd.size());
+    }
+
+    public void testExpireSome() {
+        for (int i = 0; i < 10; ++i) {
+            receive(PEER + i, IP + i, 1000 * (i + 1), 0);
+        }
+        assertEquals(10, nd.size());
+        nd.expire(3 * 5000);
+        assertEquals(5, nd.size());
+        for (long m : nd.peers()) {
+            assertTrue(m >= PEER + 5);
+        }
+        events.clear();
+        nd.expire(Long.MAX_VALUE);
+        assertEquals(0, nd.size());
+        assertEquals(5, events.size());
+    }
+
+    public void testIgnored() {
+        byte[] b = beacon(PEER, IP, 1000);
+        nd.received(b, b.length - 1, 0);    // short
+        b[2] = (byte) (NeighborDiscovery.VERSION + 1);
+        nd.received(b, b.length, 0);        // newer version
+        b = beacon(PEER, IP, 1000);
+        b[0] ^= 1;
+        nd.received(b, b.length, 0);        // not ours
+        receive(SELF, IP, 1000, 0);         // our own, looped back
+        assertEquals(0, nd.size());
+        assertEquals(0, events.size());
+        // longer is fine, later versions may add fields
+        b = new byte[NeighborDiscovery.BEACON_SIZE + 8];
+        System.arraycopy(beacon(PEER, IP, 1000), 0, b, 0, NeighborDiscovery.BEACON_SIZE);
+        nd.received(b, b.length, 0);
+        assertEquals(1, nd.size());
+    }
+
+    public void testFull() {
+        for (int i = 0; i < NeighborDiscovery.MAX_PEERS + 10; ++i) {
+            receive(PEER + i, IP, 1000, 0);
+        }
+        assertEquals(NeighborDiscovery.MAX_PEERS, nd.size());
+        assertEquals(NeighborDiscovery.MAX_PEERS, events.size());
+        // room again once some expire
+        receive(PEER, IP, 16000, 1000);
+        nd.expire(3 * 1000);
+        assertEquals(1, nd.size());
+        receive(PEER + NeighborDiscovery.MAX_PEERS + 5, IP, 1000, 4000);
+        assertEquals(2, nd.size());
+    }
+
+    public void testParse() {
+        assertEquals(0xAAA00102, NeighborDiscovery.parseIp("170.160.1.2"));
+        assertEquals(0, NeighborDiscovery.parseIp("170.160.1"));
+        assertEquals(0, NeighborDiscovery.parseIp("170.160.1.256"));
+        assertEquals(0, NeighborDiscovery.parseIp("a.b.c.d"));
+        assertEquals("170.160.1.2", NeighborDiscovery.formatIp(0xAAA00102));
+        assertEquals(0x001a2b3c4d5eL, NeighborDiscovery.parseMac("00:1a:2B:3c:4d:5e"));
+        assertEquals(-1L, NeighborDiscovery.parseMac("00:1a:2b:3c:4d"));
+        assertEquals(-1L, NeighborDiscovery.parseMac("00:1a:2b:3c:4d:zz"));
+        assertEquals("00:1a:2b:3c:4d:5e", NeighborDiscovery.formatMac(0x001a2b3c4d5eL));
+    }
+}
@@ -0,0 +1,185 @@
+/*
+*  This file is part of Barnacle Wifi Tether
+*  Copyright (C) 2010 by Szymon Jakubczak
+*
+*  This program is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package android.adhoc;
+
+import java.util.ArrayList;
+
+import android.net.wifi.WifiManager;
+
+import junit.framework.TestCase;
+
+
+/**
+ * NetsCoalescer on a simulated clock, with the service handler reduced to a
+ * queue of due times: bursts of broadcasts as a driver reload sends them,
+ * the HOLD on repeated commands and the recheck when it is over.
+ */
+public class NetsCoalescerTest extends TestCase {
+    private long now = 0;
+    private final ArrayList<Long> queue = new ArrayList<Long>(); // due times of MSG_NETSCHANGE
+    private final ArrayList<Long> handled = new ArrayList<Long>();
+
+    private final NetsCoalescer nets = new NetsCoalescer(new NetsCoalescer.Clock() {
+        public long now() {
+            return now;
+        }
+    }, new NetsCoalescer.Poster() {
+        public void post(long delay) {
+            assertTrue(delay >= 0);
+            queue.add(now + delay);
+        }
+    });
+
+    /** runs the handler up to t, as AdHocService does with MSG_NETSCHANGE */
+    private void runUntil(long t) {
+        while (true) {
+            int first = -1;
+            for (int i = 0; i < queue.size(); ++i) {
+                if (queue.get(i) <= t && (first < 0 || queue.get(i) < queue.get(first))) {
+                    first = i;
+                }
+            }
+            if (first < 0) {
+                break;
+            }
+            now = Math.max(now, queue.remove(first));
+            handled.add(now);
+            nets.onProcessed();
+        }
+        now = t;
+    }
+
+    /** broadcasts at the given times, then the handler runs until all is quiet */
+    private void replay(long... times) {
+        for (long t : times) {
+            runUntil(t);
+            nets.offer();
+        }
+        runUntil(now + 10 * NetsCoalescer.WINDOW);
+    }
+
+    public void testSingle() {
+        replay(1000);
+        // handled at once
+        assertEquals("[1000]", handled.toString());
+        assertEquals(1, nets.received);
+        assertEquals(1, nets.processed);
+        assertEquals(0, nets.dropped());
+    }
+
+    public void testBurst() {
+        // a driver reload, as logged on a Nexus One: a dozen broadcasts in 300 ms
+        replay(5000, 5010, 5012, 5040, 5041, 5090, 5150, 5151, 5200, 5230, 5290, 5300);
+        // the first at once, the rest folded into one message per window
+        assertEquals("[5000, 5250, 5500]", handled.toString());
+        assertEquals(12, nets.received);
+        assertEquals(9, nets.dropped());
+    }
+
+    public void testNothingLost() {
+        // whatever the timing, the last broadcast is followed by a look at
+        // the Wifi Manager, and there is at most one look per window
+        long[] times = new long[200];
+        long t = 0;
+        java.util.Random r = new java.util.Random(1);
+        for (int i = 0; i < times.length; ++i) {
+            t += r.nextInt(400);
+            times[i] = t;
+        }
+        replay(times);
+        assertTrue(handled.get(handled.size() - 1) >= times[times.length - 1]);
+        for (int i = 1; i < handled.size(); ++i) {
+            assertTrue(handled.get(i) - handled.get(i - 1) >= NetsCoalescer.WINDOW);
+        }
+        for (long b : times) {
+            boolean seen = false;
+            for (long h : handled) {
+                seen |= h >= b && h <= b + NetsCoalescer.WINDOW;
+            }
+            assertTrue("broadcast at " + b, seen);
+        }
+        assertEquals(nets.received, nets.processed + nets.dropped());
+    }
+
+    public void testRedundant() {
+        assertFalse(nets.shouldSend(false, WifiManager.WIFI_STATE_DISABLED));
+        assertFalse(nets.shouldSend(false, WifiManager.WIFI_STATE_DISABLING));
+        assertFalse(nets.shouldSend(true, WifiManager.WIFI_STATE_ENABLED));
+        assertFalse(nets.shouldSend(true, WifiManager.WIFI_STATE_ENABLING));
+        assertEquals(4, nets.commandsSuppressed);
+        assertEquals(0, nets.commandsSent);
+        // nothing to look at again, the state is already where we want it
+        assertEquals(0, queue.size());
+    }
+
+    public void testHold() {
+        now = 1000;
+        assertTrue(nets.shouldSend(false, WifiManager.WIFI_STATE_ENABLED));
+        // the broadcast of the driver says it is still enabled
+        now = 1500;
+        assertFalse(nets.shouldSend(false, WifiManager.WIFI_STATE_ENABLED));
+        // the other command is not held
+        assertTrue(nets.shouldSend(true, WifiManager.WIFI_STATE_DISABLED));
+        now = 1600;
+        assertTrue(nets.shouldSend(false, WifiManager.WIFI_STATE_ENABLED));
+        assertEquals(3, nets.commandsSent);
+        assertEquals(1, nets.commandsSuppressed);
+    }
+
+    public void testRecheck() {
+        // disable sent, then a broadcast that still says enabled: held
+        now = 1000;
+        assertTrue(nets.shouldSend(false, WifiManager.WIFI_STATE_ENABLED));
+        runUntil(1200);
+        nets.offer();
+        runUntil(1200);
+        assertEquals("[1200]", handled.toString());
+        assertFalse(nets.shouldSend(false, WifiManager.WIFI_STATE_ENABLED));
+        // no broadcast comes, the coalescer asks again when HOLD is over
+        assertEquals(1, queue.size());
+        assertEquals(1000 + NetsCoalescer.HOLD, (long) queue.get(0));
+        runUntil(5000);
+        assertEquals("[1200, 3000]", handled.toString());
+        now = 3000;
+        assertTrue(nets.shouldSend(false, WifiManager.WIFI_STATE_ENABLED));
+        assertEquals(1, nets.rechecks);
+        assertEquals(0, nets.dropped());
+    }
+
+    public void testRecheckFolded() {
+        // a broadcast already pending covers the recheck
+        now = 1000;
+        assertTrue(nets.shouldSend(true, WifiManager.WIFI_STATE_DISABLED));
+        nets.offer();
+        assertEquals(1, queue.size());
+        now = 1100;
+        assertFalse(nets.shouldSend(true, WifiManager.WIFI_STATE_DISABLED));
+        assertEquals(1, queue.size());
+        assertEquals(0, nets.rechecks);
+        // and a broadcast after the recheck was scheduled is folded into it
+        runUntil(1100);
+        assertFalse(nets.shouldSend(true, WifiManager.WIFI_STATE_DISABLED));
+        assertEquals(1, nets.rechecks);
+        nets.offer();
+        assertEquals(1, queue.size());
+        runUntil(5000);
+        assertEquals("[1100, 3000]", handled.toString());
+        assertEquals(1, nets.dropped()); // the folded broadcast
+    }
+}
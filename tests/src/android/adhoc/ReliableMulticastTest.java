@@ -0,0 +1,213 @@
+/*
+*  This file is part of Barnacle Wifi Tether
+*  Copyright (C) 2010 by Szymon Jakubczak
+*
+*  This program is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package android.adhoc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+
+/**
+ * The loss-injection harness: one sender and RECEIVERS receivers on a
+ * simulated clock, every message lost on every link with the same odds,
+ * at 500 packets/s. Checks goodput, order and content at 1 to 30% loss,
+ * and that parity and NACK suppression keep the repair overhead down.
+ */
+public class ReliableMulticastTest extends TestCase {
+    private final static int RECEIVERS = 5;
+    private final static int PACKETS = 5000;
+    private final static long STEP = 1;       // ms
+    private final static long SEND_EVERY = 2; // ms, 500 packets/s
+    private final static long SETTLE = 10000; // ms after the last packet
+
+    /** the nodes and a queue of messages in the air, 0 is the sender */
+    private static class Net {
+        final ReliableMulticast[] nodes = new ReliableMulticast[RECEIVERS + 1];
+        final int[] next = new int[RECEIVERS + 1];   // next seq expected
+        final int[] skipped = new int[RECEIVERS + 1];
+        final ArrayList<Object[]> air = new ArrayList<Object[]>(); // { from, bytes }
+        final Random random = new Random(1);
+        final double loss;
+        final long start = 1000;
+        long now = start;
+        long messages = 0; // on the air, counted once per send
+
+        Net(double loss, int fecK) {
+            this.loss = loss;
+            for (int i = 0; i <= RECEIVERS; ++i) {
+                final int node = i;
+                nodes[i] = new ReliableMulticast(ip(i), fecK, new ReliableMulticast.Listener() {
+                    public void onData(int sender, int seq, ByteBuffer data) {
+                        assertEquals(ip(0), sender);
+                        assertTrue(seq - next[node] >= 0);
+                        skipped[node] += seq - next[node];
+                        next[node] = seq + 1;
+                        assertEquals(length(seq), data.remaining());
+                        for (int j = 0; j < data.remaining(); ++j) {
+                            if (data.get(data.position() + j) != (byte) (seq * 31 + j)) {
+                                fail("node " + node + " seq " + seq + " byte " + j);
+                            }
+                        }
+                    }
+                });
+                nodes[i].setTransport(new ReliableMulticast.Transport() {
+                    public ByteBuffer acquire() {
+                        return ByteBuffer.allocate(MeshTransport.MAX_MESSAGE);
+                    }
+                    public void send(ByteBuffer b) throws IOException {
+                        b.flip();
+                        byte[] copy = new byte[b.remaining()];
+                        b.get(copy);
+                        air.add(new Object[] { node, copy });
+                        ++messages;
+                    }
+                });
+            }
+        }
+
+        static int ip(int node) {
+            return 0xAAA00100 + node;
+        }
+
+        static int length(int seq) {
+            return 1 + seq * 7 % ReliableMulticast.MAX_PAYLOAD;
+        }
+
+        void run() throws IOException {
+            byte[] payload = new byte[ReliableMulticast.MAX_PAYLOAD];
+            int seq = 0;
+            for (long end = now + PACKETS * SEND_EVERY + SETTLE; now < end; now += STEP) {
+                if (seq < PACKETS && now % SEND_EVERY == 0) {
+                    int len = length(seq);
+                    for (int j = 0; j < len; ++j) {
+                        payload[j] = (byte) (seq * 31 + j);
+                    }
+                    assertEquals(seq, nodes[0].send(ByteBuffer.wrap(payload, 0, len), now));
+                    ++seq;
+                }
+                for (ReliableMulticast n : nodes) {
+                    n.tick(now);
+                }
+                // sent in this step, heard at its end
+                ArrayList<Object[]> heard = new ArrayList<Object[]>(air);
+                air.clear();
+                for (Object[] m : heard) {
+                    int from = (Integer) m[0];
+                    byte[] b = (byte[]) m[1];
+                    for (int to = 0; to <= RECEIVERS; ++to) {
+                        // the first packet is not lost: a receiver starts
+                        // with what it hears first, this is when it joins
+                        if (to != from && (now == start || random.nextDouble() >= loss)) {
+                            nodes[to].receive(ip(from), ByteBuffer.wrap(b), now);
+                        }
+                    }
+                }
+            }
+        }
+
+        /** @return packets delivered to all receivers over those sent to them */
+        double goodput() {
+            long d = 0;
+            for (int i = 1; i <= RECEIVERS; ++i) {
+                d += nodes[i].delivered;
+            }
+            return (double) d / (RECEIVERS * PACKETS);
+        }
+
+        /** @return messages on the air beyond the data, over the data */
+        double overhead() {
+            return (double) (messages - PACKETS) / PACKETS;
+        }
+
+        /**
+         * @param tail packets at the end a receiver may never hear of, when
+         *        they, their parity and all the beats after them are lost
+         */
+        void checkAccounted(int tail) {
+            for (int i = 1; i <= RECEIVERS; ++i) {
+                ReliableMulticast r = nodes[i];
+                assertTrue(next[i] + " of " + PACKETS, PACKETS - next[i] <= tail);
+                assertEquals(next[i], r.delivered + r.unrecoverable);
+                assertEquals(r.unrecoverable, skipped[i]);
+            }
+        }
+    }
+
+    public void testNoLoss() throws IOException {
+        Net net = new Net(0, 8);
+        net.run();
+        net.checkAccounted(0);
+        assertEquals(1.0, net.goodput());
+        assertEquals(0, net.nodes[0].repairsSent);
+        assertEquals(0, net.nodes[1].nacksSent);
+        // parity and the beats at the end
+        assertEquals(PACKETS / 8 + ReliableMulticast.BEATS, net.messages - PACKETS);
+    }
+
+    public void testLoss1() throws IOException {
+        Net net = new Net(0.01, 8);
+        net.run();
+        net.checkAccounted(0);
+        assertEquals(1.0, net.goodput());
+        // most losses are single in a block, rebuilt without asking
+        long recovered = 0, repaired = 0;
+        for (int i = 1; i <= RECEIVERS; ++i) {
+            recovered += net.nodes[i].recovered;
+            repaired += net.nodes[i].repaired;
+        }
+        assertTrue(recovered + " " + repaired, recovered > 5 * repaired);
+        assertTrue("overhead " + net.overhead(), net.overhead() < 0.15);
+    }
+
+    public void testLoss10() throws IOException {
+        Net net = new Net(0.10, 8);
+        net.run();
+        net.checkAccounted(0);
+        assertEquals(1.0, net.goodput());
+        long suppressed = 0;
+        for (int i = 1; i <= RECEIVERS; ++i) {
+            suppressed += net.nodes[i].nacksSuppressed;
+        }
+        assertTrue(suppressed > 0);
+        assertTrue("overhead " + net.overhead(), net.overhead() < 0.6);
+    }
+
+    public void testLoss10NoFec() throws IOException {
+        Net net = new Net(0.10, 0);
+        net.run();
+        net.checkAccounted(0);
+        assertEquals(1.0, net.goodput());
+        assertEquals(0, net.nodes[0].paritySent);
+        assertEquals(0, net.nodes[1].recovered);
+        assertTrue("overhead " + net.overhead(), net.overhead() < 0.8);
+    }
+
+    public void testLoss30() throws IOException {
+        // what leaves the window before it is repaired is given up, in order
+        Net net = new Net(0.30, 8);
+        net.run();
+        net.checkAccounted(8);
+        assertTrue("goodput " + net.goodput(), net.goodput() > 0.99);
+        assertTrue("overhead " + net.overhead(), net.overhead() < 1.6);
+    }
+}
@@ -0,0 +1,169 @@
+/*
+*  This file is part of Barnacle Wifi Tether
+*  Copyright (C) 2010 by Szymon Jakubczak
+*
+*  This program is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package android.adhoc;
+
+import junit.framework.TestCase;
+
+
+/**
+ * Every (state, event) pair of ServiceState, against a copy of the table
+ * written out here, so that a change to the machine has to change both.
+ * Plain JVM, no Android classes.
+ */
+public class ServiceStateTest extends TestCase {
+    private final static int F = ServiceState.FAILED;
+    private final static int S = ServiceState.STOPPED;
+    private final static int G = ServiceState.STARTING;
+    private final static int R = ServiceState.RUNNING;
+    private final static int X = ServiceState.ILLEGAL;
+
+    private final static int[] STATES = { F, S, G, R };
+
+    /** [state - FAILED][event] -> next state, or ILLEGAL */
+    private final static int[][] EXPECTED = {
+        //        create start no_assets ok  error exception conflict stop
+        /* F */ { S,     G,    F,        X,  X,    X,        X,       F },
+        /* S */ { S,     G,    F,        X,  X,    X,        X,       X },
+        /* G */ { S,     X,    X,        R,  F,    F,        X,       S },
+        /* R */ { S,     X,    X,        X,  F,    F,        G,       S },
+    };
+
+    /** @return a new machine in state, reached through legal events only */
+    private static ServiceState in(int state) {
+        ServiceState s = new ServiceState();
+        if (state == F) {
+            assertTrue(s.fire(ServiceState.EVENT_NO_ASSETS, "setup"));
+        } else if (state == G) {
+            assertTrue(s.fire(ServiceState.EVENT_START, null));
+        } else if (state == R) {
+            assertTrue(s.fire(ServiceState.EVENT_START, null));
+            assertTrue(s.fire(ServiceState.EVENT_OK, null));
+        }
+        assertEquals(state, s.get());
+        return s;
+    }
+
+    public void testNames() {
+        assertEquals(ServiceState.STATES, ServiceState.STATE_NAMES.length);
+        assertEquals(ServiceState.EVENTS, ServiceState.EVENT_NAMES.length);
+        assertEquals(ServiceState.STATES, EXPECTED.length);
+    }
+
+    public void testInitial() {
+        ServiceState s = new ServiceState();
+        assertEquals(S, s.get());
+        assertNull(s.snapshot().last);
+        assertEquals(0, s.snapshot().transitions);
+        assertEquals(0, s.history().length);
+        assertNull(s.lastFailure());
+    }
+
+    public void testNext() {
+        for (int state : STATES) {
+            for (int e = 0; e < ServiceState.EVENTS; ++e) {
+                assertEquals(pair(state, e), EXPECTED[state - F][e], ServiceState.next(state, e));
+            }
+        }
+    }
+
+    public void testFire() {
+        for (int state : STATES) {
+            for (int e = 0; e < ServiceState.EVENTS; ++e) {
+                ServiceState s = in(state);
+                ServiceState.Snapshot before = s.snapshot();
+                int[] counts = counts(s);
+                int history = s.history().length;
+                int to = EXPECTED[state - F][e];
+                assertEquals(pair(state, e), to != X, s.can(e));
+                assertEquals(pair(state, e), to != X, s.fire(e, "test"));
+                ServiceState.Snapshot after = s.snapshot();
+                if (to == X) {
+                    // rejected: nothing changes, not even the counters
+                    assertSame(pair(state, e), before, after);
+                    assertEquals(pair(state, e), history, s.history().length);
+                    for (int i = 0; i < ServiceState.EVENTS; ++i) {
+                        assertEquals(pair(state, e), counts[i], s.count(i));
+                    }
+                    continue;
+                }
+                assertEquals(pair(state, e), to, after.state);
+                assertEquals(pair(state, e), before.transitions + 1, after.transitions);
+                assertEquals(pair(state, e), state, after.last.from);
+                assertEquals(pair(state, e), to, after.last.to);
+                assertEquals(pair(state, e), e, after.last.event);
+                assertEquals(pair(state, e), "test", after.last.cause);
+                assertEquals(pair(state, e), counts[e] + 1, s.count(e));
+                if (to == state) {
+                    assertEquals(pair(state, e), before.since, after.since);
+                } else {
+                    assertEquals(pair(state, e), after.last.time, after.since);
+                }
+                ServiceState.Transition[] h = s.history();
+                assertSame(pair(state, e), after.last, h[h.length - 1]);
+            }
+        }
+    }
+
+    public void testLastFailure() {
+        ServiceState s = in(R);
+        assertNull(s.lastFailure());
+        assertTrue(s.fire(ServiceState.EVENT_ERROR, "first"));
+        ServiceState.Transition first = s.lastFailure();
+        assertEquals("first", first.cause);
+        // staying in FAILED is not a new failure
+        assertTrue(s.fire(ServiceState.EVENT_NO_ASSETS, "again"));
+        assertSame(first, s.lastFailure());
+        // and it outlives the history
+        for (int i = 0; i < ServiceState.HISTORY; ++i) {
+            assertTrue(s.fire(ServiceState.EVENT_CREATE, null));
+        }
+        assertSame(first, s.lastFailure());
+        for (ServiceState.Transition t : s.history()) {
+            assertNotSame(first, t);
+        }
+    }
+
+    public void testHistory() {
+        ServiceState s = new ServiceState();
+        int n = 3 * ServiceState.HISTORY + 5;
+        for (int i = 0; i < n; ++i) {
+            assertTrue(s.fire(i % 2 == 0 ? ServiceState.EVENT_START : ServiceState.EVENT_STOP, null));
+        }
+        ServiceState.Transition[] h = s.history();
+        assertEquals(ServiceState.HISTORY, h.length);
+        for (int i = 0; i < h.length; ++i) {
+            assertEquals(n - ServiceState.HISTORY + i, h[i].seq);
+        }
+        assertEquals(n, s.snapshot().transitions);
+        assertEquals((n + 1) / 2, s.count(ServiceState.EVENT_START));
+        assertEquals(n / 2, s.count(ServiceState.EVENT_STOP));
+    }
+
+    private static int[] counts(ServiceState s) {
+        int[] c = new int[ServiceState.EVENTS];
+        for (int i = 0; i < c.length; ++i) {
+            c[i] = s.count(i);
+        }
+        return c;
+    }
+
+    private static String pair(int state, int event) {
+        return ServiceState.STATE_NAMES[state - F] + " -" + ServiceState.EVENT_NAMES[event] + "->";
+    }
+}
@@ -0,0 +1,204 @@
+/*
+*  This file is part of Barnacle Wifi Tether
+*  Copyright (C) 2010 by Szymon Jakubczak
+*
+*  This program is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package android.adhoc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+
+import junit.framework.TestCase;
+
+
+/**
+ * StatsServer over loopback: the responses to good, unknown and oversized
+ * requests, what the Output writes, failing Sources, slow clients and more
+ * clients than slots.
+ */
+public class StatsServerTest extends TestCase {
+    private final static long TIMEOUT = 300; // ms, see setTimeout()
+
+    private final static byte[] FAMILY = StatsServer.family("adhoc_x", "counter", "An x.");
+    private final static byte[] X = StatsServer.ascii("adhoc_x");
+    private final static byte[] STATE = StatsServer.ascii("state=\"running\"");
+    private final static byte[] UPTIME = StatsServer.ascii("adhoc_uptime_seconds");
+    private final static byte[] PEER = StatsServer.ascii("adhoc_peer");
+    private final static byte[] NAME = StatsServer.ascii("name");
+
+    private final static String HEAD_OK = "HTTP/1.0 200 OK\r\n"
+            + "Content-Type: text/plain; version=0.0.4\r\nConnection: close\r\n\r\n";
+
+    /** what the Source does on the next scrape */
+    private volatile int mode = 0;
+    private final static int WRITE = 0;
+    private final static int THROW = 1;
+    private final static int OVERFLOW = 2;
+
+    private final StatsServer server = new StatsServer(InetAddress.getByName("127.0.0.1"), 0,
+            new StatsServer.Source() {
+                public void write(StatsServer.Output out) {
+                    if (mode == THROW) {
+                        throw new IllegalStateException("test");
+                    }
+                    int n = (mode == OVERFLOW) ? StatsServer.RESPONSE : 1;
+                    for (int i = 0; i < n; ++i) {
+                        out.family(FAMILY);
+                    }
+                    out.sample(X, 42);
+                    out.sample(X, STATE, -7);
+                    out.sample(X, Long.MIN_VALUE);
+                    out.millis(UPTIME, null, 61005);
+                    out.millis(UPTIME, STATE, -1500);
+                    out.sample(PEER, NAME, "a\"b\\c\nd\u00e9\t", 3);
+                }
+            });
+
+    public StatsServerTest() throws IOException {
+    }
+
+    @Override
+    protected void setUp() throws IOException {
+        server.setTimeout(TIMEOUT);
+        server.start();
+    }
+
+    @Override
+    protected void tearDown() {
+        server.stop();
+    }
+
+    private Socket connect() throws IOException {
+        Socket s = new Socket("127.0.0.1", server.getPort());
+        s.setSoTimeout(5000);
+        return s;
+    }
+
+    /** @return everything until the server closes */
+    private static String readAll(Socket s) throws IOException {
+        InputStream in = s.getInputStream();
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        for (int n; (n = in.read(buf)) >= 0; ) {
+            b.write(buf, 0, n);
+        }
+        s.close();
+        return new String(b.toByteArray(), "ISO-8859-1");
+    }
+
+    private String get(String request) throws IOException {
+        Socket s = connect();
+        OutputStream out = s.getOutputStream();
+        out.write(request.getBytes("ISO-8859-1"));
+        out.flush();
+        return readAll(s);
+    }
+
+    public void testMetrics() throws IOException {
+        String expected = HEAD_OK
+                + "# HELP adhoc_x An x.\n# TYPE adhoc_x counter\n"
+                + "adhoc_x 42\n"
+                + "adhoc_x{state=\"running\"} -7\n"
+                + "adhoc_x -9223372036854775808\n"
+                + "adhoc_uptime_seconds 61.005\n"
+                + "adhoc_uptime_seconds{state=\"running\"} -1.500\n"
+                + "adhoc_peer{name=\"a\\\"b\\\\c\\nd??\"} 3\n";
+        assertEquals(expected, get("GET /metrics HTTP/1.0\r\nHost: x\r\n\r\n"));
+        // a bare LF, a query, HTTP/0.9 style
+        assertEquals(expected, get("GET /metrics HTTP/1.1\n\n"));
+        assertEquals(expected, get("GET /metrics?name[]=x HTTP/1.0\r\n\r\n"));
+        assertEquals(expected, get("GET /metrics\r\n\r\n"));
+        assertEquals(4, server.scrapes);
+        assertEquals(0, server.refused);
+    }
+
+    public void testNotFound() throws IOException {
+        String notFound = "HTTP/1.0 404 Not Found\r\n"
+                + "Content-Type: text/plain\r\nConnection: close\r\n\r\nGET /metrics\n";
+        assertEquals(notFound, get("GET / HTTP/1.0\r\n\r\n"));
+        assertEquals(notFound, get("GET /metricsx HTTP/1.0\r\n\r\n"));
+        assertEquals(notFound, get("POST /metrics HTTP/1.0\r\n\r\n"));
+        assertEquals(notFound, get("get /metrics HTTP/1.0\r\n\r\n"));
+        assertEquals(0, server.scrapes);
+    }
+
+    public void testBadRequest() throws IOException {
+        StringBuilder b = new StringBuilder("GET /metrics HTTP/1.0\r\n");
+        while (b.length() < StatsServer.REQUEST) {
+            b.append("X-Padding: 0123456789\r\n");
+        }
+        assertEquals("HTTP/1.0 400 Bad Request\r\nConnection: close\r\n\r\n", get(b.toString()));
+        assertEquals(1, server.refused);
+        assertEquals(0, server.scrapes);
+    }
+
+    public void testSourceFails() throws IOException {
+        String error = "HTTP/1.0 500 Internal Server Error\r\nConnection: close\r\n\r\n";
+        mode = THROW;
+        assertEquals(error, get("GET /metrics HTTP/1.0\r\n\r\n"));
+        mode = OVERFLOW;
+        assertEquals(error, get("GET /metrics HTTP/1.0\r\n\r\n"));
+        assertEquals(2, server.errors);
+        // and the next scrape is fine again
+        mode = WRITE;
+        assertTrue(get("GET /metrics HTTP/1.0\r\n\r\n").startsWith(HEAD_OK + "# HELP"));
+        assertEquals(1, server.scrapes);
+    }
+
+    public void testTimeout() throws IOException {
+        // a request that never ends is dropped after TIMEOUT, the one after
+        // it is served as usual
+        Socket slow = connect();
+        slow.getOutputStream().write("GET /metrics HTTP/1.0\r\n".getBytes("ISO-8859-1"));
+        long start = System.currentTimeMillis();
+        assertEquals("", readAll(slow));
+        long took = System.currentTimeMillis() - start;
+        assertTrue("took " + took, took >= TIMEOUT && took < 4 * TIMEOUT);
+        assertEquals(1, server.refused);
+        assertTrue(get("GET /metrics HTTP/1.0\r\n\r\n").startsWith(HEAD_OK));
+    }
+
+    public void testFull() throws IOException {
+        Socket[] idle = new Socket[StatsServer.CLIENTS];
+        for (int i = 0; i < idle.length; ++i) {
+            idle[i] = connect();
+        }
+        // no slot left: closed without an answer
+        Socket extra = connect();
+        assertEquals("", readAll(extra));
+        assertEquals(1, server.refused);
+        for (Socket s : idle) {
+            s.close();
+        }
+        // the slots are free again once the server sees the closes
+        String r = "";
+        for (int i = 0; i < 50 && !r.startsWith(HEAD_OK); ++i) {
+            try {
+                r = get("GET /metrics HTTP/1.0\r\n\r\n");
+            } catch (SocketException e) {
+                // refused with the request unread, which resets
+            }
+        }
+        assertTrue(r.startsWith(HEAD_OK));
+        assertEquals(1, server.scrapes);
+    }
+}
@@ -0,0 +1,193 @@
+/*
+*  This file is part of Barnacle Wifi Tether
+*  Copyright (C) 2010 by Szymon Jakubczak
+*
+*  This program is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+package android.adhoc;
+
+import junit.framework.TestCase;
+
+
+/**
+ * WakeBudget on a simulated clock, with the lock and the alarm as fields:
+ * the duty cycle, pokes, pinning, the hourly metrics, and a service that
+ * polls the native side while it is awake.
+ */
+public class WakeBudgetTest extends TestCase {
+    private final static long PERIOD = 60000;
+    private final static long START = 10 * WakeBudget.HOUR; // on a window start
+
+    private long now = START;
+    private boolean held = false;
+    private int acquires = 0;
+    private long alarm = -1; // -1 if none
+
+    private final WakeBudget wb = new WakeBudget(new WakeBudget.Clock() {
+        public long now() {
+            return now;
+        }
+    }, new WakeBudget.Lock() {
+        public void acquire() {
+            assertFalse(held);
+            held = true;
+            ++acquires;
+        }
+        public void release() {
+            assertTrue(held);
+            held = false;
+        }
+    }, new WakeBudget.Alarm() {
+        public void set(long time) {
+            assertTrue(time > now);
+            alarm = time;
+        }
+        public void cancel() {
+            alarm = -1;
+        }
+    });
+
+    /** moves the clock on by ms, firing the alarms on the way */
+    private void advance(long ms) {
+        long end = now + ms;
+        while (alarm >= 0 && alarm <= end) {
+            now = alarm;
+            alarm = -1;
+            wb.update();
+        }
+        now = end;
+    }
+
+    public void testAlwaysAwake() {
+        wb.start(0);
+        assertTrue(held);
+        assertEquals(-1, alarm);
+        advance(WakeBudget.HOUR);
+        assertTrue(held);
+        assertEquals(1, acquires);
+        // too short to sleep in between
+        wb.setPeriod(WakeBudget.ACTIVE);
+        assertEquals(0, wb.getPeriod());
+        assertTrue(held);
+        assertEquals(-1, alarm);
+    }
+
+    public void testDutyCycle() {
+        wb.start(PERIOD);
+        assertTrue(held);
+        assertEquals(START + WakeBudget.ACTIVE, alarm);
+        advance(WakeBudget.ACTIVE);
+        assertFalse(held);
+        assertEquals(START + PERIOD, alarm);
+        advance(WakeBudget.HOUR - WakeBudget.ACTIVE);
+        assertEquals(WakeBudget.HOUR / PERIOD * WakeBudget.ACTIVE, wb.getHeldMs(1));
+        assertEquals(WakeBudget.HOUR / PERIOD, wb.getWakeups(1));
+        wb.stop();
+        assertFalse(held);
+        assertEquals(-1, alarm);
+    }
+
+    public void testPoke() {
+        wb.start(PERIOD);
+        advance(20000);
+        assertFalse(held);
+        // asleep: awake for HOLD, then back to the windows
+        wb.poke();
+        assertTrue(held);
+        assertEquals(now + WakeBudget.HOLD, alarm);
+        advance(WakeBudget.HOLD);
+        assertFalse(held);
+        assertEquals(START + PERIOD, alarm);
+
+        // in a window: held past its end
+        advance(START + PERIOD + 4000 - now);
+        assertTrue(held);
+        wb.poke();
+        advance(1000);
+        assertTrue(held);
+        assertEquals(START + PERIOD + 4000 + WakeBudget.HOLD, alarm);
+        advance(WakeBudget.HOLD);
+        assertFalse(held);
+        assertEquals(3, acquires);
+    }
+
+    public void testPinned() {
+        wb.start(PERIOD);
+        advance(20000);
+        wb.setPinned(true);
+        assertTrue(held);
+        assertEquals(-1, alarm);
+        advance(PERIOD);
+        assertTrue(held);
+        wb.setPinned(false);
+        assertFalse(held);
+        assertEquals(START + 2 * PERIOD, alarm);
+    }
+
+    public void testHours() {
+        now = START - 2500;
+        wb.start(PERIOD);
+        assertFalse(held);
+        wb.poke();
+        advance(12500);
+        assertFalse(held);
+        // split at the hour, one wakeup: the window extended the hold
+        assertEquals(2500, wb.getHeldMs(1));
+        assertEquals(1, wb.getWakeups(1));
+        assertEquals(WakeBudget.HOLD - 2500, wb.getHeldMs(0));
+        assertEquals(0, wb.getWakeups(0));
+        assertEquals(0, wb.getHeldMs(WakeBudget.HOURS));
+    }
+
+    /**
+     * @param pokeReplies whether the service pokes on the replies to its own
+     *        polls, as LinkStats, PeerTraffic and ChannelPlanner send them
+     * @return ms held in an hour, with a peer event every 10 minutes
+     */
+    private long poll(boolean pokeReplies) {
+        final long step = 100;
+        final long pollEvery = 2000;
+        wb.start(PERIOD);
+        long nextPoll = now;
+        for (long end = now + WakeBudget.HOUR; now < end; ) {
+            // the CPU runs, and so do the pollers, only while the lock is held
+            if (held && now >= nextPoll) {
+                nextPoll = now + pollEvery;
+                if (pokeReplies) {
+                    wb.poke();
+                }
+            }
+            if ((now - START) % (10 * PERIOD) == 30000) {
+                wb.poke();
+            }
+            advance(step);
+        }
+        return wb.getHeldMs(1);
+    }
+
+    public void testPollsDoNotPoke() {
+        long held = poll(false);
+        long windows = WakeBudget.HOUR / PERIOD * WakeBudget.ACTIVE;
+        long events = 6 * WakeBudget.HOLD;
+        assertEquals(windows + events, held);
+    }
+
+    public void testPollsPokingNeverSleep() {
+        // why replies to polls must not poke: the lock is never released
+        assertEquals(WakeBudget.HOUR, poll(true));
+        assertEquals(1, acquires);
+    }
+}
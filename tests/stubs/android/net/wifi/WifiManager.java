@@ -0,0 +1,31 @@
+/*
+*  This file is part of Barnacle Wifi Tether
+*  Copyright (C) 2010 by Szymon Jakubczak
+*
+*  This program is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package android.net.wifi;
+
+
+/**
+ * The constants of android.net.wifi.WifiManager, for the tests on a plain JVM.
+ */
+public class WifiManager {
+    public static final int WIFI_STATE_DISABLING = 0;
+    public static final int WIFI_STATE_DISABLED = 1;
+    public static final int WIFI_STATE_ENABLING = 2;
+    public static final int WIFI_STATE_ENABLED = 3;
+    public static final int WIFI_STATE_UNKNOWN = 4;
+}
@@ -0,0 +1,40 @@
+/*
+*  This file is part of Barnacle Wifi Tether
+*  Copyright (C) 2010 by Szymon Jakubczak
+*
+*  This program is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  This program is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package android.util;
+
+import java.util.TreeMap;
+
+
+/**
+ * android.util.SparseArray for the tests on a plain JVM, on a TreeMap.
+ */
+public class SparseArray<E> {
+    private final TreeMap<Integer, E> map = new TreeMap<Integer, E>();
+
+    public E get(int key) { return map.get(key); }
+    public E get(int key, E valueIfKeyNotFound) {
+        E e = map.get(key);
+        return e == null ? valueIfKeyNotFound : e;
+    }
+    public void put(int key, E value) { map.put(key, value); }
+    public void remove(int key) { map.remove(key); }
+    public void delete(int key) { map.remove(key); }
+    public int size() { return map.size(); }
+    public void clear() { map.clear(); }
+}